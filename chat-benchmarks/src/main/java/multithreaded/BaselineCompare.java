@@ -0,0 +1,73 @@
+package multithreaded;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two JMH CSV result files (-rf csv) and prints the change per benchmark/param combination.
+ * Usage: java -cp target/benchmarks.jar multithreaded.BaselineCompare baseline.csv current.csv
+ */
+public final class BaselineCompare {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: BaselineCompare <baseline.csv> <current.csv>");
+            System.exit(2);
+        }
+        Map<String, double[]> base = load(Path.of(args[0]));
+        Map<String, double[]> cur = load(Path.of(args[1]));
+
+        System.out.printf("%-70s %14s %14s %9s%n", "benchmark", "baseline", "current", "change");
+        for (Map.Entry<String, double[]> e : cur.entrySet()) {
+            double[] b = base.get(e.getKey());
+            double c = e.getValue()[0];
+            if (b == null) {
+                System.out.printf("%-70s %14s %14.3f %9s%n", e.getKey(), "-", c, "new");
+            } else {
+                System.out.printf("%-70s %14.3f %14.3f %+8.1f%%%n", e.getKey(), b[0], c, (c - b[0]) / b[0] * 100);
+            }
+        }
+    }
+
+    /** key = benchmark + mode + unit + params, value = {score, error}. */
+    private static Map<String, double[]> load(Path csv) throws IOException {
+        List<String> lines = Files.readAllLines(csv);
+        List<String> header = split(lines.get(0));
+        Map<String, double[]> out = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank()) continue;
+            List<String> cols = split(line);
+            StringBuilder key = new StringBuilder(cols.get(0)).append(" [").append(cols.get(1)).append(", ").append(cols.get(6));
+            for (int i = 7; i < cols.size(); i++) {
+                if (cols.get(i).isEmpty()) continue; // param belongs to another benchmark class
+                key.append(", ").append(header.get(i).replace("Param: ", "")).append('=').append(cols.get(i));
+            }
+            key.append(']');
+            out.put(key.toString(), new double[] { parse(cols.get(4)), parse(cols.get(5)) });
+        }
+        return out;
+    }
+
+    private static double parse(String s) {
+        try { return Double.parseDouble(s); } catch (NumberFormatException e) { return Double.NaN; }
+    }
+
+    private static List<String> split(String line) {
+        List<String> cols = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char ch = line.charAt(i);
+            if (ch == '"') quoted = !quoted;
+            else if (ch == ',' && !quoted) { cols.add(cur.toString()); cur.setLength(0); }
+            else cur.append(ch);
+        }
+        cols.add(cur.toString());
+        return cols;
+    }
+}
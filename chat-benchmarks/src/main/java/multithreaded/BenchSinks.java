@@ -0,0 +1,66 @@
+package multithreaded;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.Session;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/** In-memory stand-ins for sockets and WebSocket sessions so the benchmarks never touch the network. */
+final class BenchSinks {
+    private BenchSinks() {}
+
+    /** Discards everything, counting bytes so the JIT can't drop the writes. */
+    static final class NullLineWriter implements LineWriter {
+        final LongAdder bytes = new LongAdder();
+
+        @Override public void write(EncodedMessage message) { bytes.add(message.lineLength()); }
+
+        @Override public void write(EncodedMessage[] batch, int count) {
+            for (int i = 0; i < count; i++) bytes.add(batch[i].lineLength());
+        }
+
+        @Override public void enterBinary() {}
+    }
+
+    static final class NullOutputStream extends ServletOutputStream {
+        long bytes;
+        @Override public void write(int b) { bytes++; }
+        @Override public void write(byte[] b, int off, int len) { bytes += len; }
+        @Override public boolean isReady() { return true; }
+        @Override public void setWriteListener(WriteListener listener) {}
+    }
+
+    /** A jakarta Session whose sends go nowhere; only user properties and the basic remote are real. */
+    static Session session() {
+        Map<String, Object> props = new HashMap<>();
+        RemoteEndpoint.Basic basic = (RemoteEndpoint.Basic) Proxy.newProxyInstance(
+                BenchSinks.class.getClassLoader(), new Class<?>[] { RemoteEndpoint.Basic.class },
+                (proxy, method, args) -> defaultValue(method.getReturnType()));
+        Object[] self = new Object[1];
+        self[0] = Proxy.newProxyInstance(
+                BenchSinks.class.getClassLoader(), new Class<?>[] { Session.class },
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getUserProperties" -> props;
+                    case "getBasicRemote" -> basic;
+                    case "isOpen" -> true;
+                    case "getId" -> "bench";
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "BenchSession";
+                    default -> defaultValue(method.getReturnType());
+                });
+        return (Session) self[0];
+    }
+
+    static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+}
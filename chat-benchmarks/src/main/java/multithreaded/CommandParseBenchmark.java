@@ -0,0 +1,71 @@
+package multithreaded;
+
+import jakarta.websocket.Session;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/** Command parsing alone, and per-line handling on TCP ({@link TcpSession}) and the /chat WebSocket endpoint. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParseBenchmark {
+
+    @Param({"USERS", "MSG bench-peer hello there, how are you", "BROADCAST hello everyone", "NOPE what"})
+    String line;
+
+    private final ClientRegistry registry = ClientRegistry.getInstance();
+    private ClientConnection peer;
+    private TcpSession tcp;
+    private WsChatEndpoint ws;
+    private Session wsSession;
+    private final Command command = new Command();
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        bytes = line.getBytes(StandardCharsets.UTF_8);
+        peer = registry.addTcp("bench-peer", new BenchSinks.NullLineWriter(), () -> {});
+        tcp = new TcpSession(registry, new BenchSinks.NullLineWriter(), () -> {});
+        tcp.handle("LOGIN bench-tcp");
+        ws = new WsChatEndpoint();
+        wsSession = BenchSinks.session();
+        ws.onMessage(wsSession, "LOGIN bench-ws");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tcp.logout();
+        ws.onClose(wsSession, null);
+        registry.remove(peer);
+    }
+
+    @Benchmark
+    public Command.Verb parseString() {
+        return command.parse(line).verb();
+    }
+
+    @Benchmark
+    public Command.Verb parseBytes() {
+        return command.parse(bytes, 0, bytes.length).verb();
+    }
+
+    @Benchmark
+    public String tcpHandleBytes() {
+        return tcp.handle(bytes, 0, bytes.length);
+    }
+
+    @Benchmark
+    public String tcpHandle() {
+        return tcp.handle(line);
+    }
+
+    @Benchmark
+    public void wsOnMessage() {
+        ws.onMessage(wsSession, line);
+    }
+}
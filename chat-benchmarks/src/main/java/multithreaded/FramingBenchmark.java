@@ -0,0 +1,84 @@
+package multithreaded;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/** One read's worth of MSG commands through {@link TcpDecoder}: newline-delimited text vs one binary frame. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+
+    @Param({"1", "64"})
+    int messages;
+
+    private final ClientRegistry registry = ClientRegistry.getInstance();
+    private ClientConnection peer;
+    private TcpSession textSession, binarySession;
+    private TcpDecoder text, binary;
+    private byte[] lines, frame;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        peer = registry.addTcp("bench-peer", new BenchSinks.NullLineWriter(), () -> {});
+        BenchSinks.NullLineWriter out = new BenchSinks.NullLineWriter();
+        textSession = new TcpSession(registry, out, () -> {});
+        text = new TcpDecoder(textSession, out);
+        text.feed(ascii("LOGIN bench-text\n"), 0, 17);
+        binarySession = new TcpSession(registry, out, () -> {});
+        binary = new TcpDecoder(binarySession, out);
+        byte[] proto = ascii("PROTO BIN\n");
+        binary.feed(proto, 0, proto.length);
+        byte[] login = frame(BinaryProtocol.LOGIN, "bench-bin", "", 1);
+        binary.feed(login, 0, login.length);
+
+        String body = "hello there, how are you doing today";
+        lines = ascii(("MSG bench-peer " + body + "\n").repeat(messages));
+        frame = frame(BinaryProtocol.MSG, "bench-peer", body, messages);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        textSession.logout();
+        binarySession.logout();
+        registry.remove(peer);
+    }
+
+    @Benchmark
+    public boolean textLines() {
+        return text.feed(lines, 0, lines.length);
+    }
+
+    @Benchmark
+    public boolean binaryFrame() {
+        return binary.feed(frame, 0, frame.length);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] frame(byte op, String arg, String body, int records) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        for (int i = 0; i < records; i++) {
+            out.writeByte(op);
+            out.writeShort(arg.length());
+            out.write(ascii(arg));
+            out.writeInt(body.length());
+            out.write(ascii(body));
+        }
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        new DataOutputStream(frame).writeInt(payload.size());
+        payload.writeTo(frame);
+        return frame.toByteArray();
+    }
+}
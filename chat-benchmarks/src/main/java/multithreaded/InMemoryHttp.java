@@ -0,0 +1,61 @@
+package multithreaded;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/** A reusable servlet request/response pair; the response body is counted and discarded. */
+final class InMemoryHttp {
+    private final Map<String, String> requestHeaders = new HashMap<>();  // lower-case names
+    private final Map<String, String> responseHeaders = new HashMap<>(); // lower-case names
+    private final BenchSinks.NullOutputStream body = new BenchSinks.NullOutputStream();
+    private String method = "GET";
+    private String uri;
+    private int status;
+
+    final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+            InMemoryHttp.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+            (proxy, m, args) -> switch (m.getName()) {
+                case "getMethod" -> method;
+                case "getRequestURI" -> uri;
+                case "getHeader" -> requestHeaders.get(((String) args[0]).toLowerCase());
+                case "toString" -> method + " " + uri;
+                default -> BenchSinks.defaultValue(m.getReturnType());
+            });
+
+    final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+            InMemoryHttp.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+            (proxy, m, args) -> switch (m.getName()) {
+                case "setStatus" -> { status = (Integer) args[0]; yield null; }
+                case "getStatus" -> status;
+                case "setHeader" -> { responseHeaders.put(((String) args[0]).toLowerCase(), (String) args[1]); yield null; }
+                case "getHeader" -> responseHeaders.get(((String) args[0]).toLowerCase());
+                case "getOutputStream" -> body;
+                case "toString" -> "InMemoryResponse";
+                default -> BenchSinks.defaultValue(m.getReturnType());
+            });
+
+    /** Resets both sides for another request. */
+    InMemoryHttp request(String method, String path) {
+        this.method = method;
+        this.uri = path;
+        this.status = 200;
+        requestHeaders.clear();
+        responseHeaders.clear();
+        return this;
+    }
+
+    InMemoryHttp header(String name, String value) {
+        requestHeaders.put(name.toLowerCase(), value);
+        return this;
+    }
+
+    long bodyBytes() { return body.bytes; }
+
+    int status() { return status; }
+
+    String responseHeader(String name) { return responseHeaders.get(name.toLowerCase()); }
+}
@@ -0,0 +1,354 @@
+package multithreaded;
+
+import jakarta.websocket.ClientEndpointConfig;
+import jakarta.websocket.ContainerProvider;
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.EndpointConfig;
+import jakarta.websocket.MessageHandler;
+import jakarta.websocket.Session;
+import jakarta.websocket.WebSocketContainer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load generator for a running {@link ChatServer}: opens many loopback TCP, /chat and
+ * /chat/{username} connections, sends PMs or broadcasts at a fixed rate and reports delivery latency.
+ * Every message carries its intended send time ("t=<nanos>"), so latency includes any queueing the
+ * generator itself fell behind on (no coordinated omission).
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar multithreaded.LoadGenerator --tcp=2000 --ws=200 --wsPath=200 \
+ *      --rate=5000 --mode=pm --duration=30 --warmup=5
+ * </pre>
+ */
+public final class LoadGenerator {
+
+    private final Map<String, String> opts;
+    private final String host;
+    private final Recorder recorder = new Recorder(TimeUnit.SECONDS.toNanos(60), 3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicInteger loggedIn = new AtomicInteger();
+    private final List<Client> clients = new ArrayList<>();
+    private volatile boolean running = true;
+
+    private LoadGenerator(Map<String, String> opts) {
+        this.opts = opts;
+        this.host = opts.getOrDefault("host", "localhost");
+    }
+
+    private int intOpt(String name, int def) {
+        return opts.containsKey(name) ? Integer.parseInt(opts.get(name)) : def;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String a : args) {
+            if (!a.startsWith("--") || !a.contains("=")) {
+                System.err.println("arguments are --name=value, e.g. --tcp=1000 --rate=2000");
+                System.exit(2);
+            }
+            opts.put(a.substring(2, a.indexOf('=')), a.substring(a.indexOf('=') + 1));
+        }
+        new LoadGenerator(opts).run();
+    }
+
+    private void run() throws Exception {
+        int tcp = intOpt("tcp", 1000);
+        int ws = intOpt("ws", 0);
+        int wsPath = intOpt("wsPath", 0);
+        int rate = intOpt("rate", 1000);
+        int duration = intOpt("duration", 30);
+        int warmup = intOpt("warmup", 5);
+        boolean broadcast = "broadcast".equals(opts.getOrDefault("mode", "pm"));
+        String padding = "x".repeat(intOpt("payload", 32));
+
+        TcpReader reader = new TcpReader();
+        Thread readerThread = new Thread(reader, "loadgen-tcp-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        // several connecting threads, like a fleet reconnecting after a deploy; one would only measure its own RTT
+        InetSocketAddress tcpAddr = new InetSocketAddress(host, intOpt("tcpPort", 8081));
+        TcpClient[] tcpClients = new TcpClient[tcp];
+        AtomicInteger nextTcp = new AtomicInteger();
+        Thread[] connectors = new Thread[Math.max(1, Math.min(intOpt("connectThreads", 4), tcp))];
+        long t0 = System.nanoTime();
+        for (int t = 0; t < connectors.length; t++) {
+            connectors[t] = new Thread(() -> {
+                for (int i; (i = nextTcp.getAndIncrement()) < tcp; ) {
+                    try {
+                        tcpClients[i] = reader.connect("lg-tcp-" + i, tcpAddr);
+                    } catch (IOException e) {
+                        errors.increment();
+                    }
+                }
+            }, "loadgen-connect-" + t);
+            connectors[t].start();
+        }
+        for (Thread t : connectors) t.join();
+        long tcpConnected = System.nanoTime();
+        int connected = 0;
+        for (TcpClient c : tcpClients) {
+            if (c == null) continue;
+            clients.add(c);
+            connected++;
+        }
+        if (tcp > 0) {
+            System.out.printf("connected %d/%d TCP clients in %d ms (%.0f accepted conn/s, %d connect threads)%n",
+                    connected, tcp, TimeUnit.NANOSECONDS.toMillis(tcpConnected - t0),
+                    connected / ((tcpConnected - t0) / 1e9), connectors.length);
+        }
+
+        WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+        String wsBase = "ws://" + host + ":" + intOpt("wsPort", 8080);
+        String wsQuery = intOpt("wsBatch", 0) != 0 ? "?batch=1" : ""; // binary frames of several lines per flush
+        for (int i = 0; i < ws; i++) clients.add(new WsClient(container, "lg-ws-" + i, wsBase + "/chat" + wsQuery, true));
+        for (int i = 0; i < wsPath; i++) {
+            String name = "lg-wsp-" + i;
+            clients.add(new WsClient(container, name, wsBase + "/chat/" + name + wsQuery, false));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (loggedIn.get() < clients.size() && System.nanoTime() < deadline) Thread.sleep(10);
+        System.out.printf("%d/%d clients logged in after %d ms%n", loggedIn.get(), clients.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0));
+        if (clients.size() < 2) {
+            System.err.println("need at least two clients");
+            System.exit(1);
+        }
+
+        Thread sender = new Thread(() -> sendLoop(rate, broadcast, padding), "loadgen-sender");
+        sender.start();
+
+        Histogram total = null;
+        System.out.printf("%6s %10s %10s %10s %10s %10s %10s%n", "sec", "sent/s", "recv/s", "p50(us)", "p99(us)", "p999(us)", "max(us)");
+        long lastSent = 0, lastRecv = 0;
+        for (int sec = 1; sec <= warmup + duration; sec++) {
+            Thread.sleep(1000);
+            Histogram h = recorder.getIntervalHistogram();
+            long s = sent.sum(), r = delivered.sum();
+            System.out.printf("%6d %10d %10d %10.1f %10.1f %10.1f %10.1f%s%n", sec, s - lastSent, r - lastRecv,
+                    h.getValueAtPercentile(50) / 1e3, h.getValueAtPercentile(99) / 1e3,
+                    h.getValueAtPercentile(99.9) / 1e3, h.getMaxValue() / 1e3, sec <= warmup ? "  (warmup)" : "");
+            lastSent = s;
+            lastRecv = r;
+            if (sec > warmup) {
+                if (total == null) total = h.copy(); else total.add(h);
+            }
+        }
+        running = false;
+        sender.join();
+
+        if (total != null) {
+            double secs = duration;
+            System.out.println();
+            System.out.printf("clients=%d (tcp=%d ws=%d wsPath=%d) mode=%s target=%d msg/s%n",
+                    clients.size(), tcp, ws, wsPath, broadcast ? "broadcast" : "pm", rate);
+            System.out.printf("delivered %.0f msg/s over %d s, errors=%d%n", total.getTotalCount() / secs, duration, errors.sum());
+            System.out.printf("latency us: p50=%.1f p99=%.1f p999=%.1f max=%.1f%n",
+                    total.getValueAtPercentile(50) / 1e3, total.getValueAtPercentile(99) / 1e3,
+                    total.getValueAtPercentile(99.9) / 1e3, total.getMaxValue() / 1e3);
+        }
+        System.exit(0);
+    }
+
+    /** Paces sends against intended start times; the timestamp is the intended time, not the actual one. */
+    private void sendLoop(int rate, boolean broadcast, String padding) {
+        long interval = 1_000_000_000L / Math.max(1, rate);
+        long next = System.nanoTime();
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        while (running) {
+            long now = System.nanoTime();
+            while (next <= now && running) {
+                Client from = clients.get(rnd.nextInt(clients.size()));
+                String body = "t=" + next + " " + padding;
+                try {
+                    if (broadcast) {
+                        from.broadcast(body);
+                    } else {
+                        Client to = clients.get(rnd.nextInt(clients.size()));
+                        from.pm(to.name(), body);
+                    }
+                    sent.increment();
+                } catch (RuntimeException e) {
+                    errors.increment();
+                }
+                next += interval;
+            }
+            LockSupport.parkNanos(Math.min(next - System.nanoTime(), 1_000_000L));
+        }
+    }
+
+    /** Records the latency of any delivered line carrying a "t=" stamp. */
+    private void onLine(String line) {
+        int i = line.indexOf("t=");
+        while (i > 0 && line.charAt(i - 1) != ' ') i = line.indexOf("t=", i + 1);
+        if (i < 0) return;
+        long stamp = 0;
+        int j = i + 2;
+        while (j < line.length() && Character.isDigit(line.charAt(j))) stamp = stamp * 10 + (line.charAt(j++) - '0');
+        if (j == i + 2) return;
+        long latency = System.nanoTime() - stamp;
+        if (latency > 0) recorder.recordValue(Math.min(latency, TimeUnit.SECONDS.toNanos(60)));
+        delivered.increment();
+    }
+
+    private interface Client {
+        String name();
+        void pm(String to, String body);
+        void broadcast(String body);
+    }
+
+    /** All TCP clients share one selector thread for reads; writes happen on the sender thread. */
+    private final class TcpReader implements Runnable {
+        private final Selector selector;
+        private final Queue<TcpClient> pending = new ConcurrentLinkedQueue<>();
+
+        TcpReader() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        TcpClient connect(String name, InetSocketAddress addr) throws IOException {
+            SocketChannel ch = SocketChannel.open(addr);
+            ch.configureBlocking(false);
+            TcpClient c = new TcpClient(name, ch);
+            pending.add(c);
+            selector.wakeup();
+            c.write("LOGIN " + name);
+            return c;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            while (true) {
+                try {
+                    selector.select(100);
+                    for (TcpClient c; (c = pending.poll()) != null; ) c.channel.register(selector, SelectionKey.OP_READ, c);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        TcpClient c = (TcpClient) key.attachment();
+                        buf.clear();
+                        int n = c.channel.read(buf);
+                        if (n < 0) { key.cancel(); c.channel.close(); errors.increment(); continue; }
+                        buf.flip();
+                        c.feed(buf);
+                    }
+                } catch (IOException e) {
+                    errors.increment();
+                }
+            }
+        }
+    }
+
+    private final class TcpClient implements Client {
+        private final String name;
+        private final SocketChannel channel;
+        private final StringBuilder partial = new StringBuilder();
+        private boolean ready;
+
+        TcpClient(String name, SocketChannel channel) {
+            this.name = name;
+            this.channel = channel;
+        }
+
+        @Override public String name() { return name; }
+        @Override public void pm(String to, String body) { write("MSG " + to + " " + body); }
+        @Override public void broadcast(String body) { write("BROADCAST " + body); }
+
+        synchronized void write(String line) {
+            ByteBuffer out = StandardCharsets.UTF_8.encode(line + "\n");
+            try {
+                while (out.hasRemaining()) {
+                    if (channel.write(out) == 0) Thread.onSpinWait();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /** Reader thread only. */
+        void feed(ByteBuffer buf) {
+            partial.append(StandardCharsets.UTF_8.decode(buf));
+            int start = 0;
+            for (int nl; (nl = partial.indexOf("\n", start)) >= 0; start = nl + 1) {
+                String line = partial.substring(start, nl);
+                if (!ready && line.startsWith("OK Logged in")) {
+                    ready = true;
+                    loggedIn.incrementAndGet();
+                } else if (line.equals("PING")) {
+                    write("PONG"); // the server's heartbeat; WebSocket containers answer ping frames themselves
+                } else {
+                    onLine(line);
+                }
+            }
+            partial.delete(0, start);
+        }
+    }
+
+    private final class WsClient extends Endpoint implements Client {
+        private final String name;
+        private final boolean commandProtocol; // /chat speaks LOGIN/MSG/BROADCAST, /chat/{name} uses @user
+        private volatile Session session;
+
+        WsClient(WebSocketContainer container, String name, String url, boolean commandProtocol) throws Exception {
+            this.name = name;
+            this.commandProtocol = commandProtocol;
+            container.connectToServer(this, ClientEndpointConfig.Builder.create().build(), URI.create(url));
+        }
+
+        @Override
+        public void onOpen(Session session, EndpointConfig config) {
+            this.session = session;
+            session.addMessageHandler(String.class, (MessageHandler.Whole<String>) this::onMessage);
+            // batch mode: one binary frame of newline-terminated lines
+            session.addMessageHandler(ByteBuffer.class, (MessageHandler.Whole<ByteBuffer>) frame -> {
+                for (String line : StandardCharsets.UTF_8.decode(frame).toString().split("\n")) onMessage(line);
+            });
+            if (commandProtocol) session.getAsyncRemote().sendText("LOGIN " + name);
+            else loggedIn.incrementAndGet();
+        }
+
+        private void onMessage(String msg) {
+            if (msg.startsWith("OK Logged in")) loggedIn.incrementAndGet();
+            else onLine(msg);
+        }
+
+        @Override public String name() { return name; }
+
+        @Override
+        public void pm(String to, String body) {
+            session.getAsyncRemote().sendText(commandProtocol ? "MSG " + to + " " + body : "@" + to + " " + body);
+        }
+
+        @Override
+        public void broadcast(String body) {
+            session.getAsyncRemote().sendText(commandProtocol ? "BROADCAST " + body : body);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package multithreaded;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the instrumentation itself: one counter, one histogram record, and the full per-command
+ * bookkeeping, alone and with 8 threads hitting the same metrics. Run with
+ * {@code -jvmArgsAppend -Dchat.metrics.enabled=false} for the switched-off baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private final Metrics.Histogram histogram = new Metrics.Histogram();
+
+    @Benchmark
+    public void counter() {
+        Metrics.TCP.in();
+    }
+
+    @Benchmark
+    public void histogramRecord() {
+        histogram.record(1500);
+    }
+
+    @Benchmark
+    public void timedCommand() {
+        long start = Metrics.start();
+        Metrics.TCP.in();
+        Metrics.TCP.command(Command.Verb.MSG, start);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void counterContended() {
+        Metrics.TCP.in();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void timedCommandContended() {
+        long start = Metrics.start();
+        Metrics.TCP.in();
+        Metrics.TCP.command(Command.Verb.MSG, start);
+    }
+}
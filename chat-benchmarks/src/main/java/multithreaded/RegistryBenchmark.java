@@ -0,0 +1,51 @@
+package multithreaded;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Sender-side cost of fan-out: encoding plus one mailbox offer per recipient. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    int recipients;
+
+    private final ClientRegistry registry = ClientRegistry.getInstance();
+    private final List<ClientConnection> connections = new ArrayList<>();
+    private String[] names;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        names = new String[recipients];
+        for (int i = 0; i < recipients; i++) {
+            names[i] = "bench-" + i;
+            connections.add(registry.addTcp(names[i], new BenchSinks.NullLineWriter(), () -> {}));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connections.forEach(registry::remove);
+        connections.clear();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        registry.broadcast("[ALL from bench] the quick brown fox jumps over the lazy dog");
+    }
+
+    @Benchmark
+    public boolean sendToUser() {
+        String to = names[next++ % names.length];
+        return registry.sendToUser(to, "[PM from bench] the quick brown fox jumps over the lazy dog");
+    }
+}
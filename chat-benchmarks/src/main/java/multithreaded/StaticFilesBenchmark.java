@@ -0,0 +1,69 @@
+package multithreaded;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/** /files request handling for a small text asset and a multi-megabyte binary, from a temp directory (cached / streamed). */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StaticFilesBenchmark {
+
+    @Param({"small.css", "large.bin"})
+    String file;
+
+    private Path dir;
+    private StaticFiles staticFiles;
+    private final InMemoryHttp http = new InMemoryHttp();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("chat-bench-files");
+        Files.writeString(dir.resolve("small.css"), "body { margin: 0; color: #333; }\n".repeat(32));
+        byte[] large = new byte[8 * 1024 * 1024];
+        new Random(42).nextBytes(large);
+        Files.write(dir.resolve("large.bin"), large);
+        staticFiles = new StaticFiles(dir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long get() throws IOException {
+        http.request("GET", "/files/" + file);
+        staticFiles.handle(http.request, http.response);
+        return http.bodyBytes();
+    }
+
+    @Benchmark
+    public long getGzip() throws IOException {
+        http.request("GET", "/files/" + file).header("Accept-Encoding", "gzip, deflate");
+        staticFiles.handle(http.request, http.response);
+        return http.bodyBytes();
+    }
+
+    @Benchmark
+    public int ifNoneMatch() throws IOException {
+        http.request("GET", "/files/" + file);
+        staticFiles.handle(http.request, http.response);
+        String etag = http.responseHeader("ETag");
+        http.request("GET", "/files/" + file).header("If-None-Match", etag);
+        staticFiles.handle(http.request, http.response);
+        return http.status();
+    }
+}
@@ -0,0 +1,55 @@
+package multithreaded;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Cost of reading the user list, with and without a login/logout in between. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UsernamesBenchmark {
+
+    @Param({"100", "10000"})
+    int users;
+
+    private final ClientRegistry registry = ClientRegistry.getInstance();
+    private final List<ClientConnection> connections = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int i = 0; i < users; i++) {
+            connections.add(registry.addTcp("user-" + i, new BenchSinks.NullLineWriter(), () -> {}));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connections.forEach(registry::remove);
+        connections.clear();
+    }
+
+    @Benchmark
+    public Set<String> usernames() {
+        return registry.usernames();
+    }
+
+    @Benchmark
+    public String usersReply() {
+        return registry.usersReply();
+    }
+
+    /** Presence changed since the last read, so the snapshot is rebuilt. */
+    @Benchmark
+    public Set<String> usernamesAfterChurn() {
+        ClientConnection c = registry.addTcp("churn", new BenchSinks.NullLineWriter(), () -> {});
+        registry.remove(c);
+        return registry.usernames();
+    }
+}
@@ -4,7 +4,9 @@
 // Endpoints
 const METRICS_URL = 'http://localhost:9000/metrics';
 // And keep:
-const makeWsUrl = (name) => `ws://localhost:8080/chat/${encodeURIComponent(name)}`;
+// batch=1: the server packs the messages of one flush into a binary frame of newline-terminated lines
+const makeWsUrl = (name) => `ws://localhost:8080/chat/${encodeURIComponent(name)}?batch=1`;
+const utf8 = new TextDecoder();
 
 
 // State
@@ -54,13 +56,18 @@ function connectWS(name){
 
   const url = makeWsUrl(name);
   ws = new WebSocket(url);
+  ws.binaryType = 'arraybuffer';
 
   ws.onopen = () => {
     setWsStatus(true);
     log(`WebSocket connected as ${name}`);
+    ws.send('/history 50'); // catch up on what was said while away
   };
 
-  ws.onmessage = (e) => log(e.data);
+  ws.onmessage = (e) => {
+    if (typeof e.data === 'string') return log(e.data);
+    for (const line of utf8.decode(e.data).split('\n')) if (line) log(line);
+  };
 
   ws.onclose = () => {
     setWsStatus(false);
@@ -92,7 +99,7 @@ function refreshUsers(){
         ? pmUsers.map(u => `<option value="${u}">${u}</option>`).join('')
         : '<option value="" disabled>(no users)</option>';
 
-    userCountEl.textContent = `${users.length} active`;
+    userCountEl.textContent = `${j.usersTotal ?? users.length} active`;
   }).catch(() => {});
 }
 
@@ -0,0 +1,147 @@
+package multithreaded;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control for TCP clients, shared by every engine: a per-IP connection cap, and for the worker pool,
+ * shedding with {@code ERR BUSY} when its queue is full or a client waited too long for a worker. Shedding writes
+ * one short line and closes, so the accept thread never runs client work. {@link #watch} optionally sizes the
+ * pool from how long the oldest queued client has been waiting.
+ */
+final class Admission {
+    // 0 = no cap
+    static final int MAX_PER_IP = Integer.getInteger("chat.tcp.maxPerIp", 64);
+    // a client still waiting for a pool worker after this long is turned away
+    static final long MAX_QUEUE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.tcp.maxQueueWaitMs", 5000));
+    private static final byte[] BUSY = "ERR BUSY\n".getBytes(StandardCharsets.US_ASCII);
+    private static final long WATCH_INTERVAL_MS = 500;
+
+    static final Admission TCP = new Admission();
+
+    private final ConcurrentHashMap<InetAddress, Integer> perIp = new ConcurrentHashMap<>(); // entries > 0 only
+
+    private Admission() {}
+
+    /** Counts a new connection from {@code ip}; false (nothing counted) once it already has {@link #MAX_PER_IP}. */
+    boolean admit(InetAddress ip) {
+        if (MAX_PER_IP <= 0 || ip == null) return true;
+        int[] before = new int[1];
+        perIp.compute(ip, (k, n) -> {
+            before[0] = n == null ? 0 : n;
+            return before[0] < MAX_PER_IP ? before[0] + 1 : n;
+        });
+        if (before[0] < MAX_PER_IP) return true;
+        Metrics.shedPerIp.increment();
+        return false;
+    }
+
+    /** Ends a connection {@link #admit} let in. */
+    void release(InetAddress ip) {
+        if (MAX_PER_IP <= 0 || ip == null) return;
+        perIp.computeIfPresent(ip, (k, n) -> n <= 1 ? null : n - 1);
+    }
+
+    int trackedIps() { return perIp.size(); }
+
+    /** Best effort: tell the client and close. The line fits any fresh socket's send buffer, so it doesn't block. */
+    static void busy(Socket socket) {
+        try (socket) { socket.getOutputStream().write(BUSY); } catch (IOException ignored) {}
+    }
+
+    static void busy(SocketChannel channel) {
+        try (channel) { channel.write(ByteBuffer.wrap(BUSY)); } catch (IOException ignored) {}
+    }
+
+    /** An accepted client waiting for a pool worker; runs its session, or sheds it if it waited too long. */
+    static final class Ticket implements Runnable {
+        final Socket socket;
+        final long queuedAt = System.nanoTime();
+        private final InetAddress ip;
+        private final Runnable session;
+
+        Ticket(Socket socket, Runnable session) {
+            this.socket = socket;
+            this.ip = socket.getInetAddress();
+            this.session = session;
+        }
+
+        @Override
+        public void run() {
+            long waited = System.nanoTime() - queuedAt;
+            Metrics.tcpQueueWait.record(waited);
+            if (waited > MAX_QUEUE_WAIT_NANOS) {
+                Metrics.shedQueueWait.increment();
+                shed();
+                return;
+            }
+            try {
+                session.run();
+            } finally {
+                TCP.release(ip);
+            }
+        }
+
+        /** Called by the pool's rejection handler (queue full) on the accept thread, or for a stale ticket. */
+        void shed() {
+            busy(socket);
+            TCP.release(ip);
+        }
+    }
+
+    /**
+     * Watches {@code pool} twice a second. Clients queued longer than {@link #MAX_QUEUE_WAIT_NANOS} are shed right
+     * away rather than when a worker frees up: workers serve one client for its whole session, so that could take
+     * arbitrarily long. With {@code max > min} it also resizes the pool between them, growing by a quarter while the
+     * oldest queued client has waited longer than {@code targetWaitMs}, shrinking by an eighth while most workers are
+     * idle and nothing is queued. The maximum moves with the core, so the executor never adds workers of its own
+     * beyond the size chosen here.
+     */
+    static void watch(ThreadPoolExecutor pool, int min, int max, long targetWaitMs) {
+        long target = TimeUnit.MILLISECONDS.toNanos(targetWaitMs);
+        Thread t = new Thread(() -> {
+            List<Ticket> stale = new ArrayList<>();
+            while (true) {
+                try { Thread.sleep(WATCH_INTERVAL_MS); } catch (InterruptedException e) { return; }
+                long now = System.nanoTime();
+                pool.getQueue().removeIf(r -> r instanceof Ticket ticket && now - ticket.queuedAt > MAX_QUEUE_WAIT_NANOS
+                        && stale.add(ticket));
+                for (Ticket ticket : stale) {
+                    Metrics.tcpQueueWait.record(now - ticket.queuedAt);
+                    Metrics.shedQueueWait.increment();
+                    ticket.shed();
+                }
+                stale.clear();
+                if (max <= min) continue;
+
+                int core = pool.getCorePoolSize();
+                long oldest = pool.getQueue().peek() instanceof Ticket ticket ? now - ticket.queuedAt : 0;
+                int size = core;
+                if (oldest > target && core < max) {
+                    size = Math.min(max, core + Math.max(1, core / 4));
+                } else if (oldest == 0 && pool.getActiveCount() < core / 2 && core > min) {
+                    size = Math.max(min, core - Math.max(1, core / 8));
+                }
+                if (size == core) continue;
+                // the maximum is raised first and lowered last: the core may never exceed it
+                if (size > core) pool.setMaximumPoolSize(size);
+                pool.setCorePoolSize(size); // a larger core starts workers for what is queued right away
+                if (size < core) pool.setMaximumPoolSize(size);
+                Metrics.poolResizes.increment();
+                System.out.println("[TCP] Pool resized " + core + " -> " + size + " (oldest queued client waited "
+                        + TimeUnit.NANOSECONDS.toMillis(oldest) + " ms, " + pool.getActiveCount() + " active)");
+            }
+        }, "tcp-admission");
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -0,0 +1,61 @@
+package multithreaded;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Length-prefixed binary framing for TCP clients, entered with {@code PROTO BIN} before LOGIN. A frame is a
+ * big-endian u32 payload length followed by one or more records, each
+ * {@code op:u8, argLen:u16, arg, bodyLen:u32, body} with UTF-8 strings. Bodies may contain newlines, and a
+ * client can batch many commands into one frame; the server answers each frame with one frame of REPLY records.
+ */
+final class BinaryProtocol {
+    static final int MAX_FRAME = Integer.getInteger("chat.bin.maxFrame", 1 << 20);
+    static final int FRAME_HEADER = 4;
+    static final int RECORD_HEADER = 7;
+
+    // client -> server; arg is the name / recipient / room, body the message text (HISTORY: arg count, body room)
+    static final byte LOGIN = 1, MSG = 2, BROADCAST = 3, USERS = 4, JOIN = 5, LEAVE = 6, ROOMMSG = 7, QUIT = 8, HISTORY = 9,
+            PING = 10, PONG = 11;
+    // server -> client; body is the text a line-mode client would get, arg is empty
+    static final byte REPLY = (byte) 0x81, EVENT = (byte) 0x82;
+
+    private static final Command.Verb[] VERBS = { Command.Verb.UNKNOWN, Command.Verb.LOGIN, Command.Verb.MSG,
+            Command.Verb.BROADCAST, Command.Verb.USERS, Command.Verb.JOIN, Command.Verb.LEAVE,
+            Command.Verb.ROOMMSG, Command.Verb.QUIT, Command.Verb.HISTORY, Command.Verb.PING, Command.Verb.PONG };
+
+    private BinaryProtocol() {}
+
+    static Command.Verb verb(int op) {
+        return op > 0 && op < VERBS.length ? VERBS[op] : Command.Verb.UNKNOWN;
+    }
+
+    /**
+     * Fills {@code into} with one frame holding an {@code op} record per message: the frame and record headers
+     * share one small array, the bodies are views of the shared payloads. Returns the frame's size in bytes;
+     * it occupies {@code 2 * count} buffers from {@code into[at]}.
+     */
+    static long frame(byte op, EncodedMessage[] batch, int count, ByteBuffer[] into, int at) {
+        byte[] headers = new byte[FRAME_HEADER + count * RECORD_HEADER];
+        ByteBuffer h = ByteBuffer.wrap(headers);
+        h.position(FRAME_HEADER);
+        long length = 0;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer body = batch[i].payload();
+            int start = i == 0 ? 0 : h.position();
+            h.put(op).putShort((short) 0).putInt(body.remaining());
+            into[at + 2 * i] = ByteBuffer.wrap(headers, start, h.position() - start);
+            into[at + 2 * i + 1] = body;
+            length += RECORD_HEADER + body.remaining();
+        }
+        h.putInt(0, (int) length);
+        return FRAME_HEADER + length;
+    }
+
+    static int u16(byte[] b, int i) {
+        return (b[i] & 0xFF) << 8 | b[i + 1] & 0xFF;
+    }
+
+    static int i32(byte[] b, int i) {
+        return b[i] << 24 | (b[i + 1] & 0xFF) << 16 | (b[i + 2] & 0xFF) << 8 | b[i + 3] & 0xFF;
+    }
+}
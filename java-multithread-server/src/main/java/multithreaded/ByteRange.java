@@ -0,0 +1,47 @@
+package multithreaded;
+
+/** One byte range of a file, {@code [start, end)}, as asked for by an HTTP Range header or a GETFILE offset. */
+final class ByteRange {
+    /** Marker for a syntactically valid range that starts past the end of the file (416). */
+    static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+    final long start, end;
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long length() { return end - start; }
+
+    /** Value for a 206 response's Content-Range header. */
+    String contentRange(long size) {
+        return "bytes " + start + "-" + (end - 1) + "/" + size;
+    }
+
+    /**
+     * Parses a single-range {@code bytes=} header against a file of {@code size} bytes: null when the header is
+     * absent, malformed or asks for several ranges (the whole file is sent then), else the clamped range.
+     */
+    static ByteRange parse(String header, long size) {
+        if (header == null || !header.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0) return null;
+        try {
+            if (dash == 0) { // suffix: the last N bytes
+                long n = Long.parseLong(spec.substring(1).trim());
+                if (n <= 0 || size == 0) return UNSATISFIABLE; // an empty file has no last byte to send
+                return new ByteRange(Math.max(0, size - n), size);
+            }
+            long start = Long.parseLong(spec.substring(0, dash).trim());
+            String last = spec.substring(dash + 1).trim();
+            long lastPos = last.isEmpty() ? size - 1 : Long.parseLong(last);
+            if (start >= size) return UNSATISFIABLE;
+            if (lastPos < start) return null;
+            return new ByteRange(start, Math.min(size, lastPos + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
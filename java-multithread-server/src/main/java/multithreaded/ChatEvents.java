@@ -0,0 +1,76 @@
+package multithreaded;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder events for the places a latency spike can hide: command handling, fan-out and the transport
+ * write behind each mailbox drain. Callers {@code begin()} an event, do the work, {@code end()} it (before that its
+ * duration is zero), and fill in and commit it only if {@code shouldCommit()}: false unless a recording has the
+ * event on and it ran past its threshold, so with no recording an event is a dead allocation the JIT removes and
+ * no field (verb name, user) is ever set.
+ * Dashboard recordings ({@link Profiler}) override the default thresholds.
+ */
+final class ChatEvents {
+    private ChatEvents() {}
+
+    @Name("chat.Command")
+    @Label("Chat Command")
+    @Category("Chat")
+    @Description("One client command, from parsed line to reply")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class CommandEvent extends Event {
+        @Label("Transport") String transport;
+        @Label("Command") String command;
+        @Label("User") String user;
+    }
+
+    @Name("chat.Fanout")
+    @Label("Chat Fan-out")
+    @Category("Chat")
+    @Description("A broadcast or room post offered to every local recipient's mailbox")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class FanoutEvent extends Event {
+        @Label("Kind") String kind;
+        @Label("Recipients") int recipients;
+    }
+
+    @Name("chat.Send")
+    @Label("Chat Send")
+    @Category("Chat")
+    @Description("Messages a mailbox handed to its transport in one step; long ones are blocked socket writes")
+    @Threshold("10 ms")
+    @StackTrace(false)
+    static final class SendEvent extends Event {
+        @Label("Transport") String transport;
+        @Label("User") String user;
+        @Label("Messages") int messages;
+    }
+
+    static void command(CommandEvent event, Metrics.Transport transport, Command.Verb verb, ClientConnection conn) {
+        event.transport = transport.name;
+        event.command = verb.name();
+        event.user = conn == null ? null : conn.username();
+        event.commit();
+    }
+
+    static void fanout(FanoutEvent event, String kind, int recipients) {
+        event.kind = kind;
+        event.recipients = recipients;
+        event.commit();
+    }
+
+    static void send(SendEvent event, String transport, String user, int messages) {
+        event.transport = transport;
+        event.user = user;
+        event.messages = messages;
+        event.commit();
+    }
+}
@@ -1,24 +1,81 @@
 package multithreaded;
 
-import java.net.ServerSocket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.time.Duration;
+import java.net.StandardSocketOptions;
 import java.util.concurrent.*;
+import java.util.function.ObjIntConsumer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Paths;
 
 public class ChatServer {
 
+    // -Dchat.tcp.acceptors: accept threads, each on its own SO_REUSEPORT listener where the OS has the option
+    // (Linux), so the kernel spreads a reconnect storm over several accept queues; -Dchat.tcp.backlog sizes each
+    static final int ACCEPTORS = Math.max(1, Integer.getInteger("chat.tcp.acceptors", 1));
+    static final int BACKLOG = Integer.getInteger("chat.tcp.backlog", 1024);
+    static volatile boolean reusePort;
+
     private final int port;
-    private final ServerSocket serverSocket;
-    private final ThreadPoolExecutor executor;
+    private final ServerSocketChannel[] listeners;
+    private final ExecutorService executor;
     private final ClientRegistry registry;
 
     public ChatServer(int port, int poolSize, int queueSize) throws Exception {
+        this(port, boundedPool(poolSize, queueSize));
+    }
+
+    public ChatServer(int port, ExecutorService executor) throws Exception {
         this.port = port;
-        this.serverSocket = new ServerSocket(port);
-        this.serverSocket.setSoTimeout((int) Duration.ofSeconds(10000).toMillis());
+        // channels, so accepted sockets expose a SocketChannel for gathering writes
+        this.listeners = listen(port);
+        this.executor = executor;
+        this.registry = ClientRegistry.getInstance();
+    }
+
+    /**
+     * One listening channel per acceptor (shared by both TCP engines). Without SO_REUSEPORT the acceptors all
+     * block in accept() on the same channel, which still keeps them off each other's registration work.
+     */
+    static ServerSocketChannel[] listen(int port) throws IOException {
+        ServerSocketChannel[] channels = new ServerSocketChannel[ACCEPTORS];
+        channels[0] = ServerSocketChannel.open();
+        reusePort = ACCEPTORS > 1 && channels[0].supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        for (int i = 0; i < ACCEPTORS; i++) {
+            if (i > 0 && !reusePort) {
+                channels[i] = channels[0];
+                continue;
+            }
+            if (i > 0) channels[i] = ServerSocketChannel.open();
+            if (reusePort) channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            channels[i].bind(new InetSocketAddress(port), BACKLOG);
+        }
+        return channels;
+    }
+
+    /** Runs acceptor 0 on the calling thread and the rest on their own. */
+    static void startAcceptors(ServerSocketChannel[] listeners, ObjIntConsumer<ServerSocketChannel> acceptLoop) {
+        for (int i = 1; i < listeners.length; i++) {
+            int id = i;
+            Thread t = new Thread(() -> acceptLoop.accept(listeners[id], id), "tcp-acceptor-" + id);
+            t.start();
+        }
+        acceptLoop.accept(listeners[0], 0);
+    }
 
-        this.executor = new ThreadPoolExecutor(
+    static String describeListeners() {
+        return ACCEPTORS + (ACCEPTORS == 1 ? " acceptor" : " acceptors" + (reusePort ? " (SO_REUSEPORT)" : " (one shared socket)"))
+                + ", backlog " + BACKLOG;
+    }
+
+    /**
+     * Fixed-size workers over a bounded queue. A client the queue has no room for is answered {@code ERR BUSY}
+     * and closed on the accept thread, which never runs a session itself.
+     */
+    static ThreadPoolExecutor boundedPool(int poolSize, int queueSize) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
                 poolSize, poolSize,
                 60L, TimeUnit.SECONDS,
                 new ArrayBlockingQueue<>(queueSize),
@@ -31,37 +88,124 @@ public class ChatServer {
                         return t;
                     }
                 },
-                new ThreadPoolExecutor.CallerRunsPolicy()
+                (r, executor) -> {
+                    Metrics.tcpRejections.increment();
+                    if (r instanceof Admission.Ticket ticket) ticket.shed();
+                    else throw new RejectedExecutionException("TCP pool full");
+                }
         );
-        this.registry = ClientRegistry.getInstance();
+        Metrics.watch(pool);
+        return pool;
+    }
+
+    /**
+     * One virtual thread per client (JDK 21+). Looked up reflectively so the default
+     * release-17 build still compiles; fails fast on older runtimes.
+     */
+    static ExecutorService virtualThreadPerTask() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads need JDK 21+, running on " + Runtime.version(), e);
+        }
     }
 
     public void start() {
-        System.out.println("[TCP] Listening on port " + port);
+        System.out.println("[TCP] Listening on port " + port + ", " + describeListeners());
+        startAcceptors(listeners, this::acceptLoop);
+    }
+
+    // accepting only: the welcome line and everything after it happen on the client's worker
+    private void acceptLoop(ServerSocketChannel listener, int id) {
         while (true) {
+            Socket socket;
             try {
-                Socket socket = serverSocket.accept();
-                executor.execute(new ClientHandler(socket, registry));
-            } catch (Exception e) {
-                // accept timeout or other I/O errors ignored for loop continuity
+                SocketChannel ch = listener.accept();
+                socket = ch.socket();
+            } catch (IOException e) {
+                if (!listener.isOpen()) return;
+                acceptFailed("[TCP]", e);
+                continue;
             }
+            Metrics.accepted(id);
+            if (!Admission.TCP.admit(socket.getInetAddress())) {
+                Admission.busy(socket);
+                continue;
+            }
+            executor.execute(new Admission.Ticket(socket, new ClientHandler(socket, registry)));
+        }
+    }
+
+    private static volatile long lastAcceptError;
+
+    /**
+     * Counts and logs (at most once a second) a failed accept, then backs off briefly: the usual cause is running
+     * out of file descriptors, and retrying at once would only spin.
+     */
+    static void acceptFailed(String tag, IOException e) {
+        Metrics.TCP.acceptErrors.increment();
+        long now = System.currentTimeMillis();
+        if (now - lastAcceptError >= 1000) {
+            lastAcceptError = now;
+            System.err.println(tag + " accept failed (" + Metrics.TCP.acceptErrors.sum() + " so far): " + e);
         }
+        try { Thread.sleep(10); } catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
     }
 
     public void shutdown() {
         executor.shutdownNow();
         registry.closeAll();
-        try { serverSocket.close(); } catch (Exception ignored) {}
+        for (ServerSocketChannel l : listeners) {
+            try { l.close(); } catch (Exception ignored) {}
+        }
     }
 
     public static void main(String[] args) throws Exception {
-        int tcpPort = 8081;
+        // -Dchat.tcp.port / chat.http.port / chat.dashboard.port, so several nodes can share one host
+        int tcpPort = Integer.getInteger("chat.tcp.port", 8081);
+        int httpPort = Integer.getInteger("chat.http.port", 8080);
+        int dashboardPort = Integer.getInteger("chat.dashboard.port", 9000);
+        // -Dchat.tcp.engine=pool (default) | virtual (JDK 21+) | nio (-Dchat.nio.loops=N event loops)
+        String engine = System.getProperty("chat.tcp.engine", "pool");
+        int poolSize = Integer.getInteger("chat.pool.size", 32);
+        int queueSize = Integer.getInteger("chat.pool.queue", 512);
+
+        // resolve the executor first so a bad engine choice fails before any port is opened
+        ExecutorService clients = null;
+        if ("virtual".equalsIgnoreCase(engine)) {
+            clients = virtualThreadPerTask();
+        } else if (!"nio".equalsIgnoreCase(engine)) {
+            ThreadPoolExecutor pool = boundedPool(poolSize, queueSize);
+            // -Dchat.pool.adaptive=true grows the pool up to -Dchat.pool.max while queued clients wait longer than
+            // -Dchat.pool.targetWaitMs, and shrinks it back to chat.pool.size when workers sit idle
+            int max = Boolean.getBoolean("chat.pool.adaptive") ? Integer.getInteger("chat.pool.max", poolSize * 8) : poolSize;
+            Admission.watch(pool, poolSize, max, Long.getLong("chat.pool.targetWaitMs", 100));
+            clients = pool;
+        }
 
-        ChatServer server = new ChatServer(tcpPort, 32, 512);
+        // -Dchat.log.dir=data/log (default) persists delivered messages for HISTORY; -Dchat.log.enabled=false turns it off
+        MessageLog log = MessageLog.fromProperties();
+        if (log != null) {
+            ClientRegistry.getInstance().useLog(log);
+            System.out.println("[Log] Message log in " + log.dir.toAbsolutePath());
+        }
+
+        // -Dchat.cluster.port=N -Dchat.cluster.peers=host:port,... joins the other nodes; unset runs alone
+        Cluster cluster = Cluster.fromProperties(ClientRegistry.getInstance());
+        if (cluster != null) {
+            ClientRegistry.getInstance().useCluster(cluster);
+            cluster.start();
+        }
 
-        DashboardServer.startHttp(9000);
-        WebSocketBootstrap.start(8080, Paths.get("public"));
-        server.start();
+        WebSocketBootstrap.start(httpPort, dashboardPort, Paths.get("public"));
 
+        if (clients == null) {
+            int loops = Integer.getInteger("chat.nio.loops", Runtime.getRuntime().availableProcessors());
+            new NioChatServer(tcpPort, loops).start();
+        } else {
+            System.out.println("[TCP] Client executor: " + ("virtual".equalsIgnoreCase(engine)
+                    ? "virtual thread per client" : poolSize + " threads, queue " + queueSize));
+            new ChatServer(tcpPort, clients).start();
+        }
     }
 }
@@ -0,0 +1,22 @@
+package multithreaded;
+
+/** Transport-agnostic handle for one logged-in user: everything is sent through its mailbox. */
+final class ClientConnection {
+    private final String username;
+    private final String transport;
+    private final Outbox outbox;
+
+    ClientConnection(String username, String transport, Outbox.Sink sink) {
+        this.username = username;
+        this.transport = transport;
+        this.outbox = new Outbox(username, transport, sink);
+    }
+
+    String username() { return username; }
+    String transport() { return transport; }
+    Outbox outbox() { return outbox; }
+
+    boolean send(EncodedMessage message) { return outbox.offer(message); }
+
+    void disconnect() { outbox.disconnect(); }
+}
@@ -2,12 +2,10 @@ package multithreaded;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.Locale;
 
 public class ClientHandler implements Runnable {
     private final Socket socket;
     private final ClientRegistry registry;
-    private String username = null;
 
     public ClientHandler(Socket socket, ClientRegistry registry) {
         this.socket = socket;
@@ -16,71 +14,27 @@ public class ClientHandler implements Runnable {
 
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(
-                    new OutputStreamWriter(socket.getOutputStream()), true)) {
-
-            out.println("WELCOME. Commands: LOGIN <name>, MSG <to> <text>, BROADCAST <text>, USERS, QUIT, GETFILE <path>");
-
-            String line;
-            while ((line = in.readLine()) != null) {
-                String resp = handle(line, out);
-                if (resp != null) out.println(resp);
-                if ("BYE".equals(resp)) break;
+        TcpSession session = null;
+        try (InputStream in = Metrics.TCP.countBytes(socket.getInputStream())) {
+
+            LineWriter out = new LockedLineWriter(socket.getChannel());
+            session = new TcpSession(registry, out, () -> {
+                try { socket.close(); } catch (IOException ignored) {}
+            });
+            TcpDecoder decoder = new TcpDecoder(session, out);
+            out.println(TcpSession.WELCOME);
+            out.flush();
+
+            // raw bytes, not a Reader: lines are parsed in place and PROTO BIN can switch to frames mid-read
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                if (!decoder.feed(buf, 0, n)) break;
             }
         } catch (IOException ignored) {
         } finally {
-            if (username != null) {
-                registry.removeTcp(username);
-            }
+            if (session != null) session.logout();
             try { socket.close(); } catch (IOException ignored) {}
         }
     }
-
-    private String handle(String input, PrintWriter out) {
-        String[] parts = input.trim().split("\\s+", 3);
-        if (parts.length == 0) return "ERR Empty";
-
-        String cmd = parts[0].toUpperCase(Locale.ROOT);
-
-        switch (cmd) {
-            case "LOGIN": {
-                if (parts.length < 2) return "ERR Usage: LOGIN <name>";
-                String name = parts[1];
-                if (registry.addTcp(name, out)) {
-                    this.username = name;
-                    return "OK Logged in as " + name;
-                } else {
-                    return "ERR Username taken";
-                }
-            }
-            case "MSG": {
-                if (username == null) return "ERR Login first";
-                if (parts.length < 3) return "ERR Usage: MSG <to> <text>";
-                String to = parts[1];
-                String msg = parts.length == 3 ? parts[2] : "";
-                boolean sent = registry.sendToUser(to, "[PM from " + username + "] " + msg);
-                return sent ? "OK" : "ERR user not found";
-            }
-            case "BROADCAST": {
-                if (username == null) return "ERR Login first";
-                String msg = parts.length >= 2 ? input.substring("BROADCAST".length()).trim() : "";
-                registry.broadcast("[ALL from " + username + "] " + msg);
-                return "OK";
-            }
-            case "USERS": {
-                return "USERS " + registry.usernames();
-            }
-            case "GETFILE": {
-                if (parts.length < 2) return "ERR Usage: GETFILE <relative-path>";
-                return StaticFileReader.readTextFromPublic(parts[1], out);
-            }
-            case "QUIT": {
-                return "BYE";
-            }
-            default:
-                return "ERR Unknown command";
-        }
-    }
 }
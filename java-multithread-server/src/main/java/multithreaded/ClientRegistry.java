@@ -1,65 +1,345 @@
 package multithreaded;
 
-import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ClientRegistry {
     private static final ClientRegistry INSTANCE = new ClientRegistry();
     public static ClientRegistry getInstance() { return INSTANCE; }
 
-    private final ConcurrentHashMap<String, PrintWriter> tcpClients = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, WsSessionBridge> wsClients = new ConcurrentHashMap<>();
+    /** What became of a private message. */
+    enum Delivery {
+        SENT, STORED, INBOX_FULL, NO_USER;
 
-    public boolean addTcp(String username, PrintWriter out) {
-        return tcpClients.putIfAbsent(username, out) == null;
+        boolean accepted() { return this == SENT || this == STORED; }
+
+        /** The protocol reply to the sender of a PM for {@code to}. */
+        String reply(String to) {
+            return switch (this) {
+                case SENT -> "OK";
+                case STORED -> "OK Stored for " + to;
+                case INBOX_FULL -> "ERR Inbox full for " + to;
+                case NO_USER -> "ERR user not found";
+            };
+        }
     }
-    public void removeTcp(String username) {
-        tcpClients.remove(username);
+
+    /** Longest user or room name, in chars; names ride in cluster record headers. */
+    static final int MAX_NAME = 64;
+
+    private static final int INBOX_STRIPES = 64; // power of two
+
+    // one presence map for TCP and WS; every client is reached through its own bounded mailbox
+    private final Presence presence = new Presence();
+    private final RoomIndex rooms = new RoomIndex();
+    private volatile MessageLog log; // delivered messages are appended after fan-out; null = not persisted
+    private volatile Cluster cluster; // null = this node runs alone
+    // a PM for an offline user is stored, and a login takes the inbox, under the name's stripe: nothing is stranded
+    private final ReentrantLock[] inboxStripes = new ReentrantLock[INBOX_STRIPES];
+
+    {
+        for (int i = 0; i < INBOX_STRIPES; i++) inboxStripes[i] = new ReentrantLock();
+    }
+
+    /** Returns the new connection handle, or null if the name is taken on any transport. */
+    ClientConnection addTcp(String username, LineWriter out, Runnable disconnect) {
+        ClientConnection conn = new ClientConnection(username, "tcp", new Outbox.Sink() {
+            @Override public void deliver(EncodedMessage[] batch, int count) { out.write(batch, count); }
+            @Override public void flush() { out.flush(); }
+            @Override public long flushDelayNanos() { return out.flushDelayNanos(); }
+            @Override public void disconnect() { disconnect.run(); }
+            @Override public boolean ready() { return out.writable(); }
+            @Override public boolean blocking() { return out.blocking(); }
+        });
+        if (!login(conn)) return null;
+        out.onWritable(conn.outbox()::resume);
+        return conn;
     }
 
-    public boolean addWs(String username, WsSessionBridge bridge) {
-        return wsClients.putIfAbsent(username, bridge) == null;
+    ClientConnection addWs(String username, WsSessionBridge bridge) {
+        ClientConnection conn = new ClientConnection(username, "ws", new Outbox.Sink() {
+            @Override public void deliver(EncodedMessage[] batch, int count) { bridge.send(batch, count); }
+            @Override public void flush() { bridge.flush(); }
+            @Override public long flushDelayNanos() { return bridge.flushDelayNanos(); }
+            @Override public void disconnect() { bridge.close(); }
+            @Override public boolean ready() { return bridge.writable(); }
+        });
+        if (!login(conn)) return null;
+        bridge.onWritable(conn.outbox()::resume);
+        return conn;
     }
-    public void removeWs(String username) {
-        wsClients.remove(username);
+
+    /** Claims the name for the whole cluster: refused if it is online here or on a peer. */
+    private boolean login(ClientConnection conn) {
+        Cluster c = cluster;
+        if (c != null && c.owner(conn.username()) != null) return false;
+        if (!presence.add(conn)) return false;
+        if (c != null) c.announce(Cluster.ONLINE, conn.username());
+        return true;
+    }
+
+    public void remove(ClientConnection conn) {
+        if (conn != null && presence.remove(conn)) {
+            conn.outbox().close(); // first: a JOIN racing with this sees it and undoes itself
+            rooms.leaveAll(conn.outbox());
+            Cluster c = cluster;
+            if (c != null) c.announce(Cluster.OFFLINE, conn.username());
+        }
+    }
+
+    ClientConnection find(String username) { return presence.get(username); }
+
+    public boolean sendToUser(String username, String text) {
+        return sendToUser(null, username, EncodedMessage.of(text)).accepted();
+    }
+
+    /**
+     * Delivers a PM, hands it to the peer node the recipient is on, or stores it in their offline inbox (kept in
+     * the message log) until their next login. {@code from} (may be null) is only recorded in the log, so the PM
+     * shows up in the sender's history too.
+     */
+    Delivery sendToUser(String from, String username, EncodedMessage message) {
+        return sendToUser(from, username, message, cluster);
     }
 
-    public boolean sendToUser(String username, String message) {
-        boolean ok = false;
-        PrintWriter out = tcpClients.get(username);
-        if (out != null) {
-            out.println(message);
-            ok = true;
+    /** {@code c} is null for a PM a peer relayed: it is delivered or stored here, never forwarded again. */
+    private Delivery sendToUser(String from, String username, EncodedMessage message, Cluster c) {
+        ClientConnection conn = presence.get(username);
+        if (conn == null && (c == null || !c.forward(from, username, message))) {
+            MessageLog l = log;
+            if (l == null) return Delivery.NO_USER;
+            ReentrantLock lock = inboxStripe(username);
+            // a peer that got the user in the meantime is tried once more, outside the stripe
+            boolean retry = c != null;
+            while (conn == null) {
+                lock.lock();
+                try {
+                    // a login from here on, here or on a peer, takes the inbox after us
+                    conn = presence.get(username);
+                    if (conn == null && (!retry || c.owner(username) == null)) {
+                        return l.store(from, username, message) ? Delivery.STORED : Delivery.INBOX_FULL;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                retry = false;
+                if (conn == null && c.forward(from, username, message)) break;
+            }
         }
-        WsSessionBridge ws = wsClients.get(username);
-        if (ws != null) {
-            ws.send(message);
-            ok = true;
+        if (conn != null) {
+            conn.send(message);
+            Metrics.fanout(Metrics.privateMessages, 1);
         }
-        return ok;
+        MessageLog l = log;
+        if (l != null) l.append(MessageLog.PRIVATE, from, username, message);
+        return Delivery.SENT;
+    }
+
+    void deliverRelayed(String from, String username, EncodedMessage message) {
+        sendToUser(from, username, message, null);
+    }
+
+    /** Writes what was stored for {@code conn} while it was offline straight to its transport, as one batch. */
+    void deliverInbox(ClientConnection conn) {
+        MessageLog l = log;
+        if (l == null) return;
+        EncodedMessage[] stored;
+        ReentrantLock lock = inboxStripe(conn.username());
+        lock.lock();
+        try {
+            stored = l.takeInbox(conn.username());
+        } finally {
+            lock.unlock();
+        }
+        if (stored.length > 0) conn.outbox().deliverNow(stored, stored.length);
+    }
+
+    /** PMs a peer had stored for a user who is online here now; stored again if they already left. */
+    void deliverRelayedInbox(String username, EncodedMessage[] stored) {
+        ClientConnection conn = presence.get(username);
+        if (conn == null) {
+            for (EncodedMessage m : stored) sendToUser(null, username, m, null);
+            return;
+        }
+        conn.outbox().deliverNow(stored, stored.length);
+        MessageLog l = log; // so they show up in HISTORY here too; the sender is only in the text
+        if (l != null) for (EncodedMessage m : stored) l.append(MessageLog.PRIVATE, null, username, m);
+    }
+
+    /**
+     * A peer says {@code username} logged in there: remember where, and hand over what is stored here for them.
+     * If they are online here too (two logins raced), the node with the smaller id keeps its session.
+     */
+    void remoteOnline(Cluster c, String node, String username) {
+        ClientConnection local;
+        ReentrantLock lock = inboxStripe(username);
+        lock.lock();
+        try {
+            local = presence.get(username);
+            if (local != null && c.nodeId.compareTo(node) < 0) return; // the peer drops its session on our ONLINE
+            c.remoteOnline(username, node);
+            if (node.equals(c.owner(username))) handOverInbox(c, node, username);
+        } finally {
+            lock.unlock();
+        }
+        if (local != null) {
+            c.conflicts.increment();
+            local.send(EncodedMessage.of("ERR Username taken on " + node));
+            local.disconnect();
+        }
+    }
+
+    /** A peer just connected: send it the PMs stored here for users who are on it. */
+    void handOverInboxes(Cluster c, String node) {
+        MessageLog l = log;
+        if (l == null) return;
+        for (String username : l.inboxUsers()) {
+            if (!node.equals(c.owner(username))) continue;
+            ReentrantLock lock = inboxStripe(username);
+            lock.lock();
+            try {
+                if (node.equals(c.owner(username))) handOverInbox(c, node, username);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // under the user's stripe; left stored while the peer can't be reached, handOverInboxes sends it on reconnect
+    private void handOverInbox(Cluster c, String node, String username) {
+        MessageLog l = log;
+        if (l == null || !c.connected(node)) return;
+        EncodedMessage[] stored = l.takeInbox(username);
+        if (stored.length > 0) c.sendInbox(node, username, stored);
+    }
+
+    private ReentrantLock inboxStripe(String username) {
+        int h = username.hashCode();
+        return inboxStripes[(h ^ (h >>> 16)) & (INBOX_STRIPES - 1)];
+    }
+
+    public void broadcast(String text) {
+        broadcast(null, EncodedMessage.of(text));
+    }
+
+    void broadcast(EncodedMessage message) {
+        broadcast(null, message);
+    }
+
+    /** Every recipient's mailbox shares the same read-only bytes. */
+    void broadcast(String from, EncodedMessage message) {
+        broadcastRelayed(from, message);
+        Cluster c = cluster;
+        if (c != null) c.relay(null, from, message);
+    }
+
+    /** Delivers to this node's users only (a broadcast from a peer, or the local half of {@link #broadcast}). */
+    void broadcastRelayed(String from, EncodedMessage message) {
+        long start = Metrics.start();
+        ChatEvents.FanoutEvent event = new ChatEvents.FanoutEvent();
+        event.begin();
+        ClientConnection[] all = presence.snapshot().connections;
+        for (ClientConnection conn : all) conn.send(message);
+        Metrics.fanout(Metrics.broadcasts, all.length);
+        event.end();
+        if (event.shouldCommit()) ChatEvents.fanout(event, "broadcast", all.length);
+        if (start != 0) Metrics.broadcastLatency.record(System.nanoTime() - start);
+        MessageLog l = log;
+        if (l != null) l.append(MessageLog.BROADCAST, from, null, message);
+    }
+
+    public boolean joinRoom(String room, ClientConnection member) {
+        return member != null && rooms.join(room, member.outbox());
+    }
+
+    public boolean leaveRoom(String room, ClientConnection member) {
+        return member != null && rooms.leave(room, member.outbox());
+    }
+
+    /**
+     * Posts to room members only; returns the recipient count on this node, or -1 if the sender isn't a member.
+     * Peers deliver the post to their own members of the room.
+     */
+    public int postToRoom(String room, ClientConnection sender, String text) {
+        return postToRoom(room, sender, EncodedMessage.of(text));
     }
 
-    public void broadcast(String message) {
-        tcpClients.values().forEach(w -> w.println(message));
-        wsClients.values().forEach(ws -> ws.send(message));
+    int postToRoom(String room, ClientConnection sender, EncodedMessage message) {
+        if (sender == null || !rooms.isMember(room, sender.outbox())) return -1;
+        int n = postRelayed(room, sender.username(), message);
+        Cluster c = cluster;
+        if (c != null) c.relay(room, sender.username(), message);
+        return n;
     }
 
+    /** Posts to this node's members of the room only; returns their count. */
+    int postRelayed(String room, String from, EncodedMessage message) {
+        ChatEvents.FanoutEvent event = new ChatEvents.FanoutEvent();
+        event.begin();
+        int n = rooms.post(room, message);
+        Metrics.fanout(Metrics.roomPosts, n);
+        event.end();
+        if (event.shouldCommit()) ChatEvents.fanout(event, "room", n);
+        MessageLog l = log;
+        if (l != null) l.append(MessageLog.ROOM, from, room, message);
+        return n;
+    }
+
+    /**
+     * Up to {@code n} logged messages for HISTORY, oldest first: broadcasts and the user's PMs, or with a room
+     * that room's posts. Null if {@code conn} isn't in the room; empty when no log is configured.
+     */
+    EncodedMessage[] history(ClientConnection conn, String room, int n) {
+        if (room != null && !rooms.isMember(room, conn.outbox())) return null;
+        MessageLog l = log;
+        return l == null ? new EncodedMessage[0] : l.history(conn.username(), room, n);
+    }
+
+    void useLog(MessageLog log) { this.log = log; }
+
+    MessageLog log() { return log; }
+
+    void useCluster(Cluster cluster) { this.cluster = cluster; }
+
+    Cluster cluster() { return cluster; }
+
+    RoomIndex rooms() { return rooms; }
+
     public int activeConnections() {
-        return tcpClients.size() + wsClients.size();
+        return presence.size();
     }
 
+    /** Immutable and cached until the next login/logout. */
     public Set<String> usernames() {
-        Set<String> set = ConcurrentHashMap.newKeySet();
-        set.addAll(tcpClients.keySet());
-        set.addAll(wsClients.keySet());
-        return set;
+        return presence.snapshot().names;
+    }
+
+    /** Ready-made reply to the USERS command; lists the whole cluster's users. */
+    String usersReply() {
+        Cluster c = cluster;
+        return c == null ? presence.snapshot().usersReply : c.usersReply(presence.snapshot());
+    }
+
+    /** The current presence snapshot's connections; shared, never modify it. */
+    ClientConnection[] connections() {
+        return presence.snapshot().connections;
+    }
+
+    /** Live mailboxes, for queue depth / drop reporting. */
+    public List<Outbox> outboxes() {
+        List<Outbox> list = new ArrayList<>();
+        for (ClientConnection conn : presence.snapshot().connections) list.add(conn.outbox());
+        return list;
     }
 
     public void closeAll() {
-        tcpClients.values().forEach(w -> { try { w.println("SERVER SHUTDOWN"); } catch (Exception ignored) {} });
-        wsClients.values().forEach(ws -> { try { ws.close(); } catch (Exception ignored) {} });
-        tcpClients.clear();
-        wsClients.clear();
+        EncodedMessage bye = EncodedMessage.of("SERVER SHUTDOWN");
+        for (ClientConnection conn : presence.snapshot().connections) {
+            if ("tcp".equals(conn.transport())) conn.send(bye);
+            else conn.disconnect();
+        }
+        presence.clear();
     }
 }
@@ -0,0 +1,599 @@
+package multithreaded;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Joins several server processes into one chat over a small peer protocol. Peers are static
+ * ({@code -Dchat.cluster.peers=host:port,...}; a node skips itself, so every node can share one list). Each node
+ * dials every peer and only writes on that connection, and only reads on the connections peers dial in; frames
+ * and records use the {@link BinaryProtocol} layout.
+ * <p>
+ * Presence is gossiped: logins and logouts are announced, and a (re)connecting node sends its whole user list, so
+ * every node knows where each user is. PMs go to the recipient's node only, broadcasts and room posts to every
+ * peer; whatever is queued for a peer leaves as one frame. Relays are at most once: a record queued for a peer
+ * whose connection breaks is lost.
+ * <p>
+ * The peer port listens on {@code -Dchat.cluster.bind} (loopback by default), and a connection counts only once
+ * both ends have proved they hold {@code -Dchat.cluster.secret}: the dialer's HELLO carries a challenge, the reply
+ * HELLO answers it and carries one back, and the dialer's AUTH answers that. Nothing else is read before AUTH.
+ * The link itself is not encrypted.
+ */
+final class Cluster {
+    static final int MAX_FRAME = Integer.getInteger("chat.cluster.maxFrame", 4 << 20);
+    static final long MAX_PENDING_BYTES = Long.getLong("chat.cluster.maxPendingBytes", 16L << 20);
+    static final long STATS_MS = Long.getLong("chat.cluster.statsSeconds", 5) * 1000;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final long RECONNECT_MS = 1000;
+    private static final int HANDSHAKE_FRAME = 4096; // the most read from a peer before it has authenticated
+    private static final int NONCE = 16, MAC = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // peer -> peer; arg is a name ("to from" for PM, "room from" for ROOM), body a message payload
+    static final byte HELLO = 1, ONLINE = 2, OFFLINE = 3, PM = 4, BROADCAST = 5, ROOM = 6, INBOX = 7, STATS = 8, AUTH = 9;
+    // what STATS carries, as "key=value" pairs; the cluster-wide totals on /metrics are their sums
+    static final String[] STAT_KEYS = {"users", "messagesIn", "messagesOut", "bytesIn", "bytesOut"};
+
+    /** The cluster configured with {@code -Dchat.cluster.port}, or null when this node runs alone. */
+    static Cluster fromProperties(ClientRegistry registry) throws IOException {
+        Integer port = Integer.getInteger("chat.cluster.port");
+        if (port == null) return null;
+        String node = System.getProperty("chat.cluster.node");
+        if (node == null) {
+            try { node = InetAddress.getLocalHost().getHostName() + ":" + port; }
+            catch (IOException e) { node = "node-" + port; }
+        }
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String p : System.getProperty("chat.cluster.peers", "").split(",")) {
+            p = p.trim();
+            if (p.isEmpty()) continue;
+            int colon = p.lastIndexOf(':');
+            if (colon < 0) throw new IllegalArgumentException("chat.cluster.peers: expected host:port, got " + p);
+            peers.add(new InetSocketAddress(p.substring(0, colon), Integer.parseInt(p.substring(colon + 1))));
+        }
+        String secret = System.getProperty("chat.cluster.secret", "");
+        if (secret.isEmpty()) throw new IllegalArgumentException("chat.cluster.secret must be set: peers prove they know it");
+        InetAddress bind = InetAddress.getByName(System.getProperty("chat.cluster.bind", "127.0.0.1"));
+        return new Cluster(node, bind, port, peers, secret.getBytes(StandardCharsets.UTF_8), registry);
+    }
+
+    final String nodeId;
+    final int port;
+    private final ClientRegistry registry;
+    private final byte[] secret;
+    private final ServerSocket server;
+    private final Peer[] peers;
+    private final ConcurrentHashMap<String, Peer> byNode = new ConcurrentHashMap<>(); // connected peers
+    private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>(); // newest per node
+    // user -> the nodes claiming them, sorted; more than one only while a raced login or a move settles
+    private final ConcurrentHashMap<String, String[]> remoteUsers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, NodeStats> stats = new ConcurrentHashMap<>();
+    private final AtomicLong remoteVersion = new AtomicLong();
+    private volatile Object[] usersCache = {-1L, -1L, null}; // presence version, remote version, reply
+
+    final LongAdder framesOut = new LongAdder(), recordsOut = new LongAdder(), bytesOut = new LongAdder();
+    final LongAdder framesIn = new LongAdder(), recordsIn = new LongAdder(), bytesIn = new LongAdder();
+    final LongAdder dropped = new LongAdder(), forwarded = new LongAdder(), conflicts = new LongAdder();
+
+    Cluster(String nodeId, InetAddress bind, int port, List<InetSocketAddress> peers, byte[] secret,
+            ClientRegistry registry) throws IOException {
+        this.nodeId = nodeId;
+        this.registry = registry;
+        this.secret = secret.clone();
+        this.server = new ServerSocket(port, 64, bind);
+        this.port = server.getLocalPort();
+        this.peers = new Peer[peers.size()];
+        for (int i = 0; i < this.peers.length; i++) this.peers[i] = new Peer(peers.get(i));
+    }
+
+    void start() {
+        daemon(this::accept, "cluster-accept");
+        for (Peer p : peers) daemon(p, "cluster-peer-" + p.address);
+        daemon(this::gossipStats, "cluster-stats");
+        System.out.println("[Cluster] Node " + nodeId + " on " + server.getInetAddress().getHostAddress() + ":" + port
+                + ", peers " + peers.length);
+    }
+
+    private static void daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // ---- routing, called by ClientRegistry ----
+
+    /** The node holding {@code username}, or null if no peer has it online. Ties go to the smallest node id. */
+    String owner(String username) {
+        String[] nodes = remoteUsers.get(username);
+        return nodes == null ? null : nodes[0];
+    }
+
+    int remoteUserCount() { return remoteUsers.size(); }
+
+    /** Tells every peer about a local login or logout. */
+    void announce(byte op, String username) {
+        ByteBuffer h = header(op, username, 0);
+        for (Peer p : peers) p.send(h, null);
+    }
+
+    /** Hands a PM to the recipient's node; false if no connected peer has them. */
+    boolean forward(String from, String to, EncodedMessage message) {
+        String node = owner(to);
+        Peer p = node == null ? null : byNode.get(node);
+        if (p == null) return false;
+        ByteBuffer h = header(PM, to + " " + (from == null ? "" : from), message.lineLength() - 1);
+        if (!p.send(h, message.payload())) return false;
+        forwarded.increment();
+        return true;
+    }
+
+    /** Relays a broadcast ({@code room} null) or a room post to every peer; they deliver it to their own users. */
+    void relay(String room, String from, EncodedMessage message) {
+        String who = from == null ? "" : from;
+        ByteBuffer h = room == null ? header(BROADCAST, who, message.lineLength() - 1)
+                : header(ROOM, room + " " + who, message.lineLength() - 1);
+        ByteBuffer body = message.payload();
+        for (Peer p : peers) p.send(h, body);
+    }
+
+    /** Whether stored PMs can be handed to {@code node} right now. */
+    boolean connected(String node) { return byNode.containsKey(node); }
+
+    /** Sends PMs stored here, oldest first, to {@code node}, where {@code username} is now online. */
+    void sendInbox(String node, String username, EncodedMessage[] stored) {
+        Peer p = byNode.get(node);
+        if (p == null) return;
+        for (EncodedMessage m : stored) p.send(header(INBOX, username, m.lineLength() - 1), m.payload());
+    }
+
+    /** USERS across the cluster; rebuilt only after a login or logout here or on a peer. */
+    String usersReply(Presence.Snapshot local) {
+        long rv = remoteVersion.get();
+        Object[] c = usersCache;
+        if ((long) c[0] == local.version && (long) c[1] == rv) return (String) c[2];
+        Set<String> all = new LinkedHashSet<>(local.names);
+        all.addAll(new TreeSet<>(remoteUsers.keySet()));
+        String reply = "USERS " + all;
+        usersCache = new Object[] {local.version, rv, reply};
+        return reply;
+    }
+
+    // ---- presence bookkeeping ----
+
+    /** Records that {@code node} has {@code username} online; ClientRegistry calls it under the user's inbox stripe. */
+    void remoteOnline(String username, String node) {
+        remoteUsers.merge(username, new String[] {node}, (nodes, one) -> {
+            if (Arrays.asList(nodes).contains(node)) return nodes;
+            String[] more = Arrays.copyOf(nodes, nodes.length + 1);
+            more[nodes.length] = node;
+            Arrays.sort(more);
+            return more;
+        });
+        remoteVersion.incrementAndGet();
+    }
+
+    private void remoteOffline(String username, String node) {
+        remoteUsers.computeIfPresent(username, (user, nodes) -> without(nodes, node));
+        remoteVersion.incrementAndGet();
+    }
+
+    /** Forgets every user on {@code node}: its connection to us is gone or it just (re)joined. */
+    private void forgetNode(String node) {
+        for (String user : remoteUsers.keySet()) remoteUsers.computeIfPresent(user, (u, nodes) -> without(nodes, node));
+        remoteVersion.incrementAndGet();
+    }
+
+    private static String[] without(String[] nodes, String node) {
+        int i = Arrays.asList(nodes).indexOf(node);
+        if (i < 0) return nodes;
+        if (nodes.length == 1) return null;
+        String[] fewer = new String[nodes.length - 1];
+        System.arraycopy(nodes, 0, fewer, 0, i);
+        System.arraycopy(nodes, i + 1, fewer, i, fewer.length - i);
+        return fewer;
+    }
+
+    // ---- stats ----
+
+    static final class NodeStats {
+        final long[] values = new long[STAT_KEYS.length];
+        final long receivedAt = System.currentTimeMillis();
+    }
+
+    static long[] localStats(ClientRegistry registry) {
+        return new long[] {registry.activeConnections(),
+                Metrics.TCP.messagesIn.sum() + Metrics.WS.messagesIn.sum(),
+                Metrics.TCP.messagesOut.sum() + Metrics.WS.messagesOut.sum(),
+                Metrics.TCP.bytesIn.sum() + Metrics.WS.bytesIn.sum(),
+                Metrics.TCP.bytesOut.sum() + Metrics.WS.bytesOut.sum()};
+    }
+
+    /** This node's {@link #STAT_KEYS} values plus those of every peer currently connected to us. */
+    long[] clusterStats() {
+        long[] total = localStats(registry);
+        for (NodeStats s : stats.values()) {
+            for (int i = 0; i < total.length; i++) total[i] += s.values[i];
+        }
+        return total;
+    }
+
+    /** Latest STATS per node that is connected to us. */
+    Map<String, NodeStats> nodeStats() { return Collections.unmodifiableMap(stats); }
+
+    /** Users per node, this one included. */
+    Map<String, Integer> usersByNode() {
+        Map<String, Integer> counts = new HashMap<>();
+        counts.put(nodeId, registry.activeConnections());
+        for (String[] nodes : remoteUsers.values()) counts.merge(nodes[0], 1, Integer::sum);
+        return counts;
+    }
+
+    static final class PeerState {
+        final String address, node; // node is null until the peer first answered
+        final boolean connected;
+        final long queuedBytes;
+
+        PeerState(String address, String node, boolean connected, long queuedBytes) {
+            this.address = address;
+            this.node = node;
+            this.connected = connected;
+            this.queuedBytes = queuedBytes;
+        }
+    }
+
+    /** One entry per configured peer. */
+    List<PeerState> peerStates() {
+        List<PeerState> list = new ArrayList<>();
+        for (Peer p : peers) {
+            if (p.self) continue;
+            String address = p.address.getHostString() + ":" + p.address.getPort();
+            list.add(new PeerState(address, p.node, p.connected, p.pendingBytes.get()));
+        }
+        return list;
+    }
+
+    private void gossipStats() {
+        while (true) {
+            try { Thread.sleep(STATS_MS); } catch (InterruptedException e) { return; }
+            ByteBuffer record = statsRecord();
+            for (Peer p : peers) p.send(record, null);
+        }
+    }
+
+    private ByteBuffer statsRecord() {
+        long[] v = localStats(registry);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < v.length; i++) sb.append(i == 0 ? "" : " ").append(STAT_KEYS[i]).append('=').append(v[i]);
+        byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer h = header(STATS, nodeId, body.length);
+        return ByteBuffer.allocate(h.remaining() + body.length).put(h).put(body).flip();
+    }
+
+    private static NodeStats parseStats(String body) {
+        NodeStats s = new NodeStats();
+        for (String kv : body.split(" ")) {
+            int eq = kv.indexOf('=');
+            if (eq < 0) continue;
+            for (int i = 0; i < STAT_KEYS.length; i++) {
+                if (!STAT_KEYS[i].equals(kv.substring(0, eq))) continue;
+                try { s.values[i] = Long.parseLong(kv.substring(eq + 1)); } catch (NumberFormatException ignored) {}
+            }
+        }
+        return s;
+    }
+
+    // ---- wire ----
+
+    /**
+     * A record header: op, argLen, arg, bodyLen. Shared read-only; each peer sends a duplicate. The arg's length is
+     * a u16; user and room names are capped at {@link ClientRegistry#MAX_NAME} so no relay comes near it.
+     */
+    static ByteBuffer header(byte op, String arg, int bodyLen) {
+        byte[] a = arg.getBytes(StandardCharsets.UTF_8);
+        if (a.length > 0xFFFF) throw new IllegalArgumentException("cluster record arg of " + a.length + " bytes");
+        return ByteBuffer.allocate(BinaryProtocol.RECORD_HEADER + a.length)
+                .put(op).putShort((short) a.length).put(a).putInt(bodyLen).flip().asReadOnlyBuffer();
+    }
+
+    /** A frame holding a single record. */
+    static byte[] frame(byte op, String arg, byte[] body) {
+        ByteBuffer h = header(op, arg, body.length);
+        int n = h.remaining() + body.length;
+        return ByteBuffer.allocate(BinaryProtocol.FRAME_HEADER + n).putInt(n).put(h).put(body).array();
+    }
+
+    /** Reads one frame of at most {@code max} bytes into {@code buf} (grown as needed); the length is in {@code len[0]}. */
+    static byte[] readFrame(DataInputStream in, byte[] buf, int[] len, int max) throws IOException {
+        int n = in.readInt();
+        if (n < 0 || n > max) throw new IOException("cluster frame of " + n + " bytes");
+        if (buf.length < n) buf = new byte[Math.max(n, Math.min(MAX_FRAME, buf.length * 2))];
+        in.readFully(buf, 0, n);
+        len[0] = n;
+        return buf;
+    }
+
+    record Handshake(String arg, byte[] body) {}
+
+    /** The lone {@code op} record a handshake frame must consist of, or null. */
+    static Handshake handshake(byte op, byte[] b, int len) {
+        if (len < BinaryProtocol.RECORD_HEADER || b[0] != op) return null;
+        int argLen = BinaryProtocol.u16(b, 1);
+        int body = BinaryProtocol.RECORD_HEADER + argLen;
+        if (body > len || BinaryProtocol.i32(b, 3 + argLen) != len - body) return null;
+        return new Handshake(new String(b, 3, argLen, StandardCharsets.UTF_8), Arrays.copyOfRange(b, body, len));
+    }
+
+    static byte[] nonce() {
+        byte[] n = new byte[NONCE];
+        RANDOM.nextBytes(n);
+        return n;
+    }
+
+    /** The answer to a challenge; the label differs per direction, so a node can't be made to answer its own. */
+    static byte[] mac(byte[] secret, String label, byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(label.getBytes(StandardCharsets.US_ASCII));
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e); // HmacSHA256 is in every JDK
+        }
+    }
+
+    // ---- inbound: peers dial in and only write ----
+
+    private void accept() {
+        while (true) {
+            try {
+                Socket s = server.accept();
+                daemon(() -> serve(s), "cluster-in-" + s.getRemoteSocketAddress());
+            } catch (IOException e) {
+                System.err.println("[Cluster] accept failed: " + e);
+            }
+        }
+    }
+
+    private void serve(Socket s) {
+        String node = null;
+        try (s) {
+            s.setSoTimeout((int) (3 * STATS_MS)); // STATS doubles as a heartbeat
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+            byte[] buf = new byte[8192];
+            int[] len = new int[1];
+            buf = readFrame(in, buf, len, HANDSHAKE_FRAME);
+            Handshake hello = handshake(HELLO, buf, len[0]);
+            if (hello == null || hello.body().length != NONCE) return;
+            byte[] challenge = nonce();
+            OutputStream out = s.getOutputStream();
+            out.write(frame(HELLO, nodeId, ByteBuffer.allocate(NONCE + MAC)
+                    .put(challenge).put(mac(secret, "accept", hello.body())).array()));
+            out.flush();
+            if (hello.arg().equals(nodeId)) return; // our own address in the peer list
+            buf = readFrame(in, buf, len, HANDSHAKE_FRAME);
+            Handshake auth = handshake(AUTH, buf, len[0]);
+            if (auth == null || !MessageDigest.isEqual(auth.body(), mac(secret, "dial", challenge))) {
+                System.out.println("[Cluster] Refused " + s.getRemoteSocketAddress() + ": failed authentication");
+                return;
+            }
+            node = hello.arg();
+            Socket old = inbound.put(node, s);
+            if (old != null) try { old.close(); } catch (IOException ignored) {}
+            forgetNode(node); // it sends its full user list next
+            while (true) {
+                buf = readFrame(in, buf, len, MAX_FRAME);
+                framesIn.increment();
+                bytesIn.add(BinaryProtocol.FRAME_HEADER + len[0]);
+                dispatch(node, buf, len[0]);
+            }
+        } catch (IOException ignored) {
+        } finally {
+            if (node != null && inbound.remove(node, s)) {
+                forgetNode(node);
+                stats.remove(node);
+                System.out.println("[Cluster] Lost " + node);
+            }
+        }
+    }
+
+    private void dispatch(String node, byte[] b, int len) throws IOException {
+        Map<String, List<EncodedMessage>> inbox = null;
+        int pos = 0;
+        while (pos < len) {
+            if (len - pos < BinaryProtocol.RECORD_HEADER) throw new IOException("truncated record");
+            byte op = b[pos];
+            int argLen = BinaryProtocol.u16(b, pos + 1);
+            if (pos + BinaryProtocol.RECORD_HEADER + argLen > len) throw new IOException("truncated record");
+            String arg = new String(b, pos + 3, argLen, StandardCharsets.UTF_8);
+            int bodyLen = BinaryProtocol.i32(b, pos + 3 + argLen);
+            int body = pos + BinaryProtocol.RECORD_HEADER + argLen;
+            if (bodyLen < 0 || bodyLen > len - body) throw new IOException("truncated record");
+            pos = body + bodyLen;
+            recordsIn.increment();
+            switch (op) {
+                case ONLINE -> registry.remoteOnline(this, node, arg);
+                case OFFLINE -> remoteOffline(arg, node);
+                case PM -> {
+                    int sp = arg.indexOf(' ');
+                    registry.deliverRelayed(sp < 0 || sp == arg.length() - 1 ? null : arg.substring(sp + 1),
+                            sp < 0 ? arg : arg.substring(0, sp), EncodedMessage.concat("", b, body, bodyLen));
+                }
+                case BROADCAST -> registry.broadcastRelayed(arg.isEmpty() ? null : arg, EncodedMessage.concat("", b, body, bodyLen));
+                case ROOM -> {
+                    int sp = arg.indexOf(' ');
+                    if (sp > 0) registry.postRelayed(arg.substring(0, sp), sp == arg.length() - 1 ? null : arg.substring(sp + 1),
+                            EncodedMessage.concat("", b, body, bodyLen));
+                }
+                case INBOX -> {
+                    // a user's stored PMs arrive as one run; delivered together once the frame is read
+                    if (inbox == null) inbox = new HashMap<>();
+                    inbox.computeIfAbsent(arg, k -> new ArrayList<>()).add(EncodedMessage.concat("", b, body, bodyLen));
+                }
+                case STATS -> stats.put(node, parseStats(new String(b, body, bodyLen, StandardCharsets.UTF_8)));
+                default -> { } // unknown ops are skipped, so a newer peer can add some
+            }
+        }
+        if (inbox != null) {
+            for (Map.Entry<String, List<EncodedMessage>> e : inbox.entrySet()) {
+                registry.deliverRelayedInbox(e.getKey(), e.getValue().toArray(new EncodedMessage[0]));
+            }
+        }
+    }
+
+    // ---- outbound: one writer thread per configured peer ----
+
+    private final class Peer implements Runnable {
+        final InetSocketAddress address;
+        final AtomicLong pendingBytes = new AtomicLong();
+        private final Queue<ByteBuffer[]> queue = new ConcurrentLinkedQueue<>();
+        private volatile Thread writer;
+        private volatile boolean parked;
+        volatile String node; // learned from its HELLO
+        volatile boolean connected, self;
+
+        Peer(InetSocketAddress address) { this.address = address; }
+
+        /** Queues one record (header plus optional body, both shared); false while disconnected or over the bound. */
+        boolean send(ByteBuffer header, ByteBuffer body) {
+            if (!connected) return false;
+            long bytes = header.remaining() + (body == null ? 0 : body.remaining());
+            if (pendingBytes.addAndGet(bytes) > MAX_PENDING_BYTES) {
+                pendingBytes.addAndGet(-bytes);
+                dropped.increment();
+                return false;
+            }
+            queue.add(body == null ? new ByteBuffer[] {header.duplicate()} : new ByteBuffer[] {header.duplicate(), body.duplicate()});
+            wake();
+            return true;
+        }
+
+        private void wake() {
+            Thread t = writer;
+            if (parked && t != null) LockSupport.unpark(t);
+        }
+
+        @Override
+        public void run() {
+            writer = Thread.currentThread();
+            boolean announced = false;
+            while (true) {
+                try (SocketChannel ch = SocketChannel.open()) {
+                    ch.socket().connect(address, CONNECT_TIMEOUT_MS);
+                    ch.socket().setTcpNoDelay(true);
+                    ch.socket().setSoTimeout(CONNECT_TIMEOUT_MS);
+                    OutputStream out = ch.socket().getOutputStream();
+                    byte[] challenge = nonce();
+                    out.write(frame(HELLO, nodeId, challenge));
+                    byte[] buf = new byte[256];
+                    int[] len = new int[1];
+                    buf = readFrame(new DataInputStream(ch.socket().getInputStream()), buf, len, HANDSHAKE_FRAME);
+                    Handshake hello = handshake(HELLO, buf, len[0]);
+                    if (hello == null) throw new IOException("no HELLO from " + address);
+                    String id = hello.arg();
+                    if (id.equals(nodeId)) { self = true; return; } // this node's own address
+                    // the reply is its challenge, then its answer to ours
+                    byte[] body = hello.body();
+                    if (body.length != NONCE + MAC || !MessageDigest.isEqual(Arrays.copyOfRange(body, NONCE, body.length),
+                            mac(secret, "accept", challenge))) {
+                        throw new IOException("failed authentication");
+                    }
+                    out.write(frame(AUTH, "", mac(secret, "dial", Arrays.copyOf(body, NONCE))));
+                    node = id;
+                    queue.clear();
+                    pendingBytes.set(0);
+                    connected = true;
+                    byNode.put(id, this);
+                    System.out.println("[Cluster] Connected to " + id + " at " + address);
+                    announced = false;
+                    for (ClientConnection conn : registry.connections()) send(header(ONLINE, conn.username(), 0), null);
+                    registry.handOverInboxes(Cluster.this, id);
+                    send(statsRecord(), null);
+                    drain(ch);
+                } catch (IOException e) {
+                    if (!announced && !connected) {
+                        System.out.println("[Cluster] " + address + " unreachable (" + e.getMessage() + "), retrying");
+                        announced = true;
+                    }
+                } finally {
+                    if (connected) {
+                        connected = false;
+                        byNode.remove(node, this);
+                        System.out.println("[Cluster] Disconnected from " + node);
+                    }
+                    queue.clear();
+                    pendingBytes.set(0);
+                }
+                LockSupport.parkNanos(RECONNECT_MS * 1_000_000);
+            }
+        }
+
+        /** Writes everything queued as one frame per wake-up (split at {@link #MAX_FRAME}) until the socket fails. */
+        private void drain(SocketChannel ch) throws IOException {
+            List<ByteBuffer> bufs = new ArrayList<>();
+            while (true) {
+                ByteBuffer head = ByteBuffer.allocate(BinaryProtocol.FRAME_HEADER);
+                bufs.add(head);
+                long length = 0;
+                int records = 0;
+                ByteBuffer[] r;
+                while ((r = queue.peek()) != null) {
+                    long size = 0;
+                    for (ByteBuffer b : r) size += b.remaining();
+                    if (records > 0 && length + size > MAX_FRAME) break;
+                    queue.poll(); // single consumer: still the record we peeked
+                    Collections.addAll(bufs, r);
+                    length += size;
+                    records++;
+                }
+                if (records == 0) {
+                    bufs.clear();
+                    parked = true;
+                    if (queue.isEmpty()) LockSupport.park(this);
+                    parked = false;
+                    continue;
+                }
+                head.putInt(0, (int) length);
+                ByteBuffer[] gather = bufs.toArray(new ByteBuffer[0]);
+                bufs.clear();
+                int i = 0;
+                while (i < gather.length) {
+                    ch.write(gather, i, gather.length - i);
+                    while (i < gather.length && !gather[i].hasRemaining()) i++;
+                }
+                pendingBytes.addAndGet(-length);
+                framesOut.increment();
+                recordsOut.add(records);
+                bytesOut.add(BinaryProtocol.FRAME_HEADER + length);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package multithreaded;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One parsed line of the text protocol, reused for every line on a connection. The verb is matched
+ * in place (ASCII case-insensitive, straight from the chars or the raw bytes) and arguments are kept
+ * as offsets into the source; nothing is copied until a handler asks for a String.
+ *
+ * Token rules match the old {@code trim().split("\\s+", 3)}: verb, first argument, then the rest
+ * of the line as one argument.
+ */
+final class Command {
+
+    enum Verb {
+        LOGIN, MSG, BROADCAST, JOIN, LEAVE, ROOMMSG, USERS, HISTORY, GETFILE, PROTO, PING, PONG, QUIT, UNKNOWN;
+
+        private final byte[] ascii = name().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static final Verb[] KNOWN = { Verb.LOGIN, Verb.MSG, Verb.BROADCAST, Verb.JOIN, Verb.LEAVE,
+            Verb.ROOMMSG, Verb.USERS, Verb.HISTORY, Verb.GETFILE, Verb.PROTO, Verb.PING, Verb.PONG,
+            Verb.QUIT };
+
+    private Verb verb = Verb.UNKNOWN;
+    private CharSequence chars; // exactly one of chars / bytes is set
+    private byte[] bytes;
+    private int restStart, end;           // everything after the verb, trimmed
+    private int arg1Start, arg1End;       // first token after the verb
+    private int arg2Start;                // rest of the line after arg1 (ends at end)
+    private int argCount;
+
+    Verb verb() { return verb; }
+
+    /** Number of arguments after the verb: 0, 1, or 2 (the second being the rest of the line). */
+    int argCount() { return argCount; }
+
+    Command parse(CharSequence line) {
+        this.chars = line;
+        this.bytes = null;
+        scan(0, line.length());
+        return this;
+    }
+
+    /** Parses UTF-8 bytes in place; the array must not change until the command has been handled. */
+    Command parse(byte[] line, int off, int len) {
+        this.chars = null;
+        this.bytes = line;
+        scan(off, off + len);
+        return this;
+    }
+
+    /**
+     * A {@link BinaryProtocol} record: the verb comes from its opcode and the arguments are taken as given
+     * (no tokenizing), so the body may hold any text. The array must not change until handled.
+     */
+    Command parse(Verb verb, byte[] record, int argOff, int argLen, int bodyOff, int bodyLen) {
+        this.chars = null;
+        this.bytes = record;
+        this.verb = verb;
+        arg1Start = argOff;
+        arg1End = argOff + argLen;
+        arg2Start = bodyOff;
+        end = bodyOff + bodyLen;
+        restStart = argLen == 0 ? bodyOff : argOff;
+        argCount = bodyLen > 0 ? 2 : argLen > 0 ? 1 : 0;
+        return this;
+    }
+
+    private void scan(int from, int to) {
+        int i = from;
+        while (i < to && isSpace(at(i))) i++;
+        while (to > i && isSpace(at(to - 1))) to--;
+        end = to;
+
+        int verbStart = i;
+        while (i < end && !isSpace(at(i))) i++;
+        verb = match(verbStart, i);
+
+        while (i < end && isSpace(at(i))) i++;
+        restStart = i;
+        // missing arguments are empty at the end, not left over from the previous line
+        arg1Start = arg1End = arg2Start = end;
+        argCount = 0;
+        if (i == end) return;
+
+        arg1Start = i;
+        while (i < end && !isSpace(at(i))) i++;
+        arg1End = i;
+        argCount = 1;
+        while (i < end && isSpace(at(i))) i++;
+        if (i == end) return;
+        arg2Start = i;
+        argCount = 2;
+    }
+
+    private Verb match(int start, int stop) {
+        int len = stop - start;
+        for (Verb v : KNOWN) {
+            byte[] name = v.ascii;
+            if (name.length != len) continue;
+            int k = 0;
+            while (k < len && upper(at(start + k)) == name[k]) k++;
+            if (k == len) return v;
+        }
+        return Verb.UNKNOWN;
+    }
+
+    private int at(int i) {
+        return bytes != null ? bytes[i] & 0xFF : chars.charAt(i);
+    }
+
+    private static int upper(int c) {
+        return c >= 'a' && c <= 'z' ? c - 32 : c;
+    }
+
+    // the \s class: space, \t, \n, \u000B, \f, \r
+    private static boolean isSpace(int c) {
+        return c == ' ' || (c >= '\t' && c <= '\r');
+    }
+
+    /** First argument as a String (names, rooms, paths). */
+    String arg1() {
+        return slice(arg1Start, arg1End);
+    }
+
+    /** True if the first argument is one non-empty token; always so for text lines, not for binary records. */
+    boolean arg1IsToken() {
+        if (arg1End == arg1Start) return false;
+        for (int i = arg1Start; i < arg1End; i++) if (isSpace(at(i))) return false;
+        return true;
+    }
+
+    /** Rest of the line after the first argument (message text). */
+    String arg2() {
+        return slice(arg2Start, end);
+    }
+
+    /** Everything after the verb (BROADCAST text). */
+    String rest() {
+        return slice(restStart, end);
+    }
+
+    private String slice(int from, int to) {
+        if (bytes != null) return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+        return chars.subSequence(from, to).toString();
+    }
+
+    /** Builds {@code prefix + arg2} straight into an encoded message, without an intermediate String. */
+    EncodedMessage composeArg2(String prefix) {
+        return compose(prefix, arg2Start, end);
+    }
+
+    /** Builds {@code prefix + rest} straight into an encoded message. */
+    EncodedMessage composeRest(String prefix) {
+        return compose(prefix, restStart, end);
+    }
+
+    private EncodedMessage compose(String prefix, int from, int to) {
+        if (bytes != null) return EncodedMessage.concat(prefix, bytes, from, to - from);
+        return EncodedMessage.of(new StringBuilder(prefix.length() + to - from).append(prefix).append(chars, from, to).toString());
+    }
+}
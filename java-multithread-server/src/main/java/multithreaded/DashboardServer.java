@@ -1,76 +1,431 @@
 package multithreaded;
 
-import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpServer;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.handler.ContextHandler;
+
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.InetSocketAddress;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.stream.Collectors;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Dashboard, /metrics and /files, served by the shared Jetty server on its own connector. */
+public class DashboardServer extends AbstractHandler {
+    static final int DEFAULT_LIMIT = 1000;
+    static final int MAX_LIMIT = 10_000;
+    // the /jfr endpoints, off by default: anyone who can reach this port could start a recording
+    static final boolean PROFILING = Boolean.getBoolean("chat.dashboard.profiling");
+    private static final int SUMMARY_ROWS = 20;
+
+    private final ClientRegistry registry = ClientRegistry.getInstance();
+    private final StaticFiles staticFiles;
+
+    DashboardServer(Path publicDir) {
+        this.staticFiles = new StaticFiles(publicDir);
+    }
+
+    /** A root context answering only on the named connector (Jetty's "@name" virtual host). */
+    static Handler context(String connector, Path publicDir) {
+        ContextHandler ctx = new ContextHandler("/");
+        ctx.setVirtualHosts(new String[] {"@" + connector});
+        ctx.setHandler(new DashboardServer(publicDir));
+        return ctx;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        baseRequest.setHandled(true);
+        if (target.equals("/metrics")) {
+            metrics(req, resp);
+        } else if (target.equals("/metrics/prometheus")) {
+            try (Writer out = stream(resp, "text/plain; version=0.0.4; charset=utf-8")) {
+                Metrics.writePrometheus(out, registry);
+            }
+        } else if (PROFILING && (target.equals("/jfr") || target.startsWith("/jfr/"))) {
+            profiling(target, req, resp);
+        } else if (target.equals("/files") || target.startsWith("/files/")) {
+            try { staticFiles.handle(req, resp); }
+            catch (RuntimeException e) { e.printStackTrace(); if (!resp.isCommitted()) writeHtml(resp, 500, "<h3>500 Internal Server Error</h3>"); }
+        } else {
+            home(req, resp);
+        }
+    }
+
+    /**
+     * Streams the metrics document. {@code ?offset=&limit=} pages the users, per-client outbox and room
+     * lists (default limit {@value #DEFAULT_LIMIT}, at most {@value #MAX_LIMIT}); {@code ?count=true} drops
+     * the lists and keeps only totals.
+     */
+    private void metrics(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        // Allow cross-origin requests (so your 8080 page can call 9000)
+        resp.setHeader("Access-Control-Allow-Origin", "*");
+        boolean countOnly = "true".equalsIgnoreCase(req.getParameter("count")) || "1".equals(req.getParameter("count"));
+        int offset = param(req, "offset", 0, Integer.MAX_VALUE, 0);
+        int limit = param(req, "limit", 0, MAX_LIMIT, DEFAULT_LIMIT);
+        ClientConnection[] conns = registry.connections(); // one immutable snapshot for the whole page
+        int from = Math.min(offset, conns.length), to = (int) Math.min(conns.length, (long) from + limit);
+        Cluster cluster = registry.cluster();
+
+        try (Writer w = stream(resp, "application/json; charset=utf-8")) {
+            JsonWriter json = new JsonWriter(w);
+            json.beginObject()
+                    .field("activeConnections", conns.length)
+                    .field("usersTotal", conns.length + (cluster == null ? 0 : cluster.remoteUserCount()));
+            if (!countOnly) {
+                json.field("offset", offset).field("limit", limit);
+                json.name("users").beginArray();
+                for (int i = from; i < to; i++) json.value(conns[i].username());
+                json.endArray();
+            }
+
+            json.name("outboxes").beginObject()
+                    .field("capacity", Outbox.CAPACITY)
+                    .field("overflow", Outbox.OVERFLOW.name().toLowerCase())
+                    .field("dropped", Outbox.totalDropped.sum())
+                    .field("coalesced", Outbox.totalCoalesced.sum())
+                    .field("slowConsumerDisconnects", Outbox.slowConsumerDisconnects.sum());
+            if (!countOnly) {
+                json.name("clients").beginArray();
+                for (int i = from; i < to; i++) {
+                    Outbox b = conns[i].outbox();
+                    json.beginObject().field("user", b.owner()).field("transport", b.transport())
+                            .field("depth", b.depth()).field("dropped", b.dropped()).field("coalesced", b.coalesced())
+                            .endObject();
+                }
+                json.endArray();
+            }
+            json.endObject();
+
+            json.name("rooms").beginObject().field("count", registry.rooms().roomCount());
+            if (!countOnly) {
+                json.name("list").beginArray();
+                int i = 0;
+                for (RoomIndex.Room r : registry.rooms().view()) {
+                    if (i++ < offset) continue;
+                    if (i > (long) offset + limit) break;
+                    json.beginObject().field("name", r.name).field("members", r.memberCount())
+                            .field("messages", r.messages()).field("perSecond", r.messagesPerSecond()).endObject();
+                }
+                json.endArray();
+            }
+            json.endObject();
 
-public class DashboardServer {
+            json.name("fileCache").beginArray();
+            for (FileCache c : FileCache.all()) {
+                json.beginObject().field("dir", c.baseDir.toString().replace('\\', '/'))
+                        .field("entries", c.size()).field("bytes", c.bytes()).field("maxBytes", FileCache.MAX_BYTES)
+                        .field("hits", c.hits.sum()).field("misses", c.misses.sum())
+                        .field("evictions", c.evictions.sum()).field("invalidations", c.invalidations.sum())
+                        .endObject();
+            }
+            json.endArray();
 
-    public static void startHttp(int port) throws IOException {
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-        var registry = ClientRegistry.getInstance();
+            MessageLog log = registry.log();
+            json.name("messageLog");
+            if (log == null) {
+                json.nullValue();
+            } else {
+                long[] f = log.forceLatency.snapshot();
+                long[] inbox = log.inboxTotals();
+                json.beginObject().field("segments", log.segmentCount()).field("bytes", log.bytes())
+                        .field("indexedKeys", log.indexedKeys()).field("pending", log.pending())
+                        .field("appended", log.appended.sum()).field("dropped", log.dropped.sum())
+                        .field("forces", log.forces.sum())
+                        .field("forceP99Micros", Metrics.Histogram.quantileMicros(f, 0.99))
+                        .field("compactions", log.compactions.sum()).field("deletedSegments", log.deletedSegments.sum())
+                        .name("inbox").beginObject().field("messages", inbox[0]).field("bytes", inbox[1])
+                        .field("users", inbox[2]).field("stored", log.inboxStored.sum())
+                        .field("delivered", log.inboxDelivered.sum()).field("rejected", log.inboxRejected.sum())
+                        .endObject()
+                        .endObject();
+            }
 
-        server.createContext("/metrics", exchange -> {
-            // Allow cross-origin requests (so your 8080 page can call 9000)
-            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            // totals add up this node and the latest STATS of every peer connected to it
+            json.name("cluster");
+            if (cluster == null) {
+                json.nullValue();
+            } else {
+                long[] totals = cluster.clusterStats();
+                json.beginObject().field("node", cluster.nodeId).name("totals").beginObject();
+                for (int i = 0; i < Cluster.STAT_KEYS.length; i++) json.field(Cluster.STAT_KEYS[i], totals[i]);
+                json.endObject().name("usersByNode").beginObject();
+                for (Map.Entry<String, Integer> e : cluster.usersByNode().entrySet()) json.field(e.getKey(), e.getValue());
+                json.endObject().name("peers").beginArray();
+                for (Cluster.PeerState p : cluster.peerStates()) {
+                    json.beginObject().field("address", p.address).field("node", p.node)
+                            .field("connected", p.connected).field("queuedBytes", p.queuedBytes);
+                    Cluster.NodeStats s = p.node == null ? null : cluster.nodeStats().get(p.node);
+                    if (s != null) {
+                        json.field("statsAgeMs", System.currentTimeMillis() - s.receivedAt);
+                        for (int i = 0; i < Cluster.STAT_KEYS.length; i++) json.field(Cluster.STAT_KEYS[i], s.values[i]);
+                    }
+                    json.endObject();
+                }
+                json.endArray()
+                        .field("framesOut", cluster.framesOut.sum()).field("recordsOut", cluster.recordsOut.sum())
+                        .field("bytesOut", cluster.bytesOut.sum()).field("framesIn", cluster.framesIn.sum())
+                        .field("recordsIn", cluster.recordsIn.sum()).field("bytesIn", cluster.bytesIn.sum())
+                        .field("dropped", cluster.dropped.sum()).field("forwarded", cluster.forwarded.sum())
+                        .field("conflicts", cluster.conflicts.sum())
+                        .endObject();
+            }
 
-            String body = """
-        {
-          "activeConnections": %d,
-          "users": %s
+            json.name("traffic").beginObject();
+            for (Metrics.Transport t : new Metrics.Transport[] {Metrics.TCP, Metrics.WS}) {
+                json.name(t.name).beginObject()
+                        .field("accepted", t.accepted.sum()).field("acceptErrors", t.acceptErrors.sum())
+                        .field("messagesIn", t.messagesIn.sum()).field("bytesIn", t.bytesIn.sum())
+                        .field("messagesOut", t.messagesOut.sum()).field("bytesOut", t.bytesOut.sum())
+                        .field("pings", t.pings.sum()).field("idleClosed", t.idleClosed.sum())
+                        .endObject();
+            }
+            json.endObject();
+
+            ThreadPoolExecutor pool = Metrics.tcpExecutor();
+            json.name("tcpExecutor");
+            if (pool == null) {
+                json.nullValue();
+            } else {
+                long[] wait = Metrics.tcpQueueWait.snapshot();
+                json.beginObject().field("poolSize", pool.getPoolSize()).field("active", pool.getActiveCount())
+                        .field("corePoolSize", pool.getCorePoolSize()).field("maxPoolSize", pool.getMaximumPoolSize())
+                        .field("queueDepth", pool.getQueue().size())
+                        .field("queueWaitP50Micros", Metrics.Histogram.quantileMicros(wait, 0.5))
+                        .field("queueWaitP99Micros", Metrics.Histogram.quantileMicros(wait, 0.99))
+                        .field("resizes", Metrics.poolResizes.sum())
+                        .endObject();
+            }
+            json.name("tcpListener").beginObject().field("acceptors", ChatServer.ACCEPTORS)
+                    .field("reusePort", ChatServer.reusePort).field("backlog", ChatServer.BACKLOG)
+                    .name("acceptedBy").beginArray();
+            for (LongAdder a : Metrics.acceptedBy) json.value(a.sum());
+            json.endArray().endObject();
+            long writes = Metrics.tcpWrites.sum(), tcpOut = Metrics.TCP.messagesOut.sum();
+            long[] sizes = Metrics.tcpWriteSize.snapshot();
+            json.name("tcpWrites").beginObject().field("flushBytes", LockedLineWriter.FLUSH_BYTES)
+                    .field("flushDelayMicros", LockedLineWriter.FLUSH_DELAY_NANOS / 1000)
+                    .field("syscalls", writes).field("messages", tcpOut)
+                    .field("syscallsPerThousandMessages", tcpOut == 0 ? 0 : writes * 1000 / tcpOut)
+                    .field("avgBytes", writes == 0 ? 0 : Metrics.tcpWriteSize.sum() / writes)
+                    .field("p50Bytes", Metrics.SizeHistogram.quantileBytes(sizes, 0.5))
+                    .field("p99Bytes", Metrics.SizeHistogram.quantileBytes(sizes, 0.99))
+                    .endObject();
+            long frames = Metrics.wsFrames.sum(), wsOut = Metrics.WS.messagesOut.sum();
+            json.name("wsFrames").beginObject().field("deflate", WebSocketBootstrap.DEFLATE)
+                    .field("batchDefault", WsSessionBridge.BATCH).field("batchBytes", WsSessionBridge.BATCH_BYTES)
+                    .field("batchDelayMicros", WsSessionBridge.BATCH_DELAY_NANOS / 1000)
+                    .field("frames", frames).field("messages", wsOut)
+                    .field("framesPerThousandMessages", wsOut == 0 ? 0 : frames * 1000 / wsOut)
+                    .field("batchSessions", Metrics.wsBatchSessions.sum())
+                    .field("deflateSessions", Metrics.wsDeflateSessions.sum())
+                    .endObject();
+            json.name("admission").beginObject().field("maxPerIp", Admission.MAX_PER_IP)
+                    .field("trackedIps", Admission.TCP.trackedIps())
+                    .name("shed").beginObject().field("queueFull", Metrics.tcpRejections.sum())
+                    .field("queueWait", Metrics.shedQueueWait.sum()).field("perIp", Metrics.shedPerIp.sum()).endObject()
+                    .endObject();
+
+            json.name("commands").beginArray();
+            for (Metrics.Transport t : new Metrics.Transport[] {Metrics.TCP, Metrics.WS}) {
+                for (Command.Verb v : Command.Verb.values()) {
+                    long count = t.commands[v.ordinal()].sum();
+                    if (count == 0) continue;
+                    long[] h = t.latency[v.ordinal()].snapshot();
+                    json.beginObject().field("transport", t.name).field("command", v.name()).field("count", count)
+                            .field("p50Micros", Metrics.Histogram.quantileMicros(h, 0.5))
+                            .field("p99Micros", Metrics.Histogram.quantileMicros(h, 0.99))
+                            .endObject();
+                }
+            }
+            json.endArray();
+            json.endObject();
         }
-        """.formatted(
-                    registry.activeConnections(),
-                    registry.usernames().stream()
-                            .map(u -> "\"" + u + "\"")
-                            .collect(Collectors.joining(",", "[", "]"))
-            );
-            writeJson(exchange, body);
-        });
-
-
-        StaticFiles staticFiles = new StaticFiles(Path.of("public"));
-        server.createContext("/files", exchange -> {
-            try { staticFiles.handle(exchange); }
-            catch (Exception e) { e.printStackTrace(); writeHtml(exchange, 500, "<h3>500 Internal Server Error</h3>"); }
-        });
-
-        server.createContext("/", exchange -> {
-            String html = """
+    }
+
+    /**
+     * On-demand JFR ({@link Profiler}): POST {@code /jfr/start} and {@code /jfr/stop}, GET {@code /jfr/download}
+     * for the {@code .jfr} file (a snapshot while recording), and {@code /jfr} for the status and slowest operations.
+     * A POST from a page on another origin is refused, so a link elsewhere can't start one in an operator's browser.
+     */
+    private void profiling(String target, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        Profiler profiler = Profiler.INSTANCE;
+        boolean post = req.getMethod().equals("POST");
+        switch (target) {
+            case "/jfr/start", "/jfr/stop" -> {
+                if (!post) { writeHtml(resp, 405, "<h3>405 Use POST</h3>"); return; }
+                if (!sameOrigin(req)) { writeHtml(resp, 403, "<h3>403 Cross-origin request</h3>"); return; }
+                try {
+                    if (target.equals("/jfr/start")) profiler.start(); else profiler.stop();
+                } catch (IOException | ParseException | RuntimeException e) {
+                    e.printStackTrace(); // the details stay in the server log
+                    writeHtml(resp, 500, "<h3>500 Recording failed</h3><p>See the server log.</p>");
+                    return;
+                }
+                resp.setStatus(303);
+                resp.setHeader("Location", "/jfr");
+            }
+            case "/jfr/download" -> {
+                try (Profiler.Dump dump = profiler.dump()) {
+                    if (dump == null) { writeHtml(resp, 404, "<h3>No recording yet</h3>"); return; }
+                    resp.setStatus(200);
+                    resp.setHeader("Content-Type", "application/octet-stream");
+                    resp.setHeader("Content-Disposition", "attachment; filename=\"chat-" + System.currentTimeMillis() + ".jfr\"");
+                    resp.setContentLengthLong(Files.size(dump.path()));
+                    Files.copy(dump.path(), resp.getOutputStream());
+                }
+            }
+            case "/jfr" -> jfrSummary(profiler, resp);
+            default -> writeHtml(resp, 404, "<h3>404 Not Found</h3>");
+        }
+    }
+
+    // browsers send Origin on every POST (and Sec-Fetch-Site on current ones); tools like curl send neither
+    private static boolean sameOrigin(HttpServletRequest req) {
+        String site = req.getHeader("Sec-Fetch-Site");
+        if (site != null && !site.equals("same-origin") && !site.equals("none")) return false;
+        String origin = req.getHeader("Origin");
+        if (origin == null) return true;
+        try {
+            String authority = URI.create(origin).getAuthority(); // null for an opaque origin ("null")
+            return authority != null && authority.equalsIgnoreCase(req.getHeader("Host"));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void jfrSummary(Profiler profiler, HttpServletResponse resp) throws IOException {
+        Instant since = profiler.runningSince();
+        try (Writer w = stream(resp, "text/html; charset=utf-8")) {
+            w.write("""
+                <html><head><title>Profiling</title></head>
+                <body style="font-family: system-ui; max-width: 960px; margin: 2rem auto;">
+                  <h2>Profiling (JFR)</h2>
+                """);
+            w.write("  <p>" + (since == null ? "Not recording." : "Recording since " + since + " ("
+                    + Duration.between(since, Instant.now()).toSeconds() + " s).")
+                    + " Settings <code>" + Profiler.SETTINGS + "</code>; thresholds: command "
+                    + Profiler.COMMAND_THRESHOLD.toMillis() + " ms, fan-out " + Profiler.FANOUT_THRESHOLD.toMillis()
+                    + " ms, send " + Profiler.SEND_THRESHOLD.toMillis() + " ms.</p>\n");
+            w.write("  <form method=\"post\" action=\"/jfr/" + (since == null ? "start\"><button>Start" : "stop\"><button>Stop")
+                    + " recording</button></form>\n");
+            if (!profiler.recorded()) {
+                w.write("</body></html>\n");
+                return;
+            }
+            w.write("  <p><a href=\"/jfr/download\">Download .jfr</a> (open in JDK Mission Control, or <code>jfr print --events chat.Command</code>)</p>\n");
+            w.write("  <h3>Slowest operations</h3>\n  <table border=\"1\" cellpadding=\"4\" style=\"border-collapse: collapse\">\n");
+            w.write("    <tr><th>Operation</th><th>Count</th><th>Avg ms</th><th>Max ms</th><th>Slowest</th></tr>\n");
+            for (Profiler.Row row : profiler.summary(SUMMARY_ROWS)) {
+                w.write("    <tr><td>");
+                escapeHtml(w, row.operation());
+                w.write("</td><td>" + row.count() + "</td><td>" + millis(row.totalNanos() / row.count())
+                        + "</td><td>" + millis(row.maxNanos()) + "</td><td>");
+                escapeHtml(w, row.slowest());
+                w.write("</td></tr>\n");
+            }
+            w.write("  </table>\n  <p>Only operations slower than their threshold are recorded.</p>\n</body></html>\n");
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2f", nanos / 1e6);
+    }
+
+    private void home(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        int limit = param(req, "limit", 0, MAX_LIMIT, DEFAULT_LIMIT);
+        ClientConnection[] conns = registry.connections();
+        try (Writer w = stream(resp, "text/html; charset=utf-8")) {
+            w.write("""
                 <html><head><title>Server Dashboard</title></head>
                 <body style="font-family: system-ui; max-width: 720px; margin: 2rem auto;">
                   <h2>Server Dashboard</h2>
-                  <p><b>Active connections:</b> %d</p>
-                  <p><b>Users:</b> %s</p>
+                """);
+            w.write("  <p><b>Active connections:</b> " + conns.length + "</p>\n  <p><b>Users:</b> ");
+            for (int i = 0, n = Math.min(limit, conns.length); i < n; i++) {
+                if (i > 0) w.write(", ");
+                escapeHtml(w, conns[i].username());
+            }
+            if (conns.length > limit) w.write(" … and " + (conns.length - limit) + " more");
+            Cluster cluster = registry.cluster();
+            if (cluster != null) {
+                w.write("</p>\n  <p><b>Cluster:</b> node ");
+                escapeHtml(w, cluster.nodeId);
+                Map<String, Integer> byNode = cluster.usersByNode();
+                long users = 0;
+                for (int n : byNode.values()) users += n;
+                w.write(", " + users + " users on " + byNode.size() + " nodes");
+            }
+            w.write("""
+                </p>
                   <ul>
-                    <li>Metrics JSON: <a href="/metrics">/metrics</a></li>
+                    <li>Metrics JSON: <a href="/metrics">/metrics</a> (<a href="/metrics?count=true">counts only</a>)</li>
+                    <li>Prometheus: <a href="/metrics/prometheus">/metrics/prometheus</a></li>
+                """);
+            if (PROFILING) w.write("    <li>Profiling: <a href=\"/jfr\">/jfr</a> (start/stop a JFR recording, slowest operations)</li>\n");
+            w.write("""
                     <li>Static site root: <a href="/files">/files</a></li>
                     <li>Example file: <a href="/files/index.html">/files/index.html</a></li>
                   </ul>
                 </body></html>
-                """.formatted(registry.activeConnections(), registry.usernames());
-            writeHtml(exchange, 200, html);
-        });
+                """);
+        }
+    }
 
-        server.start();
-        System.out.println("[Dashboard+Static] http://localhost:" + port + "/  |  Static files at /files → ./public");
+    // no Content-Length: Jetty sends the body chunked as its output buffer fills
+    private static Writer stream(HttpServletResponse resp, String contentType) throws IOException {
+        resp.setStatus(200);
+        resp.setHeader("Content-Type", contentType);
+        return new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8);
     }
 
-    private static void writeJson(HttpExchange ex, String body) throws IOException {
-        byte[] bytes = body.getBytes();
-        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
-        ex.sendResponseHeaders(200, bytes.length);
-        try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+    private static int param(HttpServletRequest req, String name, int min, int max, int dflt) {
+        String v = req.getParameter(name);
+        if (v == null) return dflt;
+        try {
+            return Math.max(min, Math.min(max, Integer.parseInt(v.trim())));
+        } catch (NumberFormatException e) {
+            return dflt;
+        }
+    }
+
+    private static void writeHtml(HttpServletResponse resp, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        resp.setStatus(status);
+        resp.setHeader("Content-Type", "text/html; charset=utf-8");
+        resp.setContentLength(bytes.length);
+        resp.getOutputStream().write(bytes);
     }
 
-    private static void writeHtml(HttpExchange ex, int status, String body) throws IOException {
-        byte[] bytes = body.getBytes();
-        ex.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
-        ex.sendResponseHeaders(status, bytes.length);
-        try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+    /** HTML-escapes text for element content and double-quoted attributes. */
+    private static void escapeHtml(Writer out, String s) throws IOException {
+        int start = 0, n = s.length();
+        for (int i = 0; i < n; i++) {
+            String esc = switch (s.charAt(i)) {
+                case '<' -> "&lt;";
+                case '>' -> "&gt;";
+                case '&' -> "&amp;";
+                case '"' -> "&quot;";
+                case '\'' -> "&#39;";
+                default -> null;
+            };
+            if (esc == null) continue;
+            out.write(s, start, i - start);
+            out.write(esc);
+            start = i + 1;
+        }
+        out.write(s, start, n - start);
     }
 }
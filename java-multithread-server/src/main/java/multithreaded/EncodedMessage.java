@@ -0,0 +1,71 @@
+package multithreaded;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A chat message encoded to UTF-8 exactly once, shared read-only by every recipient.
+ * TCP writes {@link #line()} (payload + '\n'); WebSocket frames {@link #payload()}.
+ * Both hand out O(1) views over the same bytes, so fan-out never re-encodes or copies.
+ */
+final class EncodedMessage {
+    private volatile String text; // decoded lazily when built from bytes
+    private final ByteBuffer bytes; // read-only, payload followed by '\n'
+
+    private EncodedMessage(String text, ByteBuffer bytes) {
+        this.text = text;
+        this.bytes = bytes;
+    }
+
+    static EncodedMessage of(String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        byte[] line = new byte[utf8.length + 1];
+        System.arraycopy(utf8, 0, line, 0, utf8.length);
+        line[utf8.length] = '\n';
+        return new EncodedMessage(text, ByteBuffer.wrap(line).asReadOnlyBuffer());
+    }
+
+    /**
+     * {@code prefix} followed by already-encoded bytes, e.g. message text straight off the socket.
+     * Pure ASCII is copied as is; anything else goes through a decode so malformed input is replaced
+     * the same way a String round-trip would (WebSocket peers reject invalid UTF-8).
+     */
+    static EncodedMessage concat(String prefix, byte[] utf8, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (utf8[i] < 0) return of(prefix + new String(utf8, off, len, StandardCharsets.UTF_8));
+        }
+        byte[] head = prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] line = new byte[head.length + len + 1];
+        System.arraycopy(head, 0, line, 0, head.length);
+        System.arraycopy(utf8, off, line, head.length, len);
+        line[line.length - 1] = '\n';
+        return new EncodedMessage(null, ByteBuffer.wrap(line).asReadOnlyBuffer());
+    }
+
+    /** Bytes that already hold payload + '\n', e.g. a record in the {@link MessageLog}; not copied. */
+    static EncodedMessage wrap(ByteBuffer line) {
+        return new EncodedMessage(null, line.slice().asReadOnlyBuffer());
+    }
+
+    String text() {
+        String t = text;
+        if (t == null) {
+            ByteBuffer view = payload();
+            t = StandardCharsets.UTF_8.decode(view).toString();
+            text = t;
+        }
+        return t;
+    }
+
+    /** Payload plus trailing newline, positioned at 0; the caller may consume it. */
+    ByteBuffer line() { return bytes.duplicate(); }
+
+    /** Payload without the newline (a WebSocket text frame body). */
+    ByteBuffer payload() {
+        ByteBuffer view = bytes.duplicate();
+        view.limit(view.limit() - 1);
+        return view;
+    }
+
+    int lineLength() { return bytes.capacity(); }
+}
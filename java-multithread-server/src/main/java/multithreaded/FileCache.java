@@ -0,0 +1,246 @@
+package multithreaded;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Size-bounded LRU cache of file bytes, metadata and precompressed variants under one base
+ * directory. A WatchService on the directory tree drops entries as soon as files change.
+ */
+final class FileCache {
+    static final long MAX_BYTES = Long.getLong("chat.files.cache.bytes", 32L * 1024 * 1024);
+    static final long MAX_ENTRY_BYTES = Long.getLong("chat.files.cache.maxEntry", 1024L * 1024);
+    private static final int MIN_COMPRESS = 256;
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    private static final Map<Path, FileCache> CACHES = new ConcurrentHashMap<>();
+
+    /** One cache per base directory, so /files and GETFILE share entries for ./public. */
+    static FileCache of(Path baseDir) {
+        return CACHES.computeIfAbsent(baseDir.toAbsolutePath().normalize(),
+                dir -> new FileCache(dir, MAX_BYTES, MAX_ENTRY_BYTES));
+    }
+
+    static Collection<FileCache> all() { return CACHES.values(); }
+
+    final Path baseDir;
+    private final long maxBytes, maxEntryBytes;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong generation = new AtomicLong();
+    private long bytes;
+
+    final LongAdder hits = new LongAdder(), misses = new LongAdder();
+    final LongAdder evictions = new LongAdder(), invalidations = new LongAdder();
+
+    FileCache(Path baseDir, long maxBytes, long maxEntryBytes) {
+        this.baseDir = baseDir.toAbsolutePath().normalize();
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        startWatcher();
+    }
+
+    /** Resolves a request-relative path under the base directory, or null if it escapes it. */
+    Path resolve(String relative) {
+        try {
+            Path target = baseDir.resolve(relative).normalize();
+            return target.startsWith(baseDir) ? target : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /** Cached entry for a regular file, loading it on a miss; null if missing or not a regular file. */
+    Entry get(Path file) {
+        lock.lock();
+        try {
+            Entry e = entries.get(file);
+            if (e != null) { hits.increment(); return e; }
+        } finally {
+            lock.unlock();
+        }
+        misses.increment();
+        long gen = generation.get();
+        Entry loaded;
+        try {
+            loaded = load(file);
+        } catch (IOException e) {
+            return null;
+        }
+        if (loaded != null && loaded.bytes != null) put(loaded, gen);
+        return loaded;
+    }
+
+    private Entry load(Path file) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attrs.isRegularFile()) return null;
+        long modified = attrs.lastModifiedTime().toMillis();
+        // Too big to cache: metadata only, the body is streamed from disk.
+        if (attrs.size() > maxEntryBytes) return new Entry(file, null, attrs.size(), modified);
+        byte[] data = Files.readAllBytes(file);
+        return new Entry(file, data, data.length, modified);
+    }
+
+    private void put(Entry e, long gen) {
+        lock.lock();
+        try {
+            // A change notification arrived while we were reading: the bytes may be stale.
+            if (generation.get() != gen) return;
+            Entry old = entries.put(e.path, e);
+            if (old != null) bytes -= old.weight();
+            bytes += e.weight();
+            Iterator<Entry> it = entries.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Entry victim = it.next();
+                if (victim == e) continue;
+                it.remove();
+                bytes -= victim.weight();
+                evictions.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drops the entry for a path and everything below it. */
+    void invalidate(Path path) {
+        lock.lock();
+        try {
+            generation.incrementAndGet();
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (e.path.startsWith(path)) {
+                    it.remove();
+                    bytes -= e.weight();
+                    invalidations.increment();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() { invalidate(baseDir); }
+
+    int size() {
+        lock.lock();
+        try { return entries.size(); } finally { lock.unlock(); }
+    }
+
+    long bytes() {
+        lock.lock();
+        try { return bytes; } finally { lock.unlock(); }
+    }
+
+    private void startWatcher() {
+        if (!Files.isDirectory(baseDir)) return;
+        try {
+            WatchService watcher = baseDir.getFileSystem().newWatchService();
+            Map<WatchKey, Path> dirs = new ConcurrentHashMap<>();
+            registerTree(watcher, dirs, baseDir);
+            Thread t = new Thread(() -> watch(watcher, dirs), "file-cache-watch");
+            t.setDaemon(true);
+            t.start();
+        } catch (IOException e) {
+            System.out.println("[Files] no change notifications for " + baseDir + ": " + e.getMessage());
+        }
+    }
+
+    private void watch(WatchService watcher, Map<WatchKey, Path> dirs) {
+        while (true) {
+            WatchKey key;
+            try { key = watcher.take(); } catch (InterruptedException e) { return; }
+            Path dir = dirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) { clear(); continue; }
+                Path changed = dir.resolve((Path) event.context());
+                invalidate(changed);
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                    try { registerTree(watcher, dirs, changed); } catch (IOException ignored) {}
+                }
+            }
+            if (!key.reset()) dirs.remove(key);
+        }
+    }
+
+    private static void registerTree(WatchService watcher, Map<WatchKey, Path> dirs, Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dirs.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /** Immutable snapshot of one file. {@code bytes} is null for files over the per-entry limit. */
+    static final class Entry {
+        final Path path;
+        final byte[] bytes, gzip, deflate;
+        final long size, lastModified;
+        final String etag, lastModifiedHttp;
+        private volatile EncodedMessage[] lines;
+
+        Entry(Path path, byte[] bytes, long size, long lastModified) {
+            this.path = path;
+            this.bytes = bytes;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+            this.lastModifiedHttp = HTTP_DATE.format(Instant.ofEpochMilli(lastModified));
+            this.gzip = bytes == null ? null : compress(bytes, true);
+            this.deflate = bytes == null ? null : compress(bytes, false);
+        }
+
+        /** ETag of the representation sent for a content coding ("identity", "gzip" or "deflate"). */
+        String etag(String coding) {
+            return "identity".equals(coding) ? etag : etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+        }
+
+        /** The file as protocol lines for GETFILE, split and encoded once. */
+        EncodedMessage[] lines() {
+            EncodedMessage[] l = lines;
+            if (l == null) {
+                l = new String(bytes, StandardCharsets.UTF_8).lines().map(EncodedMessage::of).toArray(EncodedMessage[]::new);
+                lines = l;
+            }
+            return l;
+        }
+
+        long weight() {
+            return size + (gzip == null ? 0 : gzip.length) + (deflate == null ? 0 : deflate.length);
+        }
+
+        // Kept only when it saves at least a tenth of the bytes.
+        private static byte[] compress(byte[] data, boolean gzip) {
+            if (data.length < MIN_COMPRESS) return null;
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(data.length / 2);
+            try (DeflaterOutputStream z = gzip ? new GZIPOutputStream(buf) : new DeflaterOutputStream(buf)) {
+                z.write(data);
+            } catch (IOException e) {
+                return null;
+            }
+            return buf.size() <= data.length * 9L / 10 ? buf.toByteArray() : null;
+        }
+    }
+}
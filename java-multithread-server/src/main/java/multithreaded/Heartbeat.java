@@ -0,0 +1,68 @@
+package multithreaded;
+
+/**
+ * Idle and half-open detection for one connection, on {@link TimerWheel#SHARED}. Reads only stamp the wheel's
+ * current tick; the one wheel entry per connection looks at that stamp when it expires and either re-arms for
+ * the rest of the interval, sends a PING after {@code -Dchat.heartbeat.idleMs} (default 30 s) of silence, or
+ * closes the connection if nothing at all arrived within {@code -Dchat.heartbeat.timeoutMs} (default 15 s) of
+ * that PING. A connection that can't be pinged without blocking is closed at the idle mark instead.
+ * {@code idleMs=0} turns heartbeats off.
+ */
+final class Heartbeat extends TimerWheel.Task {
+    static final long IDLE_MS = Long.getLong("chat.heartbeat.idleMs", 30_000);
+    static final long TIMEOUT_MS = Long.getLong("chat.heartbeat.timeoutMs", 15_000);
+
+    /** What the heartbeat does to its connection; both are called on the wheel thread and must not block. */
+    interface Peer {
+        /** Sends a PING; false if that could block, and the connection is closed as idle instead. */
+        boolean ping();
+
+        void close();
+    }
+
+    private final Peer peer;
+    private final Metrics.Transport transport;
+    private final TimerWheel wheel;
+    private volatile long lastSeen;
+    private long pingedAt = -1; // tick of the outstanding PING; wheel thread only
+
+    private Heartbeat(Peer peer, Metrics.Transport transport, TimerWheel wheel) {
+        this.peer = peer;
+        this.transport = transport;
+        this.wheel = wheel;
+        this.lastSeen = wheel.now();
+    }
+
+    /** An armed heartbeat, or null when heartbeats are off. */
+    static Heartbeat start(Peer peer, Metrics.Transport transport) {
+        return IDLE_MS <= 0 ? null : start(peer, transport, TimerWheel.SHARED);
+    }
+
+    static Heartbeat start(Peer peer, Metrics.Transport transport, TimerWheel wheel) {
+        Heartbeat h = new Heartbeat(peer, transport, wheel);
+        wheel.schedule(h, wheel.ticks(IDLE_MS));
+        return h;
+    }
+
+    /** Called for every read; one volatile write, nothing is rescheduled. */
+    void touch() {
+        long now = wheel.now();
+        if (lastSeen != now) lastSeen = now;
+    }
+
+    @Override
+    void expire() {
+        long now = wheel.now(), seen = lastSeen, idle = wheel.ticks(IDLE_MS);
+        if (pingedAt >= 0 && seen >= pingedAt) pingedAt = -1; // answered, or anything else arrived
+        if (pingedAt < 0 && now - seen < idle) {
+            wheel.schedule(this, idle - (now - seen));
+        } else if (pingedAt < 0 && peer.ping()) {
+            pingedAt = now;
+            transport.pings.increment();
+            wheel.schedule(this, wheel.ticks(TIMEOUT_MS));
+        } else {
+            transport.idleClosed.increment();
+            peer.close();
+        }
+    }
+}
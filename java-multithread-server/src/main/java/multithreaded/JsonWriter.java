@@ -0,0 +1,123 @@
+package multithreaded;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Streaming JSON writer: values go straight to the underlying {@link Writer} with correct string
+ * escaping and comma placement, so a large document is never held in memory.
+ */
+final class JsonWriter {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer out;
+    private boolean[] hasElements = new boolean[16]; // per open container: does it need a comma next?
+    private int depth;
+    private boolean afterName;
+
+    JsonWriter(Writer out) {
+        this.out = out;
+    }
+
+    JsonWriter beginObject() throws IOException { return open('{'); }
+
+    JsonWriter endObject() throws IOException { return close('}'); }
+
+    JsonWriter beginArray() throws IOException { return open('['); }
+
+    JsonWriter endArray() throws IOException { return close(']'); }
+
+    JsonWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    JsonWriter value(String value) throws IOException {
+        if (value == null) return nullValue();
+        separate();
+        string(value);
+        return this;
+    }
+
+    JsonWriter value(long value) throws IOException {
+        separate();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    JsonWriter value(boolean value) throws IOException {
+        separate();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    JsonWriter nullValue() throws IOException {
+        separate();
+        out.write("null");
+        return this;
+    }
+
+    JsonWriter field(String name, long value) throws IOException { return name(name).value(value); }
+
+    JsonWriter field(String name, String value) throws IOException { return name(name).value(value); }
+
+    JsonWriter field(String name, boolean value) throws IOException { return name(name).value(value); }
+
+    void flush() throws IOException { out.flush(); }
+
+    private JsonWriter open(char c) throws IOException {
+        separate();
+        out.write(c);
+        if (++depth == hasElements.length) hasElements = Arrays.copyOf(hasElements, depth * 2);
+        hasElements[depth] = false;
+        return this;
+    }
+
+    private JsonWriter close(char c) throws IOException {
+        depth--;
+        out.write(c);
+        return this;
+    }
+
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0 && hasElements[depth]) out.write(',');
+        hasElements[depth] = true;
+    }
+
+    private void string(String s) throws IOException {
+        out.write('"');
+        int start = 0, n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            String esc;
+            if (c == '"') esc = "\\\"";
+            else if (c == '\\') esc = "\\\\";
+            else if (c == '\n') esc = "\\n";
+            else if (c == '\r') esc = "\\r";
+            else if (c == '\t') esc = "\\t";
+            else if (c < 0x20 || c == 0x2028 || c == 0x2029) esc = null; // hex escape below; raw U+2028/9 break JS
+            else continue;
+            out.write(s, start, i - start);
+            if (esc != null) {
+                out.write(esc);
+            } else {
+                out.write("\\u");
+                out.write(HEX[c >> 12 & 0xF]);
+                out.write(HEX[c >> 8 & 0xF]);
+                out.write(HEX[c >> 4 & 0xF]);
+                out.write(HEX[c & 0xF]);
+            }
+            start = i + 1;
+        }
+        out.write(s, start, n - start);
+        out.write('"');
+    }
+}
@@ -0,0 +1,53 @@
+package multithreaded;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where text-protocol lines for one TCP client go; implementations must be safe to call from any thread. Writes
+ * may sit in a per-connection buffer until {@link #flush()}, which each writer calls once it has nothing more
+ * to send for now.
+ */
+interface LineWriter {
+    void write(EncodedMessage message);
+
+    /** Writes {@code count} messages in order; transports that can do so use one gathering write. */
+    default void write(EncodedMessage[] batch, int count) {
+        for (int i = 0; i < count; i++) write(batch[i]);
+    }
+
+    default void println(String line) { write(EncodedMessage.of(line)); }
+
+    /** Replies to the client's own commands, in order; in binary mode one frame of REPLY records. */
+    default void reply(EncodedMessage[] replies, int count) { write(replies, count); }
+
+    /**
+     * Switches to {@link BinaryProtocol} frames: afterwards {@link #write} sends EVENT records. Only called
+     * before login, while the session's own thread is the only writer.
+     */
+    default void enterBinary() { throw new UnsupportedOperationException("binary framing"); }
+
+    /**
+     * Sends {@code header}, then {@code count} raw bytes of {@code file} from {@code position}, then {@code trailer},
+     * with nothing interleaved and without copying the file through the heap. False if the transport can't.
+     */
+    default boolean sendFile(EncodedMessage header, FileChannel file, long position, long count, EncodedMessage trailer)
+            throws IOException {
+        return false;
+    }
+
+    /** Sends whatever earlier writes left buffered. */
+    default void flush() {}
+
+    /** How long a writer with nothing more to send may leave bytes buffered before {@link #flush()}. */
+    default long flushDelayNanos() { return 0; }
+
+    /** True if writes and {@link #flush()} block until the peer takes the bytes. */
+    default boolean blocking() { return false; }
+
+    /** False while the transport's own send buffer is over its high-water mark. */
+    default boolean writable() { return true; }
+
+    /** Registers a callback (run from any thread) for when {@link #writable()} turns true again. */
+    default void onWritable(Runnable listener) {}
+}
@@ -0,0 +1,159 @@
+package multithreaded;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocking {@link LineWriter} over a socket channel. Guarded by a ReentrantLock rather than a monitor
+ * (PrintWriter's lock) so a virtual thread blocked in the socket write doesn't pin its carrier.
+ *
+ * Small writes are copied into a per-connection buffer instead of each costing a syscall. The buffer goes out
+ * once it holds {@code -Dchat.tcp.flushBytes} (default 16 KB; 0 writes every call straight through), with the
+ * first write after its oldest byte is {@code -Dchat.tcp.flushDelayUs} old (default 1000), or on {@link #flush()}:
+ * the session flushes after each read, and a drained mailbox {@link #flushDelayNanos() lingers} that long first
+ * so a broadcast storm's next messages share the write. A write that doesn't fit goes out together with the
+ * buffer in one gathering write.
+ */
+final class LockedLineWriter implements LineWriter {
+    static final int FLUSH_BYTES = Integer.getInteger("chat.tcp.flushBytes", 16 * 1024);
+    static final long FLUSH_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("chat.tcp.flushDelayUs", 1000));
+
+    private final GatheringByteChannel channel;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ByteBuffer buffer = FLUSH_BYTES > 0 ? ByteBuffer.allocateDirect(FLUSH_BYTES) : null; // guarded by lock
+    private long bufferedSince; // guarded by lock
+    private ByteBuffer[] views = new ByteBuffer[17]; // guarded by lock; [0] is the buffer's contents
+    private volatile boolean failed;
+    private boolean binary; // set before login, so before any other thread writes
+
+    LockedLineWriter(GatheringByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(EncodedMessage message) {
+        write(new EncodedMessage[] {message}, 1);
+    }
+
+    @Override
+    public void write(EncodedMessage[] batch, int count) {
+        gather(BinaryProtocol.EVENT, batch, count);
+    }
+
+    @Override
+    public void reply(EncodedMessage[] replies, int count) {
+        gather(BinaryProtocol.REPLY, replies, count);
+    }
+
+    @Override
+    public void enterBinary() {
+        lock.lock();
+        try { binary = true; } finally { lock.unlock(); }
+    }
+
+    @Override
+    public boolean blocking() { return true; }
+
+    @Override
+    public long flushDelayNanos() { return buffer == null ? 0 : FLUSH_DELAY_NANOS; }
+
+    @Override
+    public void flush() {
+        if (failed || buffer == null) return;
+        lock.lock();
+        try {
+            if (buffer.position() > 0) emit(0, 0);
+        } catch (IOException e) {
+            failed = true; // peer is gone; the reader side will notice and clean up
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // newline-terminated lines, or in binary mode a single frame of op records
+    private void gather(byte op, EncodedMessage[] batch, int count) {
+        if (failed) return;
+        lock.lock();
+        int n = binary ? 2 * count : count;
+        try {
+            if (views.length < n + 1) views = new ByteBuffer[n + 1];
+            long bytes = 0;
+            if (binary) {
+                bytes = BinaryProtocol.frame(op, batch, count, views, 1);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    views[i + 1] = batch[i].line();
+                    bytes += views[i + 1].remaining();
+                }
+            }
+            Metrics.TCP.out(count, bytes);
+            if (buffer != null && bytes <= buffer.remaining()) {
+                if (buffer.position() == 0) bufferedSince = System.nanoTime();
+                for (int i = 1; i <= n; i++) buffer.put(views[i]);
+                if (!buffer.hasRemaining() || System.nanoTime() - bufferedSince > FLUSH_DELAY_NANOS) emit(0, 0);
+            } else {
+                emit(n, bytes);
+            }
+        } catch (IOException e) {
+            failed = true;
+        } finally {
+            Arrays.fill(views, 0, n + 1, null);
+            lock.unlock();
+        }
+    }
+
+    /** Writes the buffer's contents, then {@code views[1..n]}, in one gathering write. Caller holds the lock. */
+    private void emit(int n, long bytes) throws IOException {
+        int first = 1;
+        if (buffer != null && buffer.position() > 0) {
+            buffer.flip();
+            views[0] = buffer;
+            bytes += buffer.remaining();
+            first = 0;
+        }
+        try {
+            while (bytes > 0) {
+                long written = channel.write(views, first, n + 1 - first);
+                Metrics.tcpWrite(written);
+                bytes -= written;
+                while (first <= n && !views[first].hasRemaining()) first++;
+            }
+        } finally {
+            if (buffer != null) buffer.clear();
+            views[0] = null;
+        }
+    }
+
+    @Override
+    public boolean sendFile(EncodedMessage header, FileChannel file, long position, long count, EncodedMessage trailer)
+            throws IOException {
+        lock.lock();
+        try {
+            Metrics.TCP.out(2, header.lineLength() + count + trailer.lineLength());
+            views[1] = header.line();
+            emit(1, views[1].remaining()); // anything buffered goes out with the header
+            // sendfile(2) on Linux: page cache straight to the socket
+            long end = position + count;
+            while (position < end) {
+                long n = file.transferTo(position, end - position, channel);
+                if (n == 0 && position >= file.size()) throw new IOException("file truncated");
+                Metrics.tcpWrite(n);
+                position += n;
+            }
+            views[1] = trailer.line();
+            emit(1, views[1].remaining());
+            return true;
+        } catch (IOException e) {
+            failed = true;
+            throw e;
+        } finally {
+            views[1] = null;
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,839 @@
+package multithreaded;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable, append-only log of delivered messages in memory-mapped segment files. Senders only enqueue (after
+ * live delivery); one writer thread appends, forces the dirty range once per drained batch (group commit) and
+ * runs retention and compaction. An index of recent record offsets per key (broadcasts, each user's PMs, each
+ * room) serves HISTORY, whose replies are views of the mapped record bytes.
+ *
+ * A PM for an offline user takes its inbox slot at once and is queued as an INBOX record; its offset is kept per
+ * user once written, and until then the message itself. The next login takes both and queues a DELIVERED record
+ * for the user, which cancels their earlier INBOX records on recovery, so a restart won't resend them. Nothing a
+ * sender or a login does waits for the writer, a segment roll or compaction.
+ *
+ * Record: {@code length:u32, crc32c:u32, millis:u64, kind:u8, fromLen:u16, from, keyLen:u16, key, line} where
+ * the CRC covers everything after itself and {@code line} is the message exactly as delivered, newline included.
+ */
+final class MessageLog {
+    static final long SEGMENT_BYTES = Long.getLong("chat.log.segmentBytes", 64L << 20);
+    // 0 = force after every batch the writer drains, N = at most every N ms, -1 = leave it to the OS
+    static final long FLUSH_MS = Long.getLong("chat.log.flushMs", 0);
+    static final int MAX_PENDING = Integer.getInteger("chat.log.maxPending", 65_536);
+    static final int INDEX_DEPTH = Integer.getInteger("chat.log.indexDepth", 1000);
+    static final long RETENTION_BYTES = Long.getLong("chat.log.retentionBytes", 1L << 30);
+    static final long RETENTION_MS = TimeUnit.HOURS.toMillis(Long.getLong("chat.log.retentionHours", 168));
+    // compaction drops records no index still points at (beyond each key's last INDEX_DEPTH); off keeps everything
+    static final boolean COMPACT = Boolean.getBoolean("chat.log.compact");
+    static final double COMPACT_LIVE_RATIO = Double.parseDouble(System.getProperty("chat.log.compact.liveRatio", "0.5"));
+    private static final long MAINTENANCE_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("chat.log.maintenanceSeconds", 60));
+    private static final int BATCH = 4096;
+
+    // offline inbox bounds: per user, and for all inboxes together
+    static final int INBOX_MESSAGES = Integer.getInteger("chat.inbox.maxMessages", 1000);
+    static final long INBOX_BYTES = Long.getLong("chat.inbox.maxBytes", 1L << 20);
+    static final long INBOX_TOTAL_BYTES = Long.getLong("chat.inbox.totalBytes", 256L << 20);
+
+    static final byte BROADCAST = 1, PRIVATE = 2, ROOM = 3, INBOX = 4, DELIVERED = 5;
+    private static final int FIXED = 4 + 4 + 8 + 1 + 2 + 2; // everything but from, key and line
+    private static final byte[] NONE = new byte[0];
+    private static final EncodedMessage[] EMPTY = new EncodedMessage[0];
+    private static final EncodedMessage NO_LINE = EncodedMessage.of("");
+
+    /** The log under {@code -Dchat.log.dir} (default data/log), or null with {@code -Dchat.log.enabled=false}. */
+    static MessageLog fromProperties() throws IOException {
+        if (!Boolean.parseBoolean(System.getProperty("chat.log.enabled", "true"))) return null;
+        return open(Paths.get(System.getProperty("chat.log.dir", "data/log")));
+    }
+
+    static MessageLog open(Path dir) throws IOException {
+        MessageLog log = new MessageLog(dir);
+        log.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(log::close, "message-log-close"));
+        return log;
+    }
+
+    final Path dir;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, KeyIndex> index = new ConcurrentHashMap<>();
+    // held for writing only while compaction or retention moves or deletes records; taken before inboxLock
+    private final ReentrantReadWriteLock maintenance = new ReentrantReadWriteLock();
+    // guards the inboxes and their totals only, so a sender or a login never waits for disk work
+    private final ReentrantLock inboxLock = new ReentrantLock();
+    private final Map<String, Inbox> inboxes = new HashMap<>();
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread writer;
+    // zero-fills the next segment while the writer fills the current one
+    private final ExecutorService preallocator = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "message-log-preallocate");
+        t.setDaemon(true);
+        return t;
+    });
+    private final CRC32C crc = new CRC32C();
+    private volatile boolean parked, closing, failed, retainDue;
+    // the rest is the writer thread's (and recovery's) alone
+    private Segment active;
+    private int forcedTo;
+    private Future<Path> spare; // the next segment's file, preallocated
+    private long inboxMessages, inboxBytes; // guarded by inboxLock
+
+    final LongAdder appended = new LongAdder(), appendedBytes = new LongAdder(), dropped = new LongAdder();
+    final LongAdder forces = new LongAdder(), compactions = new LongAdder(), deletedSegments = new LongAdder();
+    final LongAdder inboxStored = new LongAdder(), inboxDelivered = new LongAdder(), inboxRejected = new LongAdder();
+    final Metrics.Histogram forceLatency = new Metrics.Histogram();
+
+    private MessageLog(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        recover();
+        this.writer = new Thread(this::run, "message-log-writer");
+        writer.setDaemon(true);
+    }
+
+    /** Queues a delivered message; never blocks. Dropped (and counted) if the writer is {@link #MAX_PENDING} behind. */
+    void append(byte kind, String from, String key, EncodedMessage message) {
+        if (closing || failed) { dropped.increment(); return; }
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        queue.add(new Pending(kind, from, key, message, System.currentTimeMillis(), null));
+        if (parked) LockSupport.unpark(writer);
+    }
+
+    /**
+     * Stores a PM for an offline user: takes a slot in their inbox, so a login right after gets it, and queues the
+     * INBOX record (never dropped for {@link #MAX_PENDING}: the inbox bounds already count it). False, storing
+     * nothing, once the inbox holds {@link #INBOX_MESSAGES} messages or {@link #INBOX_BYTES} bytes, or all inboxes
+     * together {@link #INBOX_TOTAL_BYTES}.
+     */
+    boolean store(String from, String to, EncodedMessage message) {
+        if (closing || failed) return false;
+        int size = message.lineLength();
+        inboxLock.lock();
+        try {
+            Inbox box = inboxes.get(to);
+            boolean full = box != null ? box.size() >= INBOX_MESSAGES || box.bytes + size > INBOX_BYTES : size > INBOX_BYTES;
+            if (full || inboxBytes + size > INBOX_TOTAL_BYTES) {
+                inboxRejected.increment();
+                return false;
+            }
+            if (box == null) inboxes.put(to, box = new Inbox());
+            Pending p = new Pending(INBOX, from, to, message, System.currentTimeMillis(), null);
+            box.unwritten.addLast(p);
+            box.bytes += size;
+            inboxMessages++;
+            inboxBytes += size;
+            // queued under the lock: a login that takes the inbox queues its DELIVERED record behind this one
+            pending.incrementAndGet();
+            queue.add(p);
+        } finally {
+            inboxLock.unlock();
+        }
+        inboxStored.increment();
+        if (parked) LockSupport.unpark(writer);
+        return true;
+    }
+
+    /** Removes and returns everything stored for {@code user}, oldest first: views of the log, then those not yet written. */
+    EncodedMessage[] takeInbox(String user) {
+        EncodedMessage[] out;
+        maintenance.readLock().lock(); // nothing moves the records while we take views of them
+        inboxLock.lock();
+        try {
+            Inbox box = inboxes.remove(user);
+            if (box == null) return EMPTY;
+            inboxMessages -= box.size();
+            inboxBytes -= box.bytes;
+            List<EncodedMessage> taken = new ArrayList<>(box.size());
+            for (int i = 0; i < box.count; i++) {
+                EncodedMessage m = read(box.offsets[i]);
+                if (m != null) taken.add(m);
+            }
+            for (Pending p : box.unwritten) taken.add(p.message);
+            pending.incrementAndGet();
+            queue.add(new Pending(DELIVERED, null, user, NO_LINE, System.currentTimeMillis(), box));
+            inboxDelivered.add(taken.size());
+            out = taken.toArray(EMPTY);
+        } finally {
+            inboxLock.unlock();
+            maintenance.readLock().unlock();
+        }
+        if (parked) LockSupport.unpark(writer);
+        return out;
+    }
+
+    /**
+     * Up to {@code n} logged messages, oldest first: one room's posts, or (room null) broadcasts plus the
+     * user's private messages, sent and received. The messages are read-only views of the mapped segments.
+     */
+    EncodedMessage[] history(String user, String room, int n) {
+        n = Math.max(0, Math.min(n, INDEX_DEPTH));
+        maintenance.readLock().lock();
+        try {
+            long[] offsets = room != null ? last("#" + room, n) : merge(last("*", n), last("@" + user, n), n);
+            List<EncodedMessage> out = new ArrayList<>(offsets.length);
+            for (long offset : offsets) {
+                EncodedMessage m = read(offset);
+                if (m != null) out.add(m);
+            }
+            return out.toArray(EMPTY);
+        } finally {
+            maintenance.readLock().unlock();
+        }
+    }
+
+    int pending() { return pending.get(); }
+
+    int segmentCount() { return segments.size(); }
+
+    int indexedKeys() { return index.size(); }
+
+    long bytes() {
+        long total = 0;
+        for (Segment s : segments.values()) total += s.end;
+        return total;
+    }
+
+    /** Users with PMs waiting, as a copy. */
+    List<String> inboxUsers() {
+        inboxLock.lock();
+        try {
+            return new ArrayList<>(inboxes.keySet());
+        } finally {
+            inboxLock.unlock();
+        }
+    }
+
+    /** Messages, bytes and users waiting in offline inboxes. */
+    long[] inboxTotals() {
+        inboxLock.lock();
+        try {
+            return new long[] {inboxMessages, inboxBytes, inboxes.size()};
+        } finally {
+            inboxLock.unlock();
+        }
+    }
+
+    /** Writes out everything queued, forces it and stops the writer. */
+    void close() {
+        if (closing) return;
+        closing = true;
+        LockSupport.unpark(writer);
+        try { writer.join(5000); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+
+    // ---- writer thread ----
+
+    private void run() {
+        long lastForce = System.nanoTime(), nextMaintenance = lastForce + MAINTENANCE_NANOS;
+        long flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, FLUSH_MS));
+        prepareSpare();
+        while (true) {
+            int n = 0;
+            for (Pending p; n < BATCH && (p = queue.poll()) != null; n++) {
+                pending.decrementAndGet();
+                if (!failed) write(p);
+            }
+            long now = System.nanoTime();
+            if (FLUSH_MS >= 0 && dirty() && now - lastForce >= flushNanos) {
+                force();
+                lastForce = now;
+            }
+            if (retainDue) {
+                retainDue = false;
+                retain();
+            }
+            if (now - nextMaintenance >= 0) {
+                maintain();
+                nextMaintenance = now + MAINTENANCE_NANOS;
+            }
+            if (n > 0) continue;
+            if (closing) break;
+            parked = true;
+            if (queue.isEmpty()) {
+                long wait = nextMaintenance - now;
+                if (FLUSH_MS >= 0 && dirty()) wait = Math.min(wait, flushNanos - (now - lastForce));
+                LockSupport.parkNanos(Math.max(wait, 1));
+            }
+            parked = false;
+        }
+        if (dirty()) force();
+    }
+
+    private void write(Pending p) {
+        long offset = append(p.kind, p.from, p.key, p.message, p.millis);
+        if (offset < 0) return;
+        if (p.kind == DELIVERED) {
+            release(p.taken);
+            return;
+        }
+        if (p.kind != INBOX) return;
+        inboxLock.lock();
+        try {
+            // still waiting in its inbox, else a login took it and the DELIVERED record behind it cancels this one
+            Inbox box = inboxes.get(p.key);
+            if (box != null && box.unwritten.peekFirst() == p) {
+                box.unwritten.pollFirst();
+                box.written(offset);
+                active.refs++;
+                active.totalRefs++;
+            }
+        } finally {
+            inboxLock.unlock();
+        }
+    }
+
+    /** Writes one record and indexes it; returns its offset, or -1 once the log has failed. */
+    private long append(byte kind, String from, String key, EncodedMessage message, long millis) {
+        byte[] fromBytes = from == null ? NONE : from.getBytes(StandardCharsets.UTF_8);
+        byte[] keyBytes = key == null ? NONE : key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer line = message.line();
+        int len = FIXED + fromBytes.length + keyBytes.length + line.remaining();
+        try {
+            if (active == null || active.end + len > active.map.capacity()) roll(len);
+        } catch (IOException e) {
+            failed = true;
+            System.out.println("[Log] disabled, cannot create a segment in " + dir + ": " + e);
+            return -1;
+        }
+        Segment s = active;
+        MappedByteBuffer m = s.map;
+        int pos = s.end;
+        m.putInt(pos, len);
+        m.putLong(pos + 8, millis);
+        m.put(pos + 16, kind);
+        m.putShort(pos + 17, (short) fromBytes.length);
+        m.put(pos + 19, fromBytes);
+        int keyPos = pos + 19 + fromBytes.length;
+        m.putShort(keyPos, (short) keyBytes.length);
+        m.put(keyPos + 2, keyBytes);
+        m.put(keyPos + 2 + keyBytes.length, line, line.position(), line.remaining());
+        crc.reset();
+        crc.update(m.slice(pos + 8, len - 8));
+        m.putInt(pos + 4, (int) crc.getValue());
+        s.end = pos + len; // publishes the record to readers
+        s.newestMillis = millis;
+        index(s, kind, from, key, s.base + pos);
+        appended.increment();
+        appendedBytes.add(len);
+        return s.base + pos;
+    }
+
+    private boolean dirty() {
+        return active != null && active.end > forcedTo;
+    }
+
+    private void force() {
+        long start = System.nanoTime();
+        active.map.force(forcedTo, active.end - forcedTo);
+        forcedTo = active.end;
+        forces.increment();
+        forceLatency.record(System.nanoTime() - start);
+    }
+
+    private void roll(int need) throws IOException {
+        long base = 0;
+        if (active != null) {
+            if (dirty()) force();
+            seal(active);
+            base = active.base + active.end;
+        }
+        Path path = dir.resolve(String.format("%020d.log", base));
+        long size = Math.max(SEGMENT_BYTES, need);
+        Path spareFile = takeSpare(size);
+        if (spareFile != null) Files.move(spareFile, path, StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            preallocate(ch, size); // nothing left to do for a spare
+            active = new Segment(base, path, ch.map(FileChannel.MapMode.READ_WRITE, 0, size), 0);
+        }
+        forcedTo = 0;
+        segments.put(base, active);
+        retainDue = true;
+        prepareSpare();
+    }
+
+    private void prepareSpare() {
+        if (spare != null) return;
+        Path path = dir.resolve("next.spare");
+        spare = preallocator.submit(() -> {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                preallocate(ch, SEGMENT_BYTES);
+            }
+            return path;
+        });
+    }
+
+    // the spare once it is ready and big enough; else null, and roll preallocates in line
+    private Path takeSpare(long size) {
+        if (spare == null || !spare.isDone() || size > SEGMENT_BYTES) return null;
+        try {
+            return spare.get();
+        } catch (Exception e) {
+            return null;
+        } finally {
+            spare = null;
+        }
+    }
+
+    // real blocks, not a sparse file: a full disk then fails here instead of as a SIGBUS on a mapped write
+    private static void preallocate(FileChannel ch, long size) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(1 << 20);
+        for (long pos = ch.size(); pos < size; ) {
+            zeros.clear().limit((int) Math.min(zeros.capacity(), size - pos));
+            pos += ch.write(zeros, pos);
+        }
+    }
+
+    private static void seal(Segment s) {
+        try (FileChannel ch = FileChannel.open(s.path, StandardOpenOption.WRITE)) {
+            ch.truncate(s.end);
+        } catch (IOException ignored) {
+            // e.g. Windows won't shrink a mapped file; recovery stops at the first empty record anyway
+        }
+    }
+
+    private void maintain() {
+        retain();
+        if (!COMPACT) return;
+        for (Segment s : segments.values()) {
+            if (s != active && s.refs <= s.totalRefs * COMPACT_LIVE_RATIO) compact(s);
+        }
+    }
+
+    /** Deletes the oldest segments while the log is over its byte budget or they only hold expired records. */
+    private void retain() {
+        long total = bytes(), now = System.currentTimeMillis();
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            boolean expired = RETENTION_MS > 0 && oldest.newestMillis < now - RETENTION_MS;
+            if (total <= RETENTION_BYTES && !expired) break;
+            total -= oldest.end;
+            delete(oldest);
+        }
+    }
+
+    private void delete(Segment s) {
+        maintenance.writeLock().lock();
+        inboxLock.lock();
+        try {
+            segments.remove(s.base);
+            long next = s.base + s.end;
+            index.values().removeIf(k -> k.dropRange(s.base, next) == 0);
+            // undelivered PMs expire with their segment
+            inboxes.values().removeIf(box -> {
+                int before = box.count;
+                inboxBytes -= box.dropSegment(s);
+                inboxMessages -= before - box.count;
+                return box.size() == 0;
+            });
+        } finally {
+            inboxLock.unlock();
+            maintenance.writeLock().unlock();
+        }
+        try { Files.deleteIfExists(s.path); } catch (IOException ignored) {}
+        deletedSegments.increment();
+    }
+
+    /**
+     * Rewrites a sealed segment with only the records an index or inbox still points at; offsets keep their
+     * order. The copy and its fsync hold no lock: on the writer thread nothing else adds offsets, and a record
+     * taken from an inbox meanwhile is just kept one compaction longer. Only the swap excludes readers.
+     */
+    private void compact(Segment s) {
+        if (s.refs == 0) {
+            delete(s);
+            return;
+        }
+        List<Integer> live = new ArrayList<>();
+        int liveBytes = 0;
+        for (int pos = 0; pos < s.end; pos += s.map.getInt(pos)) {
+            if (isLive(s, pos)) {
+                live.add(pos);
+                liveBytes += s.map.getInt(pos);
+            }
+        }
+        Path tmp = s.path.resolveSibling(s.path.getFileName() + ".compacting");
+        MappedByteBuffer map;
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for (int pos : live) {
+                ByteBuffer record = s.map.slice(pos, s.map.getInt(pos));
+                while (record.hasRemaining()) ch.write(record);
+            }
+            ch.force(true);
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, liveBytes);
+        } catch (IOException e) {
+            System.out.println("[Log] compaction of " + s.path.getFileName() + " failed: " + e);
+            try { Files.deleteIfExists(tmp); } catch (IOException ignored) {}
+            return;
+        }
+        maintenance.writeLock().lock();
+        inboxLock.lock();
+        try {
+            Files.move(tmp, s.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Segment c = new Segment(s.base, s.path, map, liveBytes);
+            c.newestMillis = s.newestMillis;
+            c.refs = c.totalRefs = s.refs;
+            int to = 0;
+            for (int from : live) {
+                for (String key : keys(map, to)) {
+                    KeyIndex k = index.get(key);
+                    if (k != null) k.replace(s.base + from, s.base + to);
+                }
+                if (map.get(to + 16) == INBOX) {
+                    Inbox box = inboxes.get(string(map, to + 19 + (map.getShort(to + 17) & 0xFFFF)));
+                    if (box != null) box.replace(s.base + from, s.base + to);
+                }
+                to += map.getInt(to);
+            }
+            segments.put(s.base, c);
+            compactions.increment();
+        } catch (IOException e) {
+            System.out.println("[Log] compaction of " + s.path.getFileName() + " failed: " + e);
+            try { Files.deleteIfExists(tmp); } catch (IOException ignored) {}
+        } finally {
+            inboxLock.unlock();
+            maintenance.writeLock().unlock();
+        }
+    }
+
+    private boolean isLive(Segment s, int pos) {
+        byte kind = s.map.get(pos + 16);
+        if (kind == DELIVERED) return true; // it still cancels INBOX records in older segments
+        for (String key : keys(s.map, pos)) {
+            KeyIndex k = index.get(key);
+            if (k != null && k.contains(s.base + pos)) return true;
+        }
+        if (kind != INBOX) return false;
+        inboxLock.lock();
+        try {
+            Inbox box = inboxes.get(string(s.map, pos + 19 + (s.map.getShort(pos + 17) & 0xFFFF)));
+            return box != null && box.find(s.base + pos) >= 0;
+        } finally {
+            inboxLock.unlock();
+        }
+    }
+
+    // ---- index and inboxes (writer thread; the inboxes under inboxLock) ----
+
+    private void index(Segment s, byte kind, String from, String key, long offset) {
+        switch (kind) {
+            case BROADCAST -> add(s, "*", offset);
+            case ROOM -> add(s, "#" + key, offset);
+            case PRIVATE, INBOX -> {
+                add(s, "@" + key, offset);
+                if (from != null && !from.equals(key)) add(s, "@" + from, offset);
+            }
+            case DELIVERED -> {
+                // never released: a segment holding one is only deleted by retention, oldest first
+                s.refs++;
+                s.totalRefs++;
+            }
+            default -> {}
+        }
+    }
+
+    private void add(Segment s, String key, long offset) {
+        long evicted = index.computeIfAbsent(key, k -> new KeyIndex()).add(offset);
+        s.refs++;
+        s.totalRefs++;
+        if (evicted >= 0) {
+            Map.Entry<Long, Segment> e = segments.floorEntry(evicted);
+            if (e != null) e.getValue().refs--;
+        }
+    }
+
+    /** Drops a taken inbox's references to its records; compaction keeps the same base, so offsets still map. */
+    private void release(Inbox box) {
+        for (int i = 0; i < box.count; i++) {
+            Map.Entry<Long, Segment> e = segments.floorEntry(box.offsets[i]);
+            if (e != null && box.offsets[i] < e.getKey() + e.getValue().end) e.getValue().refs--;
+        }
+    }
+
+    private static List<String> keys(ByteBuffer m, int pos) {
+        byte kind = m.get(pos + 16);
+        String from = string(m, pos + 17);
+        int keyPos = pos + 19 + (m.getShort(pos + 17) & 0xFFFF);
+        String key = string(m, keyPos);
+        return switch (kind) {
+            case BROADCAST -> List.of("*");
+            case ROOM -> List.of("#" + key);
+            case PRIVATE, INBOX -> from.isEmpty() || from.equals(key) ? List.of("@" + key) : List.of("@" + key, "@" + from);
+            default -> List.of();
+        };
+    }
+
+    private static String string(ByteBuffer m, int lenPos) {
+        int len = m.getShort(lenPos) & 0xFFFF;
+        byte[] b = new byte[len];
+        m.get(lenPos + 2, b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private long[] last(String key, int n) {
+        KeyIndex k = index.get(key);
+        return k == null ? new long[0] : k.last(n);
+    }
+
+    /** The newest {@code n} of two ascending offset lists, still ascending. */
+    private static long[] merge(long[] a, long[] b, int n) {
+        long[] out = new long[Math.min(n, a.length + b.length)];
+        int i = a.length, j = b.length;
+        for (int k = out.length - 1; k >= 0; k--) {
+            out[k] = j == 0 || (i > 0 && a[i - 1] > b[j - 1]) ? a[--i] : b[--j];
+        }
+        return out;
+    }
+
+    private EncodedMessage read(long offset) {
+        Map.Entry<Long, Segment> e = segments.floorEntry(offset);
+        if (e == null) return null;
+        Segment s = e.getValue();
+        int pos = (int) (offset - s.base);
+        if (pos >= s.end) return null;
+        MappedByteBuffer m = s.map;
+        int keyPos = pos + 19 + (m.getShort(pos + 17) & 0xFFFF);
+        int linePos = keyPos + 2 + (m.getShort(keyPos) & 0xFFFF);
+        return EncodedMessage.wrap(m.slice(linePos, pos + m.getInt(pos) - linePos));
+    }
+
+    private static int lineLength(Segment s, long offset) {
+        int pos = (int) (offset - s.base);
+        MappedByteBuffer m = s.map;
+        int keyPos = pos + 19 + (m.getShort(pos + 17) & 0xFFFF);
+        return pos + m.getInt(pos) - (keyPos + 2 + (m.getShort(keyPos) & 0xFFFF));
+    }
+
+    // ---- startup ----
+
+    private void recover() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                String name = p.getFileName().toString();
+                if (name.endsWith(".compacting")) Files.delete(p);
+            }
+        }
+        List<Path> logs = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(p -> p.getFileName().toString().matches("\\d{20}\\.log")).sorted().forEach(logs::add);
+        }
+        for (int i = 0; i < logs.size(); i++) {
+            Path path = logs.get(i);
+            long base = Long.parseLong(path.getFileName().toString().substring(0, 20));
+            boolean last = i == logs.size() - 1;
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = last ? Math.max(ch.size(), SEGMENT_BYTES) : ch.size();
+                if (last) preallocate(ch, size);
+                MappedByteBuffer map = ch.map(last ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+                Segment s = new Segment(base, path, map, 0);
+                segments.put(base, s);
+                scan(s);
+                if (last) {
+                    active = s;
+                    forcedTo = s.end;
+                }
+            }
+        }
+        if (!segments.isEmpty()) {
+            System.out.println("[Log] " + dir + ": " + segments.size() + " segments, " + bytes() + " bytes, "
+                    + index.size() + " keys, " + inboxMessages + " messages in " + inboxes.size() + " inboxes");
+        }
+    }
+
+    /** Indexes every intact record and sets {@code end} to the first torn or empty one. */
+    private void scan(Segment s) {
+        MappedByteBuffer m = s.map;
+        int pos = 0, cap = m.capacity();
+        while (pos + FIXED <= cap) {
+            int len = m.getInt(pos);
+            if (len < FIXED + 1 || len > cap - pos) break;
+            crc.reset();
+            crc.update(m.slice(pos + 8, len - 8));
+            if ((int) crc.getValue() != m.getInt(pos + 4)) break;
+            s.end = pos + len;
+            s.newestMillis = m.getLong(pos + 8);
+            byte kind = m.get(pos + 16);
+            String from = string(m, pos + 17);
+            String key = string(m, pos + 19 + (m.getShort(pos + 17) & 0xFFFF));
+            long offset = s.base + pos;
+            index(s, kind, from.isEmpty() ? null : from, key, offset);
+            if (kind == INBOX) {
+                int lineLength = lineLength(s, offset);
+                inboxes.computeIfAbsent(key, k -> new Inbox()).add(offset, lineLength);
+                inboxMessages++;
+                inboxBytes += lineLength;
+                s.refs++;
+                s.totalRefs++;
+            } else if (kind == DELIVERED) {
+                Inbox box = inboxes.remove(key);
+                if (box != null) {
+                    inboxMessages -= box.count;
+                    inboxBytes -= box.bytes;
+                    release(box);
+                }
+            }
+            pos += len;
+        }
+    }
+
+    private static final class Segment {
+        final long base;
+        final Path path;
+        final MappedByteBuffer map;
+        volatile int end; // bytes of intact records; readers never look past it
+        long newestMillis;
+        int refs, totalRefs; // index and inbox entries pointing here now / ever (writer thread)
+
+        Segment(long base, Path path, MappedByteBuffer map, int end) {
+            this.base = base;
+            this.path = path;
+            this.map = map;
+            this.end = end;
+        }
+    }
+
+    /** The newest {@link #INDEX_DEPTH} record offsets for one key, ascending, in a growable ring. */
+    private static final class KeyIndex {
+        private long[] ring = new long[Math.min(8, INDEX_DEPTH)];
+        private int head, size;
+
+        /** Returns the offset that fell out of the window, or -1. */
+        synchronized long add(long offset) {
+            if (size == ring.length && size < INDEX_DEPTH) {
+                long[] grown = new long[Math.min(INDEX_DEPTH, size * 2)];
+                for (int i = 0; i < size; i++) grown[i] = at(i);
+                ring = grown;
+                head = 0;
+            }
+            if (size < ring.length) {
+                ring[(head + size++) % ring.length] = offset;
+                return -1;
+            }
+            long evicted = ring[head];
+            ring[head] = offset;
+            head = (head + 1) % ring.length;
+            return evicted;
+        }
+
+        synchronized long[] last(int n) {
+            int k = Math.min(n, size);
+            long[] out = new long[k];
+            for (int i = 0; i < k; i++) out[i] = at(size - k + i);
+            return out;
+        }
+
+        synchronized boolean contains(long offset) {
+            return find(offset) >= 0;
+        }
+
+        synchronized void replace(long offset, long moved) {
+            int i = find(offset);
+            if (i >= 0) ring[(head + i) % ring.length] = moved;
+        }
+
+        /** Drops offsets in {@code [from, to)} and returns how many are left. */
+        synchronized int dropRange(long from, long to) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                long o = at(i);
+                if (o < from || o >= to) ring[(head + kept++) % ring.length] = o;
+            }
+            size = kept;
+            return size;
+        }
+
+        private long at(int i) { return ring[(head + i) % ring.length]; }
+
+        private int find(long offset) {
+            int lo = 0, hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long v = at(mid);
+                if (v < offset) lo = mid + 1;
+                else if (v > offset) hi = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * One user's undelivered PMs (under inboxLock): ascending record offsets into the log, 8 bytes each, then the
+     * ones still queued for the writer. {@code bytes} counts both.
+     */
+    private static final class Inbox {
+        long[] offsets = new long[4];
+        int count;
+        long bytes;
+        final ArrayDeque<Pending> unwritten = new ArrayDeque<>();
+
+        int size() { return count + unwritten.size(); }
+
+        void add(long offset, int lineLength) {
+            written(offset);
+            bytes += lineLength;
+        }
+
+        void written(long offset) {
+            if (count == offsets.length) offsets = Arrays.copyOf(offsets, count * 2);
+            offsets[count++] = offset;
+        }
+
+        int find(long offset) {
+            return Arrays.binarySearch(offsets, 0, count, offset);
+        }
+
+        void replace(long offset, long moved) {
+            int i = find(offset);
+            if (i >= 0) offsets[i] = moved;
+        }
+
+        /** Drops the offsets that lived in deleted segment {@code s} and returns the bytes they held. */
+        long dropSegment(Segment s) {
+            int kept = 0;
+            long dropped = 0, end = s.base + s.end;
+            for (int i = 0; i < count; i++) {
+                long o = offsets[i];
+                if (o >= s.base && o < end) dropped += lineLength(s, o);
+                else offsets[kept++] = o;
+            }
+            count = kept;
+            bytes -= dropped;
+            return dropped;
+        }
+    }
+
+    /** A record for the writer; {@code taken} is the inbox a DELIVERED record closes. */
+    private record Pending(byte kind, String from, String key, EncodedMessage message, long millis, Inbox taken) {}
+}
@@ -0,0 +1,395 @@
+package multithreaded;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters and latency histograms for the hot paths. Everything is a {@link LongAdder}, so
+ * recording never takes a lock and contending threads land on different cells. Command latency is timed
+ * for one call in {@code -Dchat.metrics.sample} (default 1 = every call); {@code -Dchat.metrics.enabled=false}
+ * turns recording off entirely.
+ */
+final class Metrics {
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.metrics.enabled", "true"));
+    // rounded up to a power of two so the sampling test is a mask
+    private static final int SAMPLE_MASK = Integer.highestOneBit(Math.max(1, Integer.getInteger("chat.metrics.sample", 1)) * 2 - 1) - 1;
+
+    static final Transport TCP = new Transport("tcp");
+    static final Transport WS = new Transport("ws");
+
+    static final LongAdder broadcasts = new LongAdder();
+    static final LongAdder privateMessages = new LongAdder();
+    static final LongAdder roomPosts = new LongAdder();
+    static final LongAdder fanout = new LongAdder(); // mailbox offers made by the three above
+    static final Histogram broadcastLatency = new Histogram();
+
+    // TCP admission: clients turned away with ERR BUSY (pool queue full, queued too long, per-IP cap)
+    static final LongAdder tcpRejections = new LongAdder();
+    static final LongAdder shedQueueWait = new LongAdder();
+    static final LongAdder shedPerIp = new LongAdder();
+    static final LongAdder poolResizes = new LongAdder();
+    static final Histogram tcpQueueWait = new Histogram(); // accept -> a pool worker picks the client up
+
+    // TCP connections taken by each acceptor thread (with SO_REUSEPORT, how well the kernel spreads them)
+    static final LongAdder[] acceptedBy = new LongAdder[ChatServer.ACCEPTORS];
+
+    static {
+        for (int i = 0; i < acceptedBy.length; i++) acceptedBy[i] = new LongAdder();
+    }
+
+    // TCP write syscalls (both engines) and the bytes each one carried
+    static final LongAdder tcpWrites = new LongAdder();
+    static final SizeHistogram tcpWriteSize = new SizeHistogram();
+    // WebSocket frames sent (batch mode packs many messages into one), and sessions per option
+    static final LongAdder wsFrames = new LongAdder();
+    static final LongAdder wsBatchSessions = new LongAdder();
+    static final LongAdder wsDeflateSessions = new LongAdder();
+    private static volatile ThreadPoolExecutor tcpExecutor;
+
+    private Metrics() {}
+
+    /** Exposes the TCP client pool's queue depth and thread counts. */
+    static void watch(ThreadPoolExecutor executor) { tcpExecutor = executor; }
+
+    static ThreadPoolExecutor tcpExecutor() { return tcpExecutor; }
+
+    /** Start timestamp for a sampled operation, or 0 when this call isn't timed. */
+    static long start() {
+        if (!ENABLED) return 0;
+        if (SAMPLE_MASK != 0 && (ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) != 0) return 0;
+        return System.nanoTime();
+    }
+
+    /** Counts a TCP connection taken by acceptor {@code id}. */
+    static void accepted(int id) {
+        TCP.accepted.increment();
+        acceptedBy[id].increment();
+    }
+
+    /** Counts one socket write call that sent {@code bytes}. */
+    static void tcpWrite(long bytes) {
+        if (!ENABLED) return;
+        tcpWrites.increment();
+        tcpWriteSize.record(bytes);
+    }
+
+    /** Counts one fan-out (broadcast, private message or room post) to {@code recipients} mailboxes. */
+    static void fanout(LongAdder kind, int recipients) {
+        if (!ENABLED) return;
+        kind.increment();
+        fanout.add(recipients);
+    }
+
+    /** Traffic and per-command counters for one transport. */
+    static final class Transport {
+        final String name;
+        final LongAdder accepted = new LongAdder(), acceptErrors = new LongAdder();
+        final LongAdder messagesIn = new LongAdder(), bytesIn = new LongAdder();
+        final LongAdder messagesOut = new LongAdder(), bytesOut = new LongAdder();
+        final LongAdder pings = new LongAdder(), idleClosed = new LongAdder(); // see Heartbeat
+        final LongAdder[] commands = new LongAdder[Command.Verb.values().length];
+        final Histogram[] latency = new Histogram[Command.Verb.values().length];
+
+        Transport(String name) {
+            this.name = name;
+            for (int i = 0; i < commands.length; i++) {
+                commands[i] = new LongAdder();
+                latency[i] = new Histogram();
+            }
+        }
+
+        void in() {
+            if (ENABLED) messagesIn.increment();
+        }
+
+        void received(long bytes) {
+            if (ENABLED) bytesIn.add(bytes);
+        }
+
+        void out(int messages, long bytes) {
+            if (!ENABLED) return;
+            messagesOut.add(messages);
+            bytesOut.add(bytes);
+        }
+
+        void command(Command.Verb verb, long start) {
+            if (!ENABLED) return;
+            commands[verb.ordinal()].increment();
+            if (start != 0) latency[verb.ordinal()].record(System.nanoTime() - start);
+        }
+
+        /** Counts raw bytes read from a blocking socket (the reader only sees decoded lines). */
+        InputStream countBytes(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0 && ENABLED) bytesIn.increment();
+                    return b;
+                }
+
+                @Override public int read(byte[] buf, int off, int len) throws IOException {
+                    int n = super.read(buf, off, len);
+                    if (n > 0 && ENABLED) bytesIn.add(n);
+                    return n;
+                }
+            };
+        }
+    }
+
+    /**
+     * Power-of-two latency buckets from 1 µs to ~69 s (plus overflow), each a LongAdder. Bucket {@code b}
+     * holds durations below {@code 1024 << b} ns, so recording is a leading-zero count and one add.
+     */
+    static final class Histogram {
+        static final int BUCKETS = 27;
+        private final LongAdder[] counts = new LongAdder[BUCKETS + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            int b = 64 - Long.numberOfLeadingZeros(Math.max(0, nanos) >>> 10);
+            counts[Math.min(b, BUCKETS)].increment();
+            sumNanos.add(nanos);
+        }
+
+        /** Exclusive upper bound of bucket {@code b} in nanoseconds; the last bucket is unbounded. */
+        static long upperNanos(int b) { return b >= BUCKETS ? Long.MAX_VALUE : 1024L << b; }
+
+        long[] snapshot() {
+            long[] c = new long[counts.length];
+            for (int i = 0; i < c.length; i++) c[i] = counts[i].sum();
+            return c;
+        }
+
+        long sumNanos() { return sumNanos.sum(); }
+
+        /** Upper bound of the bucket holding quantile {@code q}, in microseconds; 0 when empty. */
+        static long quantileMicros(long[] snapshot, double q) {
+            long total = 0;
+            for (long c : snapshot) total += c;
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(q * total), seen = 0;
+            for (int b = 0; b < snapshot.length; b++) {
+                seen += snapshot[b];
+                if (seen >= rank) return b >= BUCKETS ? -1 : upperNanos(b) / 1000;
+            }
+            return -1;
+        }
+    }
+
+    /** Power-of-two size buckets from 64 B to 64 MB (plus overflow): bucket {@code b} holds sizes below {@code 64 << b}. */
+    static final class SizeHistogram {
+        static final int BUCKETS = 21;
+        private final LongAdder[] counts = new LongAdder[BUCKETS + 1];
+        private final LongAdder sum = new LongAdder();
+
+        SizeHistogram() {
+            for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        }
+
+        void record(long bytes) {
+            int b = 64 - Long.numberOfLeadingZeros(Math.max(0, bytes) >>> 6);
+            counts[Math.min(b, BUCKETS)].increment();
+            sum.add(bytes);
+        }
+
+        static long upperBytes(int b) { return b >= BUCKETS ? Long.MAX_VALUE : 64L << b; }
+
+        long[] snapshot() {
+            long[] c = new long[counts.length];
+            for (int i = 0; i < c.length; i++) c[i] = counts[i].sum();
+            return c;
+        }
+
+        long sum() { return sum.sum(); }
+
+        /** Upper bound of the bucket holding quantile {@code q}, in bytes; 0 when empty, -1 past the last bucket. */
+        static long quantileBytes(long[] snapshot, double q) {
+            long total = 0;
+            for (long c : snapshot) total += c;
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(q * total), seen = 0;
+            for (int b = 0; b < snapshot.length; b++) {
+                seen += snapshot[b];
+                if (seen >= rank) return b >= BUCKETS ? -1 : upperBytes(b);
+            }
+            return -1;
+        }
+    }
+
+    /** Prometheus text exposition format (version 0.0.4). */
+    static void writePrometheus(Appendable out, ClientRegistry registry) throws IOException {
+        counterHeader(out, "chat_connections_accepted_total", "Connections accepted");
+        for (Transport t : new Transport[] {TCP, WS}) sample(out, "chat_connections_accepted_total", t, t.accepted.sum());
+        counterHeader(out, "chat_tcp_acceptor_accepted_total", "TCP connections taken by each acceptor thread");
+        for (int i = 0; i < acceptedBy.length; i++) {
+            out.append("chat_tcp_acceptor_accepted_total{acceptor=\"").append(Integer.toString(i)).append("\"} ")
+                    .append(Long.toString(acceptedBy[i].sum())).append('\n');
+        }
+        counterHeader(out, "chat_accept_errors_total", "Accept calls that failed");
+        for (Transport t : new Transport[] {TCP, WS}) sample(out, "chat_accept_errors_total", t, t.acceptErrors.sum());
+        counterHeader(out, "chat_messages_in_total", "Protocol messages received");
+        for (Transport t : new Transport[] {TCP, WS}) sample(out, "chat_messages_in_total", t, t.messagesIn.sum());
+        counterHeader(out, "chat_bytes_in_total", "Bytes received (WebSocket: payload characters)");
+        for (Transport t : new Transport[] {TCP, WS}) sample(out, "chat_bytes_in_total", t, t.bytesIn.sum());
+        counterHeader(out, "chat_messages_out_total", "Protocol messages sent");
+        for (Transport t : new Transport[] {TCP, WS}) sample(out, "chat_messages_out_total", t, t.messagesOut.sum());
+        counterHeader(out, "chat_bytes_out_total", "Bytes sent");
+        for (Transport t : new Transport[] {TCP, WS}) sample(out, "chat_bytes_out_total", t, t.bytesOut.sum());
+        counterHeader(out, "chat_heartbeat_pings_total", "PINGs sent to connections that went quiet");
+        for (Transport t : new Transport[] {TCP, WS}) sample(out, "chat_heartbeat_pings_total", t, t.pings.sum());
+        counterHeader(out, "chat_idle_closed_total", "Connections closed for not answering a PING");
+        for (Transport t : new Transport[] {TCP, WS}) sample(out, "chat_idle_closed_total", t, t.idleClosed.sum());
+
+        counterHeader(out, "chat_commands_total", "Commands handled");
+        for (Transport t : new Transport[] {TCP, WS}) {
+            for (Command.Verb v : Command.Verb.values()) {
+                long n = t.commands[v.ordinal()].sum();
+                if (n > 0) out.append("chat_commands_total{transport=\"").append(t.name).append("\",command=\"")
+                        .append(v.name()).append("\"} ").append(Long.toString(n)).append('\n');
+            }
+        }
+        out.append("# HELP chat_command_duration_seconds Command handling time (sampled)\n");
+        out.append("# TYPE chat_command_duration_seconds histogram\n");
+        for (Transport t : new Transport[] {TCP, WS}) {
+            for (Command.Verb v : Command.Verb.values()) {
+                if (t.commands[v.ordinal()].sum() == 0) continue;
+                histogram(out, "chat_command_duration_seconds",
+                        "transport=\"" + t.name + "\",command=\"" + v.name() + "\"", t.latency[v.ordinal()]);
+            }
+        }
+
+        counterHeader(out, "chat_fanouts_total", "Broadcasts, private messages and room posts");
+        out.append("chat_fanouts_total{kind=\"broadcast\"} ").append(Long.toString(broadcasts.sum())).append('\n');
+        out.append("chat_fanouts_total{kind=\"private\"} ").append(Long.toString(privateMessages.sum())).append('\n');
+        out.append("chat_fanouts_total{kind=\"room\"} ").append(Long.toString(roomPosts.sum())).append('\n');
+        simple(out, "chat_fanout_deliveries_total", "counter", "Mailbox offers made by fan-outs", fanout.sum());
+        out.append("# HELP chat_broadcast_duration_seconds Time to enqueue one broadcast for every user (sampled)\n");
+        out.append("# TYPE chat_broadcast_duration_seconds histogram\n");
+        histogram(out, "chat_broadcast_duration_seconds", "", broadcastLatency);
+
+        ThreadPoolExecutor pool = tcpExecutor;
+        if (pool != null) {
+            simple(out, "chat_tcp_executor_queue_depth", "gauge", "Accepted clients waiting for a worker", pool.getQueue().size());
+            simple(out, "chat_tcp_executor_active_threads", "gauge", "Workers serving a client", pool.getActiveCount());
+            simple(out, "chat_tcp_executor_pool_size", "gauge", "Worker threads", pool.getPoolSize());
+        }
+        if (pool != null) {
+            simple(out, "chat_tcp_executor_core_size", "gauge", "Core worker threads (moves with -Dchat.pool.adaptive)", pool.getCorePoolSize());
+            simple(out, "chat_tcp_executor_resizes_total", "counter", "Core size changes made by the pool sizer", poolResizes.sum());
+            out.append("# HELP chat_tcp_queue_wait_seconds Time accepted clients waited for a pool worker\n");
+            out.append("# TYPE chat_tcp_queue_wait_seconds histogram\n");
+            histogram(out, "chat_tcp_queue_wait_seconds", "", tcpQueueWait);
+        }
+        simple(out, "chat_tcp_write_syscalls_total", "counter", "Socket write calls made for TCP clients", tcpWrites.sum());
+        simple(out, "chat_ws_frames_total", "counter", "WebSocket data frames sent", wsFrames.sum());
+        simple(out, "chat_ws_batch_sessions_total", "counter", "WebSocket sessions opened in batch mode", wsBatchSessions.sum());
+        simple(out, "chat_ws_deflate_sessions_total", "counter", "WebSocket sessions that negotiated permessage-deflate", wsDeflateSessions.sum());
+        out.append("# HELP chat_tcp_write_size_bytes Bytes sent per TCP socket write call\n");
+        out.append("# TYPE chat_tcp_write_size_bytes histogram\n");
+        long[] sizes = tcpWriteSize.snapshot();
+        long cumulative = 0;
+        for (int b = 0; b < sizes.length; b++) {
+            cumulative += sizes[b];
+            out.append("chat_tcp_write_size_bytes_bucket{le=\"")
+                    .append(b >= SizeHistogram.BUCKETS ? "+Inf" : Long.toString(SizeHistogram.upperBytes(b)))
+                    .append("\"} ").append(Long.toString(cumulative)).append('\n');
+        }
+        out.append("chat_tcp_write_size_bytes_sum ").append(Long.toString(tcpWriteSize.sum())).append('\n');
+        out.append("chat_tcp_write_size_bytes_count ").append(Long.toString(cumulative)).append('\n');
+        counterHeader(out, "chat_tcp_shed_total", "Clients answered ERR BUSY and closed");
+        out.append("chat_tcp_shed_total{reason=\"queue_full\"} ").append(Long.toString(tcpRejections.sum())).append('\n');
+        out.append("chat_tcp_shed_total{reason=\"queue_wait\"} ").append(Long.toString(shedQueueWait.sum())).append('\n');
+        out.append("chat_tcp_shed_total{reason=\"per_ip\"} ").append(Long.toString(shedPerIp.sum())).append('\n');
+
+        simple(out, "chat_active_connections", "gauge", "Logged-in users", registry.activeConnections());
+        simple(out, "chat_rooms", "gauge", "Rooms with members", registry.rooms().roomCount());
+        simple(out, "chat_outbox_dropped_total", "counter", "Messages dropped by full mailboxes", Outbox.totalDropped.sum());
+        simple(out, "chat_outbox_coalesced_total", "counter", "Messages merged by full mailboxes", Outbox.totalCoalesced.sum());
+        simple(out, "chat_slow_consumer_disconnects_total", "counter", "Clients dropped for a full mailbox or a stalled write", Outbox.slowConsumerDisconnects.sum());
+        long hits = 0, misses = 0;
+        for (FileCache c : FileCache.all()) { hits += c.hits.sum(); misses += c.misses.sum(); }
+        simple(out, "chat_file_cache_hits_total", "counter", "Static file cache hits", hits);
+        simple(out, "chat_file_cache_misses_total", "counter", "Static file cache misses", misses);
+
+        MessageLog log = registry.log();
+        if (log != null) {
+            simple(out, "chat_log_bytes", "gauge", "Message log size on disk", log.bytes());
+            simple(out, "chat_log_segments", "gauge", "Message log segment files", log.segmentCount());
+            simple(out, "chat_log_pending", "gauge", "Messages queued for the log writer", log.pending());
+            simple(out, "chat_log_appended_total", "counter", "Messages written to the log", log.appended.sum());
+            simple(out, "chat_log_dropped_total", "counter", "Messages the log writer had no room for", log.dropped.sum());
+            out.append("# HELP chat_log_force_duration_seconds Time to force one group of log appends to disk\n");
+            out.append("# TYPE chat_log_force_duration_seconds histogram\n");
+            histogram(out, "chat_log_force_duration_seconds", "", log.forceLatency);
+            long[] inbox = log.inboxTotals();
+            simple(out, "chat_inbox_messages", "gauge", "PMs waiting for offline users", inbox[0]);
+            simple(out, "chat_inbox_bytes", "gauge", "Bytes of PMs waiting for offline users", inbox[1]);
+            simple(out, "chat_inbox_stored_total", "counter", "PMs stored for offline users", log.inboxStored.sum());
+            simple(out, "chat_inbox_delivered_total", "counter", "Stored PMs delivered at login", log.inboxDelivered.sum());
+            simple(out, "chat_inbox_rejected_total", "counter", "PMs refused by a full inbox", log.inboxRejected.sum());
+        }
+
+        Cluster cluster = registry.cluster();
+        if (cluster != null) {
+            out.append("# HELP chat_cluster_users Logged-in users per node\n# TYPE chat_cluster_users gauge\n");
+            for (Map.Entry<String, Integer> e : cluster.usersByNode().entrySet()) {
+                out.append("chat_cluster_users{node=\"").append(e.getKey()).append("\"} ")
+                        .append(Integer.toString(e.getValue())).append('\n');
+            }
+            long[] totals = cluster.clusterStats();
+            simple(out, "chat_cluster_messages_in_total", "counter", "Protocol messages received by all connected nodes", totals[1]);
+            simple(out, "chat_cluster_messages_out_total", "counter", "Protocol messages sent by all connected nodes", totals[2]);
+            long connected = 0;
+            for (Cluster.PeerState p : cluster.peerStates()) if (p.connected) connected++;
+            simple(out, "chat_cluster_peers_connected", "gauge", "Peers this node is sending to", connected);
+            simple(out, "chat_cluster_frames_out_total", "counter", "Relay frames sent to peers", cluster.framesOut.sum());
+            simple(out, "chat_cluster_records_out_total", "counter", "Relay records sent to peers", cluster.recordsOut.sum());
+            simple(out, "chat_cluster_bytes_out_total", "counter", "Relay bytes sent to peers", cluster.bytesOut.sum());
+            simple(out, "chat_cluster_records_in_total", "counter", "Relay records received from peers", cluster.recordsIn.sum());
+            simple(out, "chat_cluster_dropped_total", "counter", "Relay records refused by a full peer queue", cluster.dropped.sum());
+            simple(out, "chat_cluster_forwarded_total", "counter", "PMs handed to the recipient's node", cluster.forwarded.sum());
+            simple(out, "chat_cluster_conflicts_total", "counter", "Sessions dropped because the name logged in on another node", cluster.conflicts.sum());
+        }
+    }
+
+    private static void counterHeader(Appendable out, String name, String help) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+    }
+
+    private static void sample(Appendable out, String name, Transport t, long value) throws IOException {
+        out.append(name).append("{transport=\"").append(t.name).append("\"} ").append(Long.toString(value)).append('\n');
+    }
+
+    private static void simple(Appendable out, String name, String type, String help, long value) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(Long.toString(value)).append('\n');
+    }
+
+    private static void histogram(Appendable out, String name, String labels, Histogram h) throws IOException {
+        long[] counts = h.snapshot();
+        String sep = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int b = 0; b < counts.length; b++) {
+            cumulative += counts[b];
+            String le = b >= Histogram.BUCKETS ? "+Inf" : Double.toString(Histogram.upperNanos(b) / 1e9);
+            out.append(name).append("_bucket{").append(sep).append("le=\"").append(le).append("\"} ")
+                    .append(Long.toString(cumulative)).append('\n');
+        }
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braces).append(' ')
+                .append(String.format(Locale.ROOT, "%.9f", h.sumNanos() / 1e9)).append('\n');
+        out.append(name).append("_count").append(braces).append(' ').append(Long.toString(cumulative)).append('\n');
+    }
+}
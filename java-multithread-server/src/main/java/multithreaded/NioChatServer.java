@@ -0,0 +1,148 @@
+package multithreaded;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Selector-based TCP engine: acceptor threads ({@code -Dchat.tcp.acceptors}) hand channels round-robin to N event loops,
+ * each multiplexing many non-blocking connections. Speaks the same line protocol as {@link ClientHandler}.
+ */
+public class NioChatServer {
+
+    private final int port;
+    private final ServerSocketChannel[] listeners;
+    private final EventLoop[] loops;
+    private final ClientRegistry registry;
+    private volatile boolean running = true;
+
+    public NioChatServer(int port, int loopCount) throws IOException {
+        this.port = port;
+        this.listeners = ChatServer.listen(port);
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i);
+        }
+        this.registry = ClientRegistry.getInstance();
+    }
+
+    public void start() {
+        for (EventLoop loop : loops) loop.thread.start();
+        System.out.println("[TCP/NIO] Listening on port " + port + " with " + loops.length + " event loops, "
+                + ChatServer.describeListeners());
+        ChatServer.startAcceptors(listeners, this::acceptLoop);
+    }
+
+    // registration, the welcome line and all I/O happen on the event loop
+    private void acceptLoop(ServerSocketChannel listener, int id) {
+        int next = id % loops.length; // acceptors start on different loops
+        while (running) {
+            SocketChannel ch;
+            try {
+                ch = listener.accept();
+            } catch (IOException e) {
+                if (running) ChatServer.acceptFailed("[TCP/NIO]", e);
+                continue;
+            }
+            Metrics.accepted(id);
+            if (!Admission.TCP.admit(ch.socket().getInetAddress())) {
+                Admission.busy(ch); // still in blocking mode: a one-line write to a fresh socket
+                continue;
+            }
+            EventLoop loop = loops[next];
+            next = (next + 1) % loops.length;
+            loop.register(ch);
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        registry.closeAll();
+        for (ServerSocketChannel l : listeners) {
+            try { l.close(); } catch (IOException ignored) {}
+        }
+        for (EventLoop loop : loops) loop.shutdown();
+    }
+
+    final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        private volatile boolean open = true;
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+        }
+
+        void register(SocketChannel ch) {
+            execute(() -> {
+                try {
+                    ch.configureBlocking(false);
+                    ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+                    NioConnection conn = new NioConnection(ch, key, this, registry);
+                    key.attach(conn);
+                    conn.onOpen();
+                } catch (IOException e) {
+                    Admission.TCP.release(ch.socket().getInetAddress());
+                    try { ch.close(); } catch (IOException ignored) {}
+                }
+            });
+        }
+
+        /** Runs the task on this loop's thread; safe to call from any thread. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        void shutdown() {
+            open = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (open) {
+                try {
+                    // tasks queued by this thread never wake the selector, so don't block while any are pending
+                    if (tasks.isEmpty()) selector.select(); else selector.selectNow();
+                    wakeupPending.set(false);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        if (key.isValid() && key.isReadable()) conn.onReadable();
+                        if (key.isValid() && key.isWritable()) conn.writeQueued();
+                    }
+                    runTasks();
+                } catch (IOException e) {
+                    System.err.println("[TCP/NIO] " + thread.getName() + " select failed: " + e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection conn) conn.close();
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try { task.run(); } catch (RuntimeException e) { e.printStackTrace(); }
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package multithreaded;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** One non-blocking TCP chat connection, owned by a single {@link NioChatServer.EventLoop}. */
+final class NioConnection implements LineWriter {
+    // slow-consumer cap on queued bytes; room on top for a cached GETFILE reply, which goes out as one batch of
+    // lines (larger files are mapped regions and never count)
+    private static final long MAX_PENDING_BYTES = 4L * 1024 * 1024 + FileCache.MAX_ENTRY_BYTES;
+    // the registry's outbox stops feeding us above HIGH_WATER and resumes below LOW_WATER
+    private static final long HIGH_WATER = 256 * 1024;
+    private static final long LOW_WATER = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final NioChatServer.EventLoop loop;
+    private final TcpSession session;
+
+    // inbound framing (event loop thread only)
+    private final ByteBuffer readBuf = ByteBuffer.allocate(8192);
+    private final TcpDecoder decoder;
+
+    // outbound: any thread enqueues, the event loop drains
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer[] gather = new ByteBuffer[64]; // event loop thread only
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong fileBytes = new AtomicLong(); // mapped file regions; exempt from MAX_PENDING_BYTES
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile Runnable writableListener;
+    private volatile boolean paused;
+    private volatile boolean closeAfterFlush;
+    private volatile boolean closed; // set on the event loop, read by outbox writers
+    private boolean binary; // set before login, so before any other thread writes
+
+    NioConnection(SocketChannel channel, SelectionKey key, NioChatServer.EventLoop loop, ClientRegistry registry) {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.session = new TcpSession(registry, this, () -> loop.execute(this::close));
+        this.decoder = new TcpDecoder(session, this);
+    }
+
+    void onOpen() {
+        println(TcpSession.WELCOME);
+    }
+
+    void onReadable() {
+        int n;
+        try {
+            n = channel.read(readBuf);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (n < 0) { close(); return; }
+        Metrics.TCP.received(n);
+
+        if (!closeAfterFlush && !decoder.feed(readBuf.array(), 0, n)) {
+            closeAfterFlush = true;
+            scheduleFlush();
+        }
+        readBuf.clear();
+    }
+
+    @Override
+    public void write(EncodedMessage message) {
+        if (binary) {
+            write(new EncodedMessage[] {message}, 1);
+            return;
+        }
+        Metrics.TCP.out(1, message.lineLength());
+        enqueue(message.line());
+    }
+
+    @Override
+    public void write(EncodedMessage[] batch, int count) {
+        if (binary) frame(BinaryProtocol.EVENT, batch, count);
+        else lines(batch, count);
+    }
+
+    @Override
+    public void reply(EncodedMessage[] replies, int count) {
+        if (binary) frame(BinaryProtocol.REPLY, replies, count);
+        else lines(replies, count);
+    }
+
+    @Override
+    public void enterBinary() {
+        binary = true;
+    }
+
+    private void lines(EncodedMessage[] batch, int count) {
+        ByteBuffer[] bufs = new ByteBuffer[count];
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            bufs[i] = batch[i].line();
+            bytes += bufs[i].remaining();
+        }
+        splice(bufs, count, bytes);
+    }
+
+    private void frame(byte op, EncodedMessage[] batch, int count) {
+        ByteBuffer[] bufs = new ByteBuffer[2 * count];
+        splice(bufs, count, BinaryProtocol.frame(op, batch, count, bufs, 0));
+    }
+
+    private void splice(ByteBuffer[] bufs, int messages, long bytes) {
+        Metrics.TCP.out(messages, bytes);
+        if (closed) return;
+        if (pendingBytes.addAndGet(bytes) > MAX_PENDING_BYTES) {
+            loop.execute(this::close);
+            return;
+        }
+        // one splice, so a batch (a frame, a HISTORY replay) never interleaves with other writers
+        writeQueue.addAll(Arrays.asList(bufs));
+        scheduleFlush();
+    }
+
+    @Override
+    public boolean sendFile(EncodedMessage header, FileChannel file, long position, long count, EncodedMessage trailer)
+            throws IOException {
+        // off-heap mapping; the socket write copies straight from the page cache
+        MappedByteBuffer region = file.map(FileChannel.MapMode.READ_ONLY, position, count);
+        if (closed) return true;
+        fileBytes.addAndGet(count);
+        Metrics.TCP.out(2, header.lineLength() + count + trailer.lineLength());
+        pendingBytes.addAndGet(header.lineLength() + trailer.lineLength());
+        // addAll links the three nodes first and splices them in with one CAS: nothing lands in between
+        writeQueue.addAll(List.of(header.line(), region, trailer.line()));
+        scheduleFlush();
+        return true;
+    }
+
+    @Override
+    public boolean writable() {
+        if (backlog() < HIGH_WATER) return true;
+        paused = true;
+        return backlog() < HIGH_WATER; // re-check: the loop may have drained in between
+    }
+
+    private long backlog() {
+        return pendingBytes.get() + fileBytes.get();
+    }
+
+    @Override
+    public void onWritable(Runnable listener) {
+        this.writableListener = listener;
+    }
+
+    private void enqueue(ByteBuffer buf) {
+        if (closed) return;
+        if (pendingBytes.addAndGet(buf.remaining()) > MAX_PENDING_BYTES) {
+            // slow consumer: drop the connection rather than buffer without bound
+            loop.execute(this::close);
+            return;
+        }
+        writeQueue.add(buf);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::writeQueued);
+        }
+    }
+
+    /**
+     * Writes as much as the socket accepts; called on the event loop thread. Everything queued by the time it
+     * runs goes out together, up to 64 buffers per gathering write, so writers need no {@link #flush()} of their own.
+     */
+    void writeQueued() {
+        flushScheduled.set(false);
+        if (closed) return;
+        try {
+            while (!writeQueue.isEmpty()) {
+                // one gathering write over the head of the queue; the buffers are views of shared messages
+                int n = 0;
+                for (ByteBuffer b : writeQueue) {
+                    gather[n++] = b;
+                    if (n == gather.length) break;
+                }
+                long mappedBefore = fileBytes.get() == 0 ? 0 : mappedRemaining(n);
+                long written = channel.write(gather, 0, n);
+                Metrics.tcpWrite(written);
+                long mappedWritten = mappedBefore == 0 ? 0 : mappedBefore - mappedRemaining(n);
+                if (mappedWritten > 0) fileBytes.addAndGet(-mappedWritten);
+                pendingBytes.addAndGet(mappedWritten - written);
+                int done = 0;
+                while (done < n && !gather[done].hasRemaining()) done++;
+                for (int i = 0; i < done; i++) writeQueue.poll();
+                Arrays.fill(gather, 0, n, null);
+                if (done < n) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    resumeIfDrained();
+                    return;
+                }
+            }
+            resumeIfDrained();
+            key.interestOps(SelectionKey.OP_READ);
+            if (closeAfterFlush) close();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private long mappedRemaining(int n) {
+        long r = 0;
+        for (int i = 0; i < n; i++) if (gather[i] instanceof MappedByteBuffer) r += gather[i].remaining();
+        return r;
+    }
+
+    private void resumeIfDrained() {
+        if (paused && backlog() < LOW_WATER) {
+            paused = false;
+            Runnable listener = writableListener;
+            if (listener != null) listener.run();
+        }
+    }
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        Admission.TCP.release(channel.socket().getInetAddress());
+        session.logout();
+        key.cancel();
+        try { channel.close(); } catch (IOException ignored) {}
+        writeQueue.clear();
+    }
+}
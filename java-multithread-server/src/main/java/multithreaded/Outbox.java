@@ -0,0 +1,348 @@
+package multithreaded;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-recipient mailbox. Senders only enqueue; a writer thread drains into the transport,
+ * so one slow reader never blocks the broadcaster. What happens when the mailbox is full is set with
+ * -Dchat.outbox.overflow=drop_oldest|disconnect|coalesce and the size with -Dchat.outbox.capacity.
+ * Order holds within one mailbox only: a client's command replies are written directly by the thread handling the
+ * command, so a reply can overtake events queued here just before it.
+ */
+final class Outbox {
+
+    enum Overflow { DROP_OLDEST, DISCONNECT, COALESCE }
+
+    /** The transport behind a mailbox. */
+    interface Sink {
+        /** Writes {@code count} messages in order; may block (this runs on a writer thread). */
+        void deliver(EncodedMessage[] batch, int count);
+        /** Drops the underlying connection (DISCONNECT policy). */
+        void disconnect();
+        /** Sends anything the transport buffered. */
+        default void flush() {}
+        /** How long a drained mailbox waits for more before calling {@link #flush()}; 0 = right away. */
+        default long flushDelayNanos() { return 0; }
+        /** False while the transport's own buffer is full; call {@link Outbox#resume()} once it drains. */
+        default boolean ready() { return true; }
+        /** True if {@link #deliver} and {@link #flush} can block on the peer (a blocking socket write). */
+        default boolean blocking() { return false; }
+    }
+
+    static final int CAPACITY = Integer.getInteger("chat.outbox.capacity", 1024);
+    static final Overflow OVERFLOW = Overflow.valueOf(
+            System.getProperty("chat.outbox.overflow", "drop_oldest").toUpperCase(Locale.ROOT));
+    // a coalesced backlog bigger than this is no longer worth keeping whole
+    private static final int MAX_COALESCED_BYTES = 1 << 20;
+    // messages handed to the sink per drain step (one gathering write on TCP)
+    private static final int DRAIN_BATCH = 64;
+
+    private static final AtomicInteger writerIds = new AtomicInteger();
+    // a fixed pool for sinks that never block (NIO, WebSocket): handing a drain to an idle cached-pool thread
+    // cost microseconds per recipient
+    private static final ExecutorService WRITERS = Executors.newFixedThreadPool(
+            Integer.getInteger("chat.outbox.writers", Math.max(4, Runtime.getRuntime().availableProcessors() * 2)), r -> {
+        Thread t = new Thread(r, "outbox-writer-" + writerIds.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+    // blocking sinks get a thread each while they write, up to -Dchat.outbox.blockingWriters; past that drains queue
+    // and the client stuck longest in a write is dropped (see shedStalled)
+    private static final int BLOCKING_WRITER_MAX = Integer.getInteger("chat.outbox.blockingWriters", 256);
+    private static final long STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.outbox.stallMs", 2000));
+    private static final ThreadPoolExecutor BLOCKING_WRITERS = new ThreadPoolExecutor(
+            BLOCKING_WRITER_MAX, BLOCKING_WRITER_MAX, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "outbox-blocking-writer-" + writerIds.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+    // blocking mailboxes with a drain or flush running, so a starved pool can find the one that is stuck
+    private static final Set<Outbox> WRITING = ConcurrentHashMap.newKeySet();
+
+    static {
+        BLOCKING_WRITERS.allowCoreThreadTimeOut(true);
+    }
+
+    // drained mailboxes whose sink buffers, earliest flush first whatever each sink's delay
+    private static final DelayQueue<Linger> LINGERING = new DelayQueue<>();
+
+    static {
+        Thread t = new Thread(Outbox::flushLingering, "outbox-flusher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // totals across every mailbox, for /metrics
+    static final LongAdder totalDropped = new LongAdder();
+    static final LongAdder totalCoalesced = new LongAdder();
+    static final LongAdder slowConsumerDisconnects = new LongAdder();
+
+    private final String owner;
+    private final String transport;
+    private final Sink sink;
+    private final Overflow overflow;
+    private final int capacity;
+    private final ExecutorService writers;
+    private final ArrayDeque<EncodedMessage> queue = new ArrayDeque<>();
+    private final EncodedMessage[] batch = new EncodedMessage[DRAIN_BATCH]; // drain thread only
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean scheduled;
+    private boolean closed;
+    private boolean lingering; // on LINGERING, flush pending
+    private long dropped;
+    private long coalesced;
+    private volatile long writingSince; // start of the current batch's write
+
+    Outbox(String owner, String transport, Sink sink) {
+        this(owner, transport, sink, OVERFLOW, CAPACITY);
+    }
+
+    Outbox(String owner, String transport, Sink sink, Overflow overflow, int capacity) {
+        this.owner = owner;
+        this.transport = transport;
+        this.sink = sink;
+        this.overflow = overflow;
+        this.capacity = capacity;
+        this.writers = sink.blocking() ? BLOCKING_WRITERS : WRITERS;
+    }
+
+    String owner() { return owner; }
+    String transport() { return transport; }
+
+    /** Enqueues without blocking; returns false if the mailbox is closed. */
+    boolean offer(EncodedMessage message) {
+        boolean disconnect = false;
+        boolean started = false;
+        lock.lock();
+        try {
+            if (closed) return false;
+            if (queue.size() >= capacity) {
+                switch (overflow) {
+                    case DROP_OLDEST -> dropOldest();
+                    case DISCONNECT -> {
+                        dropped++;
+                        totalDropped.increment();
+                        closeLocked();
+                        disconnect = true;
+                    }
+                    case COALESCE -> coalesce();
+                }
+            }
+            if (!disconnect) {
+                queue.addLast(message);
+                if (!scheduled) {
+                    scheduled = true;
+                    started = true;
+                    writers.execute(tracked(this::drain));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (started) shedStalled();
+        if (disconnect) {
+            slowConsumerDisconnects.increment();
+            sink.disconnect();
+        }
+        return !disconnect;
+    }
+
+    private void dropOldest() {
+        queue.pollFirst();
+        dropped++;
+        totalDropped.increment();
+    }
+
+    private void coalesce() {
+        int bytes = 0;
+        for (EncodedMessage m : queue) bytes += m.lineLength();
+        if (bytes > MAX_COALESCED_BYTES) {
+            dropOldest();
+            return;
+        }
+        StringBuilder sb = new StringBuilder(bytes);
+        int merged = queue.size();
+        for (EncodedMessage m; (m = queue.pollFirst()) != null; ) {
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(m.text());
+        }
+        queue.addLast(EncodedMessage.of(sb.toString()));
+        coalesced += merged - 1;
+        totalCoalesced.add(merged - 1);
+    }
+
+    private void drain() {
+        for (;;) {
+            int n = 0;
+            lock.lock();
+            try {
+                if (closed || queue.isEmpty() || !sink.ready()) {
+                    scheduled = false;
+                    break;
+                }
+                while (n < DRAIN_BATCH && !queue.isEmpty()) batch[n++] = queue.pollFirst();
+            } finally {
+                lock.unlock();
+            }
+            writingSince = System.nanoTime();
+            ChatEvents.SendEvent event = new ChatEvents.SendEvent();
+            event.begin();
+            try { sink.deliver(batch, n); } catch (RuntimeException ignored) {}
+            event.end();
+            if (event.shouldCommit()) ChatEvents.send(event, transport, owner, n);
+            Arrays.fill(batch, 0, n, null);
+        }
+        // outside the lock: offers never wait on the socket
+        long delay = sink.flushDelayNanos();
+        if (delay <= 0) {
+            writingSince = System.nanoTime();
+            flush();
+            return;
+        }
+        // let more arrive first; a drain in the meantime only adds to what the sink holds
+        lock.lock();
+        try {
+            if (lingering || closed) return;
+            lingering = true;
+        } finally {
+            lock.unlock();
+        }
+        LINGERING.add(new Linger(this, System.nanoTime() + delay));
+    }
+
+    private void flush() {
+        try { sink.flush(); } catch (RuntimeException ignored) {}
+    }
+
+    // the flusher only waits for the next due mailbox; the write goes to that mailbox's writers, so a blocking
+    // sink's flush never holds up anyone else's
+    private static void flushLingering() {
+        try {
+            while (true) {
+                Outbox o = LINGERING.take().outbox;
+                o.writers.execute(o.tracked(() -> {
+                    o.lock.lock();
+                    try { o.lingering = false; } finally { o.lock.unlock(); }
+                    o.writingSince = System.nanoTime();
+                    o.flush();
+                }));
+                o.shedStalled();
+            }
+        } catch (InterruptedException ignored) {}
+    }
+
+    private Runnable tracked(Runnable task) {
+        if (writers != BLOCKING_WRITERS) return task;
+        return () -> {
+            WRITING.add(this);
+            try { task.run(); } finally { WRITING.remove(this); }
+        };
+    }
+
+    // every blocking writer is busy and drains are queueing behind them: drop the client whose write has been
+    // blocked longest, once that is past -Dchat.outbox.stallMs. Closing its socket fails the write and frees the thread.
+    private void shedStalled() {
+        if (writers != BLOCKING_WRITERS || BLOCKING_WRITERS.getQueue().isEmpty()) return;
+        long now = System.nanoTime();
+        Outbox victim = null;
+        long oldest = 0;
+        for (Outbox o : WRITING) {
+            long since = o.writingSince;
+            if (now - since >= STALL_NANOS && (victim == null || since - oldest < 0)) {
+                victim = o;
+                oldest = since;
+            }
+        }
+        if (victim != null && WRITING.remove(victim)) {
+            slowConsumerDisconnects.increment();
+            victim.disconnect();
+        }
+    }
+
+    private record Linger(Outbox outbox, long flushAt) implements Delayed {
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(flushAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(flushAt - ((Linger) other).flushAt, 0); // nanoTime: compare the difference
+        }
+    }
+
+    /** Writes a batch straight to the transport on the caller's thread, ahead of the queue (the offline inbox at login). */
+    void deliverNow(EncodedMessage[] batch, int count) {
+        lock.lock();
+        try {
+            if (closed) return;
+        } finally {
+            lock.unlock();
+        }
+        try { sink.deliver(batch, count); } catch (RuntimeException ignored) {}
+        flush();
+    }
+
+    /** Restarts draining after the sink reported not ready. */
+    void resume() {
+        lock.lock();
+        try {
+            if (!closed && !scheduled && !queue.isEmpty()) {
+                scheduled = true;
+                writers.execute(tracked(this::drain));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops delivery and drops the connection behind it. */
+    void disconnect() {
+        close();
+        sink.disconnect();
+    }
+
+    void close() {
+        lock.lock();
+        try { closeLocked(); } finally { lock.unlock(); }
+    }
+
+    private void closeLocked() {
+        closed = true;
+        queue.clear();
+    }
+
+    boolean closed() {
+        lock.lock();
+        try { return closed; } finally { lock.unlock(); }
+    }
+
+    int depth() {
+        lock.lock();
+        try { return queue.size(); } finally { lock.unlock(); }
+    }
+
+    long dropped() {
+        lock.lock();
+        try { return dropped; } finally { lock.unlock(); }
+    }
+
+    long coalesced() {
+        lock.lock();
+        try { return coalesced; } finally { lock.unlock(); }
+    }
+}
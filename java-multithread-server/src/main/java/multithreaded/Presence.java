@@ -0,0 +1,76 @@
+package multithreaded;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The one username → connection map for every transport. Readers get an immutable, versioned
+ * {@link Snapshot} that is rebuilt only after a login or logout, so USERS, /metrics and broadcast
+ * fan-out don't allocate per call.
+ */
+final class Presence {
+    private final ConcurrentHashMap<String, ClientConnection> users = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private final ReentrantLock rebuildLock = new ReentrantLock();
+    private volatile Snapshot snapshot = new Snapshot(0, new ClientConnection[0]);
+
+    /** Returns false if the name is already taken on any transport. */
+    boolean add(ClientConnection conn) {
+        if (users.putIfAbsent(conn.username(), conn) != null) return false;
+        version.incrementAndGet();
+        return true;
+    }
+
+    /** Removes this exact connection (a newer login under the same name is left alone). */
+    boolean remove(ClientConnection conn) {
+        if (!users.remove(conn.username(), conn)) return false;
+        version.incrementAndGet();
+        return true;
+    }
+
+    ClientConnection get(String username) { return users.get(username); }
+
+    int size() { return users.size(); }
+
+    Snapshot snapshot() {
+        Snapshot s = snapshot;
+        long v = version.get();
+        if (s.version == v) return s;
+        rebuildLock.lock();
+        try {
+            s = snapshot;
+            if (s.version != v) {
+                s = new Snapshot(v, users.values().toArray(new ClientConnection[0]));
+                snapshot = s;
+            }
+            return s;
+        } finally {
+            rebuildLock.unlock();
+        }
+    }
+
+    void clear() {
+        users.clear();
+        version.incrementAndGet();
+    }
+
+    static final class Snapshot {
+        final long version;
+        final ClientConnection[] connections; // never mutated once published
+        final Set<String> names;
+        final String usersReply;
+
+        private Snapshot(long version, ClientConnection[] connections) {
+            this.version = version;
+            this.connections = connections;
+            Set<String> set = new LinkedHashSet<>();
+            for (ClientConnection c : connections) set.add(c.username());
+            this.names = Collections.unmodifiableSet(set);
+            this.usersReply = "USERS " + set;
+        }
+    }
+}
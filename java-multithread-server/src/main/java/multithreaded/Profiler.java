@@ -0,0 +1,194 @@
+package multithreaded;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * On-demand Flight Recorder recordings for the dashboard, one at a time. A recording uses the JDK's
+ * {@code -Dchat.jfr.settings} configuration (default "profile") plus the {@link ChatEvents} with thresholds
+ * {@code -Dchat.jfr.commandThresholdMs} (default 1), {@code fanoutThresholdMs} (1) and {@code sendThresholdMs}
+ * (10), and keeps at most {@code -Dchat.jfr.maxAgeMinutes} (default 10) so a forgotten one doesn't fill the disk.
+ * Stopping writes it to a temp {@code .jfr} file, kept for download until the next start. The summary never reads
+ * a file: a second, chat-events-only stream adds each event to running totals as the JVM flushes it (about once a
+ * second), and the totals stay after a stop.
+ */
+final class Profiler {
+    static final String SETTINGS = System.getProperty("chat.jfr.settings", "profile");
+    static final Duration COMMAND_THRESHOLD = Duration.ofMillis(Long.getLong("chat.jfr.commandThresholdMs", 1));
+    static final Duration FANOUT_THRESHOLD = Duration.ofMillis(Long.getLong("chat.jfr.fanoutThresholdMs", 1));
+    static final Duration SEND_THRESHOLD = Duration.ofMillis(Long.getLong("chat.jfr.sendThresholdMs", 10));
+    static final Duration MAX_AGE = Duration.ofMinutes(Long.getLong("chat.jfr.maxAgeMinutes", 10));
+
+    static final Profiler INSTANCE = new Profiler();
+
+    /** One kind of chat operation in a recording, with its slowest occurrence. */
+    record Row(String operation, long count, long totalNanos, long maxNanos, String slowest) {}
+
+    /** A recording's file; closing deletes it if it was a snapshot of a running recording. */
+    record Dump(Path path, boolean snapshot) implements Closeable {
+        @Override
+        public void close() throws IOException {
+            if (snapshot) Files.deleteIfExists(path);
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private Recording recording; // guarded by lock; null when none is running
+    private Instant startedAt; // guarded by lock
+    private RecordingStream chatEvents; // guarded by lock; feeds totals while recording
+    private Path stopped; // guarded by lock; the last stopped recording
+    // operation -> count, total, max; and operation -> slowest occurrence; guarded by totalsLock
+    private final ReentrantLock totalsLock = new ReentrantLock();
+    private final Map<String, long[]> totals = new HashMap<>();
+    private final Map<String, String> slowest = new HashMap<>();
+
+    private Profiler() {}
+
+    /** Starts a recording; false if one is already running. */
+    boolean start() throws IOException, ParseException {
+        lock.lock();
+        try {
+            if (recording != null) return false;
+            Recording r = new Recording(Configuration.getConfiguration(SETTINGS));
+            r.setName("chat-dashboard");
+            r.setToDisk(true);
+            r.setMaxAge(MAX_AGE);
+            r.enable(ChatEvents.CommandEvent.class).withThreshold(COMMAND_THRESHOLD);
+            r.enable(ChatEvents.FanoutEvent.class).withThreshold(FANOUT_THRESHOLD);
+            r.enable(ChatEvents.SendEvent.class).withThreshold(SEND_THRESHOLD);
+            RecordingStream events = new RecordingStream();
+            events.enable(ChatEvents.CommandEvent.class).withThreshold(COMMAND_THRESHOLD);
+            events.enable(ChatEvents.FanoutEvent.class).withThreshold(FANOUT_THRESHOLD);
+            events.enable(ChatEvents.SendEvent.class).withThreshold(SEND_THRESHOLD);
+            events.onEvent(this::add);
+            totalsLock.lock();
+            try {
+                totals.clear();
+                slowest.clear();
+            } finally {
+                totalsLock.unlock();
+            }
+            r.start();
+            events.startAsync();
+            if (stopped != null) Files.deleteIfExists(stopped);
+            stopped = null;
+            recording = r;
+            chatEvents = events;
+            startedAt = Instant.now();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops the running recording and keeps its file; false if none was running. */
+    boolean stop() throws IOException {
+        lock.lock();
+        try {
+            if (recording == null) return false;
+            Path file = Files.createTempFile("chat-", ".jfr");
+            RecordingStream events = chatEvents;
+            try (Recording r = recording) {
+                r.stop();
+                r.dump(file);
+            } finally {
+                recording = null;
+                chatEvents = null;
+                events.close();
+            }
+            stopped = file;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** When the running recording started, or null. */
+    Instant runningSince() {
+        lock.lock();
+        try { return recording == null ? null : startedAt; } finally { lock.unlock(); }
+    }
+
+    /** True while recording or once one has been stopped: there is something to download. */
+    boolean recorded() {
+        lock.lock();
+        try { return recording != null || stopped != null; } finally { lock.unlock(); }
+    }
+
+    /** A snapshot of the running recording, else the last stopped one; null if there is neither. */
+    Dump dump() throws IOException {
+        lock.lock();
+        try {
+            if (recording != null) {
+                Path file = Files.createTempFile("chat-snapshot-", ".jfr");
+                recording.dump(file);
+                return new Dump(file, true);
+            }
+            return stopped == null ? null : new Dump(stopped, false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The chat operations recorded since the last start, slowest first. */
+    List<Row> summary(int top) {
+        List<Row> rows = new ArrayList<>();
+        totalsLock.lock();
+        try {
+            totals.forEach((op, t) -> rows.add(new Row(op, t[0], t[1], t[2], slowest.get(op))));
+        } finally {
+            totalsLock.unlock();
+        }
+        rows.sort(Comparator.comparingLong(Row::maxNanos).reversed());
+        return rows.size() > top ? rows.subList(0, top) : rows;
+    }
+
+    // on the stream's thread
+    private void add(RecordedEvent e) {
+        String operation, detail;
+        switch (e.getEventType().getName()) {
+            case "chat.Command" -> {
+                operation = e.getString("transport") + " " + e.getString("command");
+                detail = e.getString("user");
+            }
+            case "chat.Fanout" -> {
+                operation = e.getString("kind") + " fan-out";
+                detail = e.getInt("recipients") + " recipients";
+            }
+            case "chat.Send" -> {
+                operation = e.getString("transport") + " send";
+                detail = e.getString("user") + ", " + e.getInt("messages") + " messages";
+            }
+            default -> { return; }
+        }
+        long nanos = e.getDuration().toNanos();
+        totalsLock.lock();
+        try {
+            long[] t = totals.computeIfAbsent(operation, k -> new long[3]);
+            t[0]++;
+            t[1] += nanos;
+            if (nanos >= t[2]) {
+                t[2] = nanos;
+                slowest.put(operation, detail == null ? "" : detail + " at " + e.getStartTime());
+            }
+        } finally {
+            totalsLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package multithreaded;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * room → subscribers. Lookups and posts are lock-free reads of a copy-on-write member array, so a post
+ * costs O(room size). Joins/leaves take one of {@link #STRIPES} locks picked by room name and never
+ * block delivery.
+ */
+final class RoomIndex {
+    private static final int STRIPES = 64;
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Outbox, Set<String>> memberships = new ConcurrentHashMap<>();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    RoomIndex() {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantLock();
+    }
+
+    private ReentrantLock stripe(String room) {
+        int h = room.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    /** Returns false if already a member, or if the member's mailbox has closed (it is disconnecting). */
+    boolean join(String room, Outbox member) {
+        ReentrantLock lock = stripe(room);
+        lock.lock();
+        try {
+            Room r = rooms.computeIfAbsent(room, Room::new);
+            Outbox[] cur = r.members;
+            for (Outbox m : cur) if (m == member) return false;
+            Outbox[] next = Arrays.copyOf(cur, cur.length + 1);
+            next[cur.length] = member;
+            r.members = next;
+        } finally {
+            lock.unlock();
+        }
+        memberships.computeIfAbsent(member, m -> ConcurrentHashMap.newKeySet()).add(room);
+        // a disconnect closes the mailbox before leaveAll: if it already has, leaveAll may have missed this room
+        if (member.closed()) {
+            leaveAll(member);
+            return false;
+        }
+        return true;
+    }
+
+    /** Returns false if not a member. */
+    boolean leave(String room, Outbox member) {
+        ReentrantLock lock = stripe(room);
+        lock.lock();
+        try {
+            Room r = rooms.get(room);
+            if (r == null) return false;
+            Outbox[] cur = r.members;
+            int idx = -1;
+            for (int i = 0; i < cur.length; i++) if (cur[i] == member) { idx = i; break; }
+            if (idx < 0) return false;
+            if (cur.length == 1) {
+                rooms.remove(room);
+                r.members = new Outbox[0];
+            } else {
+                Outbox[] next = new Outbox[cur.length - 1];
+                System.arraycopy(cur, 0, next, 0, idx);
+                System.arraycopy(cur, idx + 1, next, idx, cur.length - idx - 1);
+                r.members = next;
+            }
+        } finally {
+            lock.unlock();
+        }
+        Set<String> joined = memberships.get(member);
+        if (joined != null) joined.remove(room);
+        return true;
+    }
+
+    /** Drops the member from every room it joined (on disconnect, after its mailbox is closed). */
+    void leaveAll(Outbox member) {
+        Set<String> joined = memberships.remove(member);
+        if (joined == null) return;
+        for (String room : joined) leave(room, member);
+    }
+
+    boolean isMember(String room, Outbox member) {
+        Room r = rooms.get(room);
+        if (r == null) return false;
+        for (Outbox m : r.members) if (m == member) return true;
+        return false;
+    }
+
+    /** Delivers to every member; returns the recipient count, or -1 if the room doesn't exist. */
+    int post(String room, EncodedMessage message) {
+        Room r = rooms.get(room);
+        if (r == null) return -1;
+        Outbox[] members = r.members;
+        for (Outbox m : members) m.offer(message);
+        r.mark();
+        return members.length;
+    }
+
+    int roomCount() { return rooms.size(); }
+
+    List<Room> snapshot() { return new ArrayList<>(rooms.values()); }
+
+    /** Live, weakly consistent view of all rooms; iterate it instead of copying. */
+    Collection<Room> view() { return rooms.values(); }
+
+    static final class Room {
+        final String name;
+        volatile Outbox[] members = new Outbox[0];
+        private final LongAdder messages = new LongAdder();
+        // one-second buckets for a cheap messages/sec figure
+        private final AtomicLong bucketSecond = new AtomicLong();
+        private final LongAdder bucket = new LongAdder();
+        private volatile long lastSecondCount;
+
+        Room(String name) { this.name = name; }
+
+        private void mark() {
+            messages.increment();
+            long now = System.nanoTime() / 1_000_000_000L;
+            long sec = bucketSecond.get();
+            if (now != sec && bucketSecond.compareAndSet(sec, now)) {
+                long finished = bucket.sumThenReset();
+                lastSecondCount = now == sec + 1 ? finished : 0; // a gap means the last full second was idle
+            }
+            bucket.increment();
+        }
+
+        int memberCount() { return members.length; }
+        long messages() { return messages.sum(); }
+
+        /** Messages posted during the last full second. */
+        long messagesPerSecond() {
+            long now = System.nanoTime() / 1_000_000_000L;
+            long sec = bucketSecond.get();
+            if (now == sec) return lastSecondCount;
+            return now == sec + 1 ? bucket.sum() : 0;
+        }
+    }
+}
@@ -1,24 +1,63 @@
 package multithreaded;
 
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.stream.Stream;
 
 final class StaticFileReader {
-    static String readTextFromPublic(String relativePath, PrintWriter out) {
+    /** Largest region one raw GETFILE reply carries; clients ask again from the next offset. */
+    static final long MAX_TRANSFER = Math.min(Integer.MAX_VALUE, Long.getLong("chat.files.maxTransfer", 1L << 30));
+    private static final EncodedMessage OK = EncodedMessage.of("OK");
+    private static final EncodedMessage NL_OK = EncodedMessage.of("\nOK");
+
+    /**
+     * Small cached files (offset 0) go out as text lines followed by {@code OK}. Large files, and any request with
+     * an offset, get {@code FILE <offset> <length> <size>}, then exactly {@code length} raw bytes sent straight from
+     * the file, then {@code OK} on its own line. Returns the reply to print, or null when it was already sent.
+     */
+    static String readTextFromPublic(String relativePath, long offset, LineWriter out) {
         try {
-            Path base = Path.of("public").toAbsolutePath().normalize();
-            Path target = base.resolve(relativePath).normalize();
-            if (!target.startsWith(base) || !Files.exists(target) || !Files.isRegularFile(target)) {
+            FileCache cache = FileCache.of(Path.of("public"));
+            Path target = cache.resolve(relativePath);
+            FileCache.Entry file = target == null ? null : cache.get(target);
+            if (file == null) {
                 return "ERR Not found";
             }
-            for (String line : Files.readAllLines(target, StandardCharsets.UTF_8)) {
-                out.println(line);
+            if (offset == 0 && file.bytes != null) {
+                EncodedMessage[] lines = file.lines();
+                out.write(lines, lines.length);
+                return "OK";
+            }
+            if (offset > file.size || offset < 0) {
+                return "ERR Range not satisfiable";
+            }
+            if (sendRaw(file, offset, out)) return null;
+            if (offset > 0) return "ERR Ranges not supported";
+            try (Stream<String> lines = Files.lines(file.path, StandardCharsets.UTF_8)) {
+                lines.forEach(out::println);
             }
             return "OK";
         } catch (Exception e) {
             return "ERR IO";
         }
     }
+
+    private static boolean sendRaw(FileCache.Entry file, long offset, LineWriter out) throws Exception {
+        try (FileChannel ch = FileChannel.open(file.path)) {
+            long size = ch.size(); // the file may have changed since it was cached
+            if (offset > size) offset = size;
+            long count = Math.min(size - offset, MAX_TRANSFER);
+            EncodedMessage header = EncodedMessage.of("FILE " + offset + " " + count + " " + size);
+            return out.sendFile(header, ch, offset, count, endsWithNewline(ch, offset + count, count) ? OK : NL_OK);
+        }
+    }
+
+    private static boolean endsWithNewline(FileChannel ch, long end, long count) throws Exception {
+        if (count == 0) return true;
+        ByteBuffer last = ByteBuffer.allocate(1);
+        return ch.read(last, end - 1) == 1 && last.get(0) == '\n';
+    }
 }
@@ -1,21 +1,29 @@
 package multithreaded;
 
-import com.sun.net.httpserver.HttpExchange;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.HttpOutput;
+
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
 import java.util.Map;
 
 final class StaticFiles {
-    private final Path baseDir;
+    private static final long MAX_MAP = 64L * 1024 * 1024; // map large files in windows
+    private final FileCache cache;
     private final Map<String, String> mime = new HashMap<>();
 
     StaticFiles(Path baseDir) {
-        this.baseDir = baseDir.normalize().toAbsolutePath();
+        this.cache = FileCache.of(baseDir);
         mime.put("html", "text/html; charset=utf-8");
         mime.put("htm",  "text/html; charset=utf-8");
         mime.put("css",  "text/css; charset=utf-8");
@@ -32,50 +40,137 @@ final class StaticFiles {
         mime.put("wasm", "application/wasm");
     }
 
-    void handle(HttpExchange ex) throws IOException {
-        if (!"GET".equalsIgnoreCase(ex.getRequestMethod()) && !"HEAD".equalsIgnoreCase(ex.getRequestMethod())) {
-            sendStatus(ex, 405, "Method Not Allowed");
+    void handle(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        if (!"GET".equalsIgnoreCase(req.getMethod()) && !"HEAD".equalsIgnoreCase(req.getMethod())) {
+            sendStatus(resp, 405, "Method Not Allowed");
             return;
         }
 
-        String raw = ex.getRequestURI().getPath();
+        String raw = req.getRequestURI();
         String decoded = URLDecoder.decode(raw, StandardCharsets.UTF_8);
         String rel = decoded.replaceFirst("^/files/?", "");
 
         if (rel.isEmpty()) rel = "index.html";
 
-        Path target = baseDir.resolve(rel).normalize().toAbsolutePath();
-        if (!target.startsWith(baseDir)) {
-            sendStatus(ex, 403, "Forbidden");
+        Path target = cache.resolve(rel);
+        if (target == null) {
+            sendStatus(resp, 403, "Forbidden");
             return;
         }
 
-        if (Files.isDirectory(target)) {
-            target = target.resolve("index.html");
+        FileCache.Entry file = cache.get(target);
+        if (file == null && Files.isDirectory(target)) {
+            file = cache.get(target.resolve("index.html"));
         }
 
-        if (!Files.exists(target) || !Files.isReadable(target)) {
-            sendStatus(ex, 404, "Not Found");
+        if (file == null) {
+            sendStatus(resp, 404, "Not Found");
             return;
         }
 
-        String ext = ext(target.getFileName().toString());
+        ByteRange range = ifRange(req.getHeader("If-Range"), file) ? ByteRange.parse(req.getHeader("Range"), file.size) : null;
+        // ranges address the identity bytes, so a range request is never compressed
+        String coding = range == null ? coding(req.getHeader("Accept-Encoding"), file) : "identity";
+        byte[] body = "gzip".equals(coding) ? file.gzip : "deflate".equals(coding) ? file.deflate : file.bytes;
+
+        String ext = ext(file.path.getFileName().toString());
         String ct = mime.getOrDefault(ext, "application/octet-stream");
-        ex.getResponseHeaders().set("Content-Type", ct);
-        ex.getResponseHeaders().set("Cache-Control", "public, max-age=300");
-        ex.getResponseHeaders().set("Last-Modified", Instant.ofEpochMilli(Files.getLastModifiedTime(target).toMillis()).toString());
-
-        long len = Files.size(target);
-        if ("HEAD".equalsIgnoreCase(ex.getRequestMethod())) {
-            ex.sendResponseHeaders(200, -1);
-            ex.close();
+        resp.setHeader("Content-Type", ct);
+        resp.setHeader("Cache-Control", "public, max-age=300");
+        resp.setHeader("Last-Modified", file.lastModifiedHttp);
+        resp.setHeader("ETag", file.etag(coding));
+        resp.setHeader("Vary", "Accept-Encoding");
+        resp.setHeader("Accept-Ranges", "bytes");
+
+        if (notModified(req, file)) {
+            resp.setStatus(304);
+            return;
+        }
+
+        if (range == ByteRange.UNSATISFIABLE) {
+            resp.setHeader("Content-Range", "bytes */" + file.size);
+            resp.setStatus(416);
+            return;
+        }
+
+        if (!"identity".equals(coding)) resp.setHeader("Content-Encoding", coding);
+        long start = 0, length = body != null ? body.length : file.size;
+        if (range != null) {
+            resp.setStatus(206);
+            start = range.start;
+            length = range.length();
+            resp.setHeader("Content-Range", range.contentRange(file.size));
+        }
+        resp.setContentLengthLong(length);
+        if ("HEAD".equalsIgnoreCase(req.getMethod())) return;
+
+        if (body != null) {
+            resp.getOutputStream().write(body, (int) start, (int) length);
             return;
         }
+        // Over the cache's per-file limit: hand Jetty a read-only mapping, which it writes to the
+        // socket from the page cache without copying through the heap.
+        try (FileChannel ch = FileChannel.open(file.path)) {
+            ServletOutputStream os = resp.getOutputStream();
+            long pos = start, end = start + length;
+            while (pos < end) {
+                long n = Math.min(end - pos, MAX_MAP);
+                if (os instanceof HttpOutput jettyOut) {
+                    jettyOut.write(ch.map(FileChannel.MapMode.READ_ONLY, pos, n));
+                } else {
+                    ch.transferTo(pos, n, Channels.newChannel(os));
+                }
+                pos += n;
+            }
+        }
+    }
+
+    // A Range is honoured only if If-Range (when sent) still names this version of the file.
+    private static boolean ifRange(String ifRange, FileCache.Entry file) {
+        return ifRange == null || ifRange.trim().equals(file.etag) || ifRange.trim().equals(file.lastModifiedHttp);
+    }
+
+    // If-None-Match wins over If-Modified-Since (RFC 9110 13.2.2).
+    private static boolean notModified(HttpServletRequest req, FileCache.Entry file) {
+        String inm = req.getHeader("If-None-Match");
+        if (inm != null) {
+            for (String tag : inm.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(file.etag) || tag.equals(file.etag("gzip")) || tag.equals(file.etag("deflate"))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ims = req.getHeader("If-Modified-Since");
+        if (ims == null) return false;
+        try {
+            long since = ZonedDateTime.parse(ims, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            return file.lastModified / 1000 <= since;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /** Picks gzip, then deflate, when the client accepts it and the file has that variant. */
+    static String coding(String acceptEncoding, FileCache.Entry file) {
+        if (acceptEncoding == null) return "identity";
+        if (file.gzip != null && accepts(acceptEncoding, "gzip")) return "gzip";
+        if (file.deflate != null && accepts(acceptEncoding, "deflate")) return "deflate";
+        return "identity";
+    }
 
-        ex.sendResponseHeaders(200, len);
-        try (OutputStream os = ex.getResponseBody()) {
-            Files.copy(target, os);
+    private static boolean accepts(String header, String coding) {
+        for (String part : header.split(",")) {
+            String[] p = part.trim().split(";");
+            if (!p[0].trim().equalsIgnoreCase(coding)) continue;
+            for (int i = 1; i < p.length; i++) {
+                if (p[i].trim().matches("[qQ]=0(\\.0{0,3})?")) return false;
+            }
+            return true;
         }
+        return false;
     }
 
     private static String ext(String name) {
@@ -83,10 +178,11 @@ final class StaticFiles {
         return (i == -1) ? "" : name.substring(i + 1).toLowerCase();
     }
 
-    private static void sendStatus(HttpExchange ex, int code, String msg) throws IOException {
+    private static void sendStatus(HttpServletResponse resp, int code, String msg) throws IOException {
         byte[] body = ("<h3>" + code + " " + msg + "</h3>").getBytes(StandardCharsets.UTF_8);
-        ex.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
-        ex.sendResponseHeaders(code, body.length);
-        try (OutputStream os = ex.getResponseBody()) { os.write(body); }
+        resp.setStatus(code);
+        resp.setHeader("Content-Type", "text/html; charset=utf-8");
+        resp.setContentLength(body.length);
+        resp.getOutputStream().write(body);
     }
 }
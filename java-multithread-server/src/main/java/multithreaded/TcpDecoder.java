@@ -0,0 +1,106 @@
+package multithreaded;
+
+import java.util.Arrays;
+
+/**
+ * Splits inbound TCP bytes into protocol lines or, after {@code PROTO BIN}, {@link BinaryProtocol} frames and
+ * hands them to the session (shared by both TCP engines). A line or frame that arrived whole is parsed
+ * straight from the read buffer; only pieces split across reads are copied aside.
+ */
+final class TcpDecoder {
+    static final int MAX_LINE = 64 * 1024;
+
+    private final TcpSession session;
+    private final LineWriter out;
+    private byte[] pending = new byte[256];
+    private int pendingLen;
+    private int frameLen = -1; // binary: payload length of the frame being read, -1 while reading its header
+
+    TcpDecoder(TcpSession session, LineWriter out) {
+        this.session = session;
+        this.out = out;
+    }
+
+    /**
+     * Handles every complete line or frame in {@code data}; false once the connection should close. The replies
+     * to one read are flushed together at the end, so pipelined commands cost one write rather than one each.
+     */
+    boolean feed(byte[] data, int off, int len) {
+        session.touch();
+        int end = off + len;
+        try {
+            while (off < end) {
+                off = session.binary() ? frame(data, off, end) : line(data, off, end);
+                if (off < 0) return false;
+            }
+            return true;
+        } finally {
+            out.flush();
+        }
+    }
+
+    private int line(byte[] data, int off, int end) {
+        int nl = off;
+        while (nl < end && data[nl] != '\n') nl++;
+        if (nl == end) return append(data, off, end - off, MAX_LINE) ? end : tooLong("ERR Line too long");
+        String resp;
+        if (pendingLen == 0) {
+            // parsed in place; a trailing '\r' is just whitespace to the parser
+            resp = session.handle(data, off, nl - off);
+        } else {
+            if (!append(data, off, nl - off, MAX_LINE)) return tooLong("ERR Line too long");
+            resp = session.handle(pending, 0, pendingLen);
+            pendingLen = 0;
+        }
+        if (resp != null) out.println(resp);
+        return "BYE".equals(resp) ? -1 : nl + 1;
+    }
+
+    private int frame(byte[] data, int off, int end) {
+        if (frameLen < 0) {
+            if (pendingLen == 0 && end - off >= BinaryProtocol.FRAME_HEADER) {
+                frameLen = BinaryProtocol.i32(data, off);
+                off += BinaryProtocol.FRAME_HEADER;
+            } else {
+                int n = Math.min(BinaryProtocol.FRAME_HEADER - pendingLen, end - off);
+                append(data, off, n, BinaryProtocol.FRAME_HEADER);
+                off += n;
+                if (pendingLen < BinaryProtocol.FRAME_HEADER) return off;
+                frameLen = BinaryProtocol.i32(pending, 0);
+                pendingLen = 0;
+            }
+            if (frameLen < 0 || frameLen > BinaryProtocol.MAX_FRAME) return tooLong("ERR Frame too long");
+        }
+        boolean open;
+        if (pendingLen == 0 && end - off >= frameLen) {
+            open = session.handleFrame(data, off, frameLen);
+            off += frameLen;
+        } else {
+            int n = Math.min(frameLen - pendingLen, end - off);
+            append(data, off, n, frameLen);
+            off += n;
+            if (pendingLen < frameLen) return off;
+            open = session.handleFrame(pending, 0, pendingLen);
+            pendingLen = 0;
+        }
+        frameLen = -1;
+        return open ? off : -1;
+    }
+
+    private boolean append(byte[] data, int off, int n, int max) {
+        if (pendingLen + n > max) return false;
+        if (pendingLen + n > pending.length) {
+            pending = Arrays.copyOf(pending, Math.min(max, Math.max(pendingLen + n, pending.length * 2)));
+        }
+        System.arraycopy(data, off, pending, pendingLen, n);
+        pendingLen += n;
+        return true;
+    }
+
+    private int tooLong(String error) {
+        if (session.binary()) out.reply(new EncodedMessage[] {EncodedMessage.of(error)}, 1);
+        else out.println(error);
+        pendingLen = 0;
+        return -1;
+    }
+}
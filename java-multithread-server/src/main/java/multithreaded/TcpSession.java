@@ -0,0 +1,225 @@
+package multithreaded;
+
+import java.util.Arrays;
+
+/** Per-connection state and command dispatch for the TCP protocol, lines or binary frames (shared by both TCP engines). */
+final class TcpSession {
+    static final String WELCOME = "WELCOME. Commands: LOGIN <name>, MSG <to> <text>, BROADCAST <text>, JOIN <room>, LEAVE <room>, ROOMMSG <room> <text>, USERS, HISTORY <n> [room], PING, QUIT, GETFILE <path> [offset], PROTO BIN";
+    private static final EncodedMessage OK = EncodedMessage.of("OK");
+    private static final EncodedMessage PING = EncodedMessage.of("PING");
+
+    private final ClientRegistry registry;
+    private final LineWriter out;
+    private final Runnable disconnect;
+    private volatile ClientConnection conn; // also read by the heartbeat
+    private String username = null;
+    private String pmPrefix, allPrefix;
+    private final Command command = new Command(); // reused for every line
+    private boolean binary;
+    private EncodedMessage[] replies = new EncodedMessage[16]; // one binary frame's replies
+    private final Heartbeat heartbeat;
+
+    TcpSession(ClientRegistry registry, LineWriter out, Runnable disconnect) {
+        this.registry = registry;
+        this.out = out;
+        this.disconnect = disconnect;
+        this.heartbeat = Heartbeat.start(new Heartbeat.Peer() {
+            @Override public boolean ping() { return sendPing(); }
+            @Override public void close() { disconnect.run(); }
+        }, Metrics.TCP);
+    }
+
+    /** Called for every read, whatever it holds: any traffic proves the peer is alive. */
+    void touch() {
+        if (heartbeat != null) heartbeat.touch();
+    }
+
+    // on the timer wheel, which must not block: a logged-in user's mailbox is a queue and the NIO writer only
+    // enqueues, but before login the pool engines would write to the socket, so such a client is just closed idle
+    private boolean sendPing() {
+        ClientConnection c = conn;
+        if (c != null) c.send(PING);
+        else if (out.blocking()) return false;
+        else {
+            out.write(PING);
+            out.flush();
+        }
+        return true;
+    }
+
+    String username() { return username; }
+
+    /** True once the client switched to {@link BinaryProtocol} frames. */
+    boolean binary() { return binary; }
+
+    /** Returns the reply line to send, or null for none; "BYE" means the connection should close. */
+    String handle(CharSequence input) {
+        return handle(command.parse(input));
+    }
+
+    /** Same, parsing UTF-8 bytes in place (NIO engine). */
+    String handle(byte[] line, int off, int len) {
+        return handle(command.parse(line, off, len));
+    }
+
+    /**
+     * Handles every record in one binary frame and answers with one frame of replies. False when the
+     * connection should close: the client quit or a record runs past the end of the frame.
+     */
+    boolean handleFrame(byte[] frame, int off, int len) {
+        int end = off + len, n = 0;
+        boolean open = true;
+        while (off < end && open) {
+            int argLen = end - off < BinaryProtocol.RECORD_HEADER ? -1 : BinaryProtocol.u16(frame, off + 1);
+            int argOff = off + 3, bodyOff = argOff + argLen + 4;
+            int bodyLen = argLen < 0 || bodyOff > end ? -1 : BinaryProtocol.i32(frame, bodyOff - 4);
+            String reply;
+            if (bodyLen < 0 || bodyLen > end - bodyOff) {
+                reply = "ERR Bad frame";
+                open = false;
+            } else {
+                reply = handle(command.parse(BinaryProtocol.verb(frame[off] & 0xFF), frame, argOff, argLen, bodyOff, bodyLen));
+                off = bodyOff + bodyLen;
+                if ("BYE".equals(reply)) open = false;
+            }
+            if (reply == null) continue;
+            if (n == replies.length) replies = Arrays.copyOf(replies, n * 2);
+            replies[n++] = "OK".equals(reply) ? OK : EncodedMessage.of(reply);
+        }
+        if (n > 0) out.reply(replies, n);
+        Arrays.fill(replies, 0, n, null);
+        return open;
+    }
+
+    private String handle(Command cmd) {
+        long start = Metrics.start();
+        ChatEvents.CommandEvent event = new ChatEvents.CommandEvent();
+        event.begin();
+        String reply = dispatch(cmd);
+        Metrics.TCP.in();
+        Metrics.TCP.command(cmd.verb(), start);
+        event.end();
+        if (event.shouldCommit()) ChatEvents.command(event, Metrics.TCP, cmd.verb(), conn);
+        return reply;
+    }
+
+    private String dispatch(Command cmd) {
+        switch (cmd.verb()) {
+            case LOGIN: {
+                if (cmd.argCount() < 1) return "ERR Usage: LOGIN <name>";
+                if (conn != null) return "ERR Already logged in as " + username;
+                if (!cmd.arg1IsToken()) return "ERR Invalid name";
+                String name = cmd.arg1();
+                if (name.length() > ClientRegistry.MAX_NAME) return "ERR Name too long";
+                ClientConnection added = registry.addTcp(name, out, disconnect);
+                if (added != null) {
+                    this.conn = added;
+                    this.username = name;
+                    this.pmPrefix = "[PM from " + name + "] ";
+                    this.allPrefix = "[ALL from " + name + "] ";
+                    String ok = "OK Logged in as " + name;
+                    // PMs stored while offline follow the reply; a binary client tells them apart by opcode anyway
+                    if (binary) {
+                        registry.deliverInbox(added);
+                        return ok;
+                    }
+                    out.println(ok);
+                    registry.deliverInbox(added);
+                    return null;
+                } else {
+                    return "ERR Username taken";
+                }
+            }
+            case MSG: {
+                if (username == null) return "ERR Login first";
+                if (cmd.argCount() < 2) return "ERR Usage: MSG <to> <text>";
+                String to = cmd.arg1();
+                return registry.sendToUser(username, to, cmd.composeArg2(pmPrefix)).reply(to);
+            }
+            case BROADCAST: {
+                if (username == null) return "ERR Login first";
+                registry.broadcast(username, cmd.composeRest(allPrefix));
+                return "OK";
+            }
+            case JOIN: {
+                if (username == null) return "ERR Login first";
+                if (cmd.argCount() < 1) return "ERR Usage: JOIN <room>";
+                String room = cmd.arg1();
+                if (room.length() > ClientRegistry.MAX_NAME) return "ERR Name too long";
+                return registry.joinRoom(room, conn) ? "OK Joined " + room : "ERR Already in " + room;
+            }
+            case LEAVE: {
+                if (username == null) return "ERR Login first";
+                if (cmd.argCount() < 1) return "ERR Usage: LEAVE <room>";
+                String room = cmd.arg1();
+                return registry.leaveRoom(room, conn) ? "OK Left " + room : "ERR Not in " + room;
+            }
+            case ROOMMSG: {
+                if (username == null) return "ERR Login first";
+                if (cmd.argCount() < 2) return "ERR Usage: ROOMMSG <room> <text>";
+                String room = cmd.arg1();
+                int n = registry.postToRoom(room, conn, cmd.composeArg2("[#" + room + " from " + username + "] "));
+                return n < 0 ? "ERR Not in " + room : "OK";
+            }
+            case USERS: {
+                return registry.usersReply();
+            }
+            case HISTORY: {
+                if (username == null) return "ERR Login first";
+                int n = historyCount(cmd);
+                if (n < 0) return "ERR Usage: HISTORY <n> [room]";
+                String room = cmd.argCount() > 1 ? cmd.arg2().trim() : null;
+                EncodedMessage[] logged = registry.history(conn, room, n);
+                if (logged == null) return "ERR Not in " + room;
+                // one batch of views into the log, ahead of the reply and of anything queued later
+                if (logged.length > 0) out.write(logged, logged.length);
+                return "OK " + logged.length;
+            }
+            case GETFILE: {
+                if (cmd.argCount() < 1) return "ERR Usage: GETFILE <relative-path> [offset]";
+                long offset = 0;
+                if (cmd.argCount() > 1) {
+                    try { offset = Long.parseLong(cmd.arg2().trim()); }
+                    catch (NumberFormatException e) { return "ERR Usage: GETFILE <relative-path> [offset]"; }
+                }
+                return StaticFileReader.readTextFromPublic(cmd.arg1(), offset, out);
+            }
+            case PROTO: {
+                if (cmd.argCount() != 1 || !"BIN".equalsIgnoreCase(cmd.arg1())) return "ERR Usage: PROTO BIN";
+                if (conn != null) return "ERR PROTO must come before LOGIN";
+                // acknowledged in text; every byte after it, both ways, is framed
+                out.println("OK PROTO BIN");
+                out.enterBinary();
+                binary = true;
+                return null;
+            }
+            case PING: {
+                return "PONG";
+            }
+            case PONG: {
+                return null; // the read itself already counted as activity
+            }
+            case QUIT: {
+                return "BYE";
+            }
+            default:
+                return "ERR Unknown command";
+        }
+    }
+
+    /** HISTORY's count argument, or -1 if missing or not a number. */
+    static int historyCount(Command cmd) {
+        if (cmd.argCount() < 1) return -1;
+        try { return Math.max(0, Integer.parseInt(cmd.arg1().trim())); }
+        catch (NumberFormatException e) { return -1; }
+    }
+
+    void logout() {
+        if (heartbeat != null) heartbeat.cancel();
+        if (conn != null) {
+            registry.remove(conn);
+            conn = null;
+            username = null;
+        }
+    }
+}
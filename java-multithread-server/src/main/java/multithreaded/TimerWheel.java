@@ -0,0 +1,94 @@
+package multithreaded;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel: one thread and {@code 2^n} buckets, one bucket expired per tick. Scheduling is a queue
+ * insert and cancelling sets a flag (the entry is dropped when its bucket next comes round), so 100k connection
+ * heartbeats cost 100k queue nodes instead of 100k {@code ScheduledFuture}s in a heap. Deadlines are rounded up to
+ * whole ticks and may run up to one tick late. Tasks run on the wheel thread and must not block.
+ */
+final class TimerWheel {
+    /** Shared by every transport's {@link Heartbeat}s. */
+    static final TimerWheel SHARED = new TimerWheel("timer-wheel", Long.getLong("chat.heartbeat.tickMs", 250), 512);
+
+    /** Something to run once its deadline passes; one task is in at most one bucket at a time. */
+    abstract static class Task {
+        private long deadline; // absolute tick
+        private volatile boolean cancelled;
+
+        abstract void expire();
+
+        /** O(1); the wheel forgets it the next time its bucket comes round. */
+        void cancel() { cancelled = true; }
+
+        boolean cancelled() { return cancelled; }
+    }
+
+    final long tickMillis;
+    private final long tickNanos;
+    private final Queue<Task>[] buckets;
+    private final int mask;
+    private final long origin = System.nanoTime();
+    private volatile long tick;
+
+    private TimerWheel(String name, long tickMillis, int buckets) {
+        this(tickMillis, buckets);
+        Thread t = new Thread(this::run, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** A wheel without a thread: it only moves on {@link #advance()}, so tests can step it tick by tick. */
+    TimerWheel(long tickMillis, int buckets) {
+        this.tickMillis = Math.max(1, tickMillis);
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(this.tickMillis);
+        @SuppressWarnings("unchecked")
+        Queue<Task>[] b = (Queue<Task>[]) new Queue<?>[buckets]; // power of two
+        for (int i = 0; i < buckets; i++) b[i] = new ConcurrentLinkedQueue<>();
+        this.buckets = b;
+        this.mask = buckets - 1;
+    }
+
+    /** The current tick; a cheap clock for "last seen" stamps. */
+    long now() { return tick; }
+
+    long ticks(long millis) {
+        return Math.max(1, (millis + tickMillis - 1) / tickMillis);
+    }
+
+    /** Runs {@code task} about {@code ticks} ticks from now. Any thread, including a task's own expire(). */
+    void schedule(Task task, long ticks) {
+        // +1: a tick read just before the wheel advances would otherwise land in the bucket being expired
+        long deadline = tick + Math.max(1, ticks) + 1;
+        task.deadline = deadline;
+        buckets[(int) (deadline & mask)].add(task);
+    }
+
+    private void run() {
+        while (true) {
+            long wait;
+            while ((wait = origin + (tick + 1) * tickNanos - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+            advance();
+        }
+    }
+
+    /** Moves to the next tick and expires what is due in its bucket. Only ever one caller: the wheel thread. */
+    void advance() {
+        long next = tick + 1;
+        tick = next; // published first: tasks rescheduled below land in later buckets
+        for (Iterator<Task> it = buckets[(int) (next & mask)].iterator(); it.hasNext(); ) {
+            Task task = it.next();
+            if (task.cancelled) {
+                it.remove();
+            } else if (task.deadline <= next) {
+                it.remove();
+                try { task.expire(); } catch (RuntimeException e) { e.printStackTrace(); }
+            }
+        }
+    }
+}
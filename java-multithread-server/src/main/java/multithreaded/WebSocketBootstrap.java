@@ -1,100 +1,215 @@
 package multithreaded;
 
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.Extension;
 import jakarta.websocket.OnClose;
 import jakarta.websocket.OnMessage;
 import jakarta.websocket.OnOpen;
+import jakarta.websocket.PongMessage;
 import jakarta.websocket.Session;
 import jakarta.websocket.server.PathParam;
 import jakarta.websocket.server.ServerEndpoint;
+import jakarta.websocket.server.ServerEndpointConfig;
 
+import org.eclipse.jetty.server.ConnectionLimit;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.HandlerList;
 import org.eclipse.jetty.servlet.DefaultServlet;
 import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.util.compression.CompressionPool;
+import org.eclipse.jetty.util.compression.DeflaterPool;
 import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.core.server.WebSocketServerComponents;
 import org.eclipse.jetty.websocket.jakarta.server.config.JakartaWebSocketServletContainerInitializer;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 public final class WebSocketBootstrap {
 
-    private static final ClientRegistry registry = ClientRegistry.getInstance();
-
     private static Server jetty; // one Jetty instance for both static files + WS
-    // Keep WS sessions here only for the WS path on Jetty (your TCP server stays separate)
-    private static final Map<String, Session> clients = new ConcurrentHashMap<>();
 
-    @ServerEndpoint("/chat/{username}")
+    static final boolean DEFLATE = Boolean.parseBoolean(System.getProperty("chat.ws.deflate", "true"));
+
+    /**
+     * Shared by both endpoints: offers permessage-deflate only while {@code -Dchat.ws.deflate} is on (default).
+     * Jetty deflates every data frame, however small, so batch mode is what keeps it worthwhile under fan-out.
+     */
+    public static class Negotiation extends ServerEndpointConfig.Configurator {
+        @Override
+        public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+            List<Extension> offered = super.getNegotiatedExtensions(installed, requested);
+            if (DEFLATE) return offered;
+            return offered.stream().filter(e -> !e.getName().equals("permessage-deflate")).toList();
+        }
+    }
+
+    @ServerEndpoint(value = "/chat/{username}", configurator = Negotiation.class)
     public static class ChatEndpoint {
-        private static final Map<String, Session> clients = new ConcurrentHashMap<>();
         private static final ClientRegistry registry = ClientRegistry.getInstance();
+        private static final String CONN = "chat.connection";
 
         @OnOpen
         public void onOpen(Session session, @PathParam("username") String username) {
-            clients.put(username, session);
-            registry.addWs(username, new WsSessionBridge(session)); // make /metrics see WS users
+            Metrics.WS.accepted.increment();
+            // same presence map as TCP and /chat, so a name can only be held once across transports
+            ClientConnection conn = registry.addWs(username, WsSessionBridge.open(session));
+            if (conn == null) {
+                try { session.close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, "Username taken")); } catch (Exception ignored) {}
+                return;
+            }
+            session.getUserProperties().put(CONN, conn);
+            registry.deliverInbox(conn);
             broadcast("SERVER", username + " joined the chat");
         }
 
         @OnMessage
-        public void onMessage(String message, @PathParam("username") String username) {
-            if (message.startsWith("@")) {
+        public void onMessage(Session session, String message, @PathParam("username") String username) {
+            WsSessionBridge out = WsSessionBridge.of(session);
+            out.touch();
+            ClientConnection conn = (ClientConnection) session.getUserProperties().get(CONN);
+            if (conn == null) return;
+            Metrics.WS.in();
+            Metrics.WS.received(message.length());
+            // room commands: "/join room", "/leave room", "#room text"; "/history [n] [room]" replays the log
+            if (message.startsWith("/history")) {
+                String[] parts = message.trim().split("\\s+", 3);
+                int n;
+                try { n = parts.length > 1 ? Math.max(0, Integer.parseInt(parts[1])) : 50; }
+                catch (NumberFormatException e) { conn.send(EncodedMessage.of("ERR Usage: /history [n] [room]")); return; }
+                String room = parts.length > 2 ? parts[2] : null;
+                EncodedMessage[] logged = registry.history(conn, room, n);
+                if (logged == null) conn.send(EncodedMessage.of("ERR Not in " + room));
+                else out.reply(logged, logged.length);
+            } else if (message.startsWith("/join ") || message.startsWith("/leave ")) {
+                String[] parts = message.split("\\s+", 2);
+                String room = parts.length > 1 ? parts[1].trim() : "";
+                if (room.isEmpty()) return;
+                boolean ok = parts[0].equals("/join") ? registry.joinRoom(room, conn) : registry.leaveRoom(room, conn);
+                conn.send(EncodedMessage.of((ok ? "OK " : "ERR ") + parts[0].substring(1) + " " + room));
+            } else if (message.startsWith("#")) {
+                String[] parts = message.split(" ", 2);
+                String room = parts[0].substring(1);
+                int n = registry.postToRoom(room, conn, "[#" + room + " from " + username + "] " + (parts.length > 1 ? parts[1] : ""));
+                if (n < 0) conn.send(EncodedMessage.of("ERR Not in " + room));
+            } else if (message.startsWith("@")) {
                 String[] parts = message.split(" ", 2);
                 String target = parts[0].substring(1);
-                sendPrivate(username, target, parts.length > 1 ? parts[1] : "");
+                sendPrivate(conn, target, parts.length > 1 ? parts[1] : "");
             } else {
                 broadcast(username, message);
             }
         }
 
+        @OnMessage
+        public void onPong(Session session, PongMessage pong) {
+            WsSessionBridge.of(session).touch();
+        }
+
         @OnClose
         public void onClose(Session session, @PathParam("username") String username) {
-            clients.remove(username);
-            registry.removeWs(username); // keep registry in sync
+            WsSessionBridge out = WsSessionBridge.of(session);
+            if (out != null) out.closed();
+            ClientConnection conn = (ClientConnection) session.getUserProperties().remove(CONN);
+            if (conn == null) return; // rejected duplicate
+            registry.remove(conn); // keep registry in sync
             broadcast("SERVER", username + " left the chat");
         }
 
-        private static void sendPrivate(String from, String to, String message) {
-            Session target = clients.get(to);
-            if (target != null) {
-                try { target.getBasicRemote().sendText("[PM from " + from + "]: " + message); } catch (Exception ignored) {}
-            }
+        private static void sendPrivate(ClientConnection from, String to, String message) {
+            ClientRegistry.Delivery d = registry.sendToUser(from.username(), to, EncodedMessage.of("[PM from " + from.username() + "]: " + message));
+            if (d != ClientRegistry.Delivery.SENT) from.send(EncodedMessage.of(d.reply(to)));
         }
 
         private static void broadcast(String from, String message) {
-            for (Session s : List.copyOf(clients.values())) {
-                try { s.getBasicRemote().sendText(from + ": " + message); } catch (Exception ignored) {}
-            }
+            registry.broadcast(from + ": " + message); // reaches TCP and /chat users too
         }
     }
 
 
     /** Start Jetty serving static files from publicDir and WS at /chat/{username}. */
     public static void start(int port, Path publicDir) throws Exception {
+        start(port, -1, publicDir);
+    }
+
+    /**
+     * Same, plus the dashboard (/, /metrics, /files) on {@code dashboardPort} when it is positive. Both connectors
+     * share one sized thread pool, so a slow download or scrape never holds up the other routes.
+     */
+    public static void start(int port, int dashboardPort, Path publicDir) throws Exception {
         if (jetty != null && jetty.isStarted()) return;
 
-        jetty = new Server(port);
+        QueuedThreadPool threads = new QueuedThreadPool(
+                Integer.getInteger("chat.http.maxThreads", 200), Integer.getInteger("chat.http.minThreads", 8));
+        threads.setName("jetty");
+        threads.setIdleTimeout(Integer.getInteger("chat.http.threadIdleMs", 60_000));
+        threads.setReservedThreads(Integer.getInteger("chat.http.reservedThreads", -1)); // -1 = Jetty's heuristic
+        jetty = new Server(threads);
+
+        HttpConfiguration http = new HttpConfiguration();
+        http.setSendServerVersion(false);
+        http.setPersistentConnectionsEnabled(true); // keep-alive; pipelined requests are read in order
+        http.setOutputBufferSize(Integer.getInteger("chat.http.outputBuffer", 32 * 1024));
+        http.setRequestHeaderSize(Integer.getInteger("chat.http.requestHeaderSize", 8 * 1024));
+        jetty.addConnector(connector("chat", port, http));
+        if (dashboardPort > 0) jetty.addConnector(connector("dashboard", dashboardPort, http));
+        // total open HTTP/WS connections across both connectors; accepting pauses at the limit
+        jetty.addBean(new ConnectionLimit(Integer.getInteger("chat.http.maxConnections", 10_000), jetty));
 
         ServletContextHandler ctx = new ServletContextHandler(ServletContextHandler.SESSIONS);
         ctx.setContextPath("/");
+        ctx.setVirtualHosts(new String[] {"@chat"});
 
         // Static files: map "/" to your public directory
         ctx.setBaseResource(Resource.newResource(publicDir.toUri()));
         ctx.addServlet(DefaultServlet.class, "/");
 
+        // deflate level for every session's compressor; Jetty's default pool (and level) otherwise
+        Integer level = Integer.getInteger("chat.ws.deflateLevel");
+        if (level != null) ctx.setAttribute(WebSocketServerComponents.WEBSOCKET_DEFLATER_POOL_ATTRIBUTE,
+                new DeflaterPool(CompressionPool.DEFAULT_CAPACITY, level, true));
+
         // WebSocket: register annotated endpoint
         JakartaWebSocketServletContainerInitializer.configure(ctx, (servletContext, wsContainer) -> {
+            int maxMessage = Integer.getInteger("chat.ws.maxMessage", 64 * 1024);
+            wsContainer.setDefaultMaxTextMessageBufferSize(maxMessage);
+            wsContainer.setDefaultMaxBinaryMessageBufferSize(maxMessage);
+            wsContainer.setAsyncSendTimeout(WsSessionBridge.SEND_TIMEOUT_MS);
             wsContainer.addEndpoint(ChatEndpoint.class);
+            wsContainer.addEndpoint(WsChatEndpoint.class); // command protocol at /chat (LOGIN, MSG, JOIN, ...)
         });
 
-        jetty.setHandler(ctx);
+        jetty.setHandler(dashboardPort > 0
+                ? new HandlerList(ctx, DashboardServer.context("dashboard", publicDir))
+                : ctx);
         jetty.start();
 
         System.out.println("[Jetty] Static files  → http://localhost:" + port + "/  (serving " + publicDir.toAbsolutePath() + ")");
-        System.out.println("[Jetty] WebSocket     → ws://localhost:" + port + "/chat/{username}");
+        System.out.println("[Jetty] WebSocket     → ws://localhost:" + port + "/chat/{username}  and  /chat (commands)");
+        if (dashboardPort > 0) {
+            System.out.println("[Jetty] Dashboard     → http://localhost:" + dashboardPort + "/  |  /metrics  |  /files → " + publicDir);
+        }
+        System.out.println("[Jetty] Threads " + threads.getMinThreads() + ".." + threads.getMaxThreads()
+                + ", WS deflate " + (DEFLATE ? "on" : "off") + ", batch frames " + (WsSessionBridge.BATCH ? "on" : "per session (?batch=1)"));
+    }
+
+    private static ServerConnector connector(String name, int port, HttpConfiguration http) {
+        HttpConnectionFactory factory = new HttpConnectionFactory(http);
+        factory.setInputBufferSize(Integer.getInteger("chat.http.inputBuffer", 8 * 1024));
+        // -1 = Jetty's defaults, which scale with the core count
+        ServerConnector c = new ServerConnector(jetty, Integer.getInteger("chat.http.acceptors", -1),
+                Integer.getInteger("chat.http.selectors", -1), factory);
+        c.setName(name);
+        c.setPort(port);
+        c.setAcceptQueueSize(Integer.getInteger("chat.http.backlog", 1024));
+        c.setIdleTimeout(Long.getLong("chat.http.idleTimeoutMs", 30_000L));
+        c.setAcceptedTcpNoDelay(true);
+        return c;
     }
 
     public static void stop() {
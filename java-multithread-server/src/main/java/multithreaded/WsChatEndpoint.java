@@ -2,65 +2,113 @@ package multithreaded;
 
 import jakarta.websocket.*;
 import jakarta.websocket.server.ServerEndpoint;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
-@ServerEndpoint(value = "/chat")
+@ServerEndpoint(value = "/chat", configurator = WebSocketBootstrap.Negotiation.class)
 public class WsChatEndpoint {
 
     private static final ClientRegistry registry = ClientRegistry.getInstance();
-    private static final Map<Session, String> sessionToUser = new ConcurrentHashMap<>();
+    // the logged-in handle lives on the session itself; presence is tracked only by the registry
+    private static final String CONN = "chat.connection";
+    // Jetty delivers one message at a time per thread, so each thread can reuse one parse buffer
+    private static final ThreadLocal<Command> COMMAND = ThreadLocal.withInitial(Command::new);
 
     @OnOpen
     public void onOpen(Session session) {
-        try { session.getBasicRemote().sendText("WELCOME (WS). Send: LOGIN <name>"); }
-        catch (Exception ignored) {}
+        Metrics.WS.accepted.increment();
+        WsSessionBridge.open(session).reply("WELCOME (WS). Send: LOGIN <name>");
     }
 
     @OnMessage
     public void onMessage(Session session, String message) {
-        String[] parts = message.trim().split("\\s+", 3);
-        if (parts.length == 0) return;
-        String cmd = parts[0].toUpperCase();
+        long start = Metrics.start();
+        ChatEvents.CommandEvent event = new ChatEvents.CommandEvent();
+        event.begin();
+        WsSessionBridge out = WsSessionBridge.of(session);
+        out.touch();
+        Command cmd = COMMAND.get().parse(message);
+        Metrics.WS.in();
+        Metrics.WS.received(message.length());
+        ClientConnection conn = (ClientConnection) session.getUserProperties().get(CONN);
 
         try {
-            switch (cmd) {
-                case "LOGIN" -> {
-                    if (parts.length < 2) { session.getBasicRemote().sendText("ERR Usage: LOGIN <name>"); return; }
-                    String name = parts[1];
-                    WsSessionBridge bridge = new WsSessionBridge(session);
-                    if (registry.addWs(name, bridge)) {
-                        sessionToUser.put(session, name);
-                        session.getBasicRemote().sendText("OK Logged in as " + name);
-                    } else session.getBasicRemote().sendText("ERR Username taken");
+            switch (cmd.verb()) {
+                case LOGIN -> {
+                    if (cmd.argCount() < 1) { out.reply("ERR Usage: LOGIN <name>"); return; }
+                    if (conn != null) { out.reply("ERR Already logged in as " + conn.username()); return; }
+                    String name = cmd.arg1();
+                    if (name.length() > ClientRegistry.MAX_NAME) { out.reply("ERR Name too long"); return; }
+                    ClientConnection added = registry.addWs(name, out);
+                    if (added != null) {
+                        session.getUserProperties().put(CONN, added);
+                        out.reply("OK Logged in as " + name);
+                        registry.deliverInbox(added);
+                    } else out.reply("ERR Username taken");
                 }
-                case "MSG" -> {
-                    String user = sessionToUser.get(session);
-                    if (user == null) { session.getBasicRemote().sendText("ERR Login first"); return; }
-                    if (parts.length < 3) { session.getBasicRemote().sendText("ERR Usage: MSG <to> <text>"); return; }
-                    String to = parts[1];
-                    String text = parts[2];
-                    boolean sent = registry.sendToUser(to, "[PM from " + user + "] " + text);
-                    session.getBasicRemote().sendText(sent ? "OK" : "ERR user not found");
+                case MSG -> {
+                    if (conn == null) { out.reply("ERR Login first"); return; }
+                    if (cmd.argCount() < 2) { out.reply("ERR Usage: MSG <to> <text>"); return; }
+                    String to = cmd.arg1();
+                    out.reply(registry.sendToUser(conn.username(), to, cmd.composeArg2("[PM from " + conn.username() + "] ")).reply(to));
                 }
-                case "BROADCAST" -> {
-                    String user = sessionToUser.get(session);
-                    if (user == null) { session.getBasicRemote().sendText("ERR Login first"); return; }
-                    String text = parts.length >= 2 ? message.substring("BROADCAST".length()).trim() : "";
-                    registry.broadcast("[ALL from " + user + "] " + text);
-                    session.getBasicRemote().sendText("OK");
+                case BROADCAST -> {
+                    if (conn == null) { out.reply("ERR Login first"); return; }
+                    registry.broadcast(conn.username(), cmd.composeRest("[ALL from " + conn.username() + "] "));
+                    out.reply("OK");
                 }
-                case "USERS" -> session.getBasicRemote().sendText("USERS " + registry.usernames());
-                case "QUIT" -> { session.getBasicRemote().sendText("BYE"); session.close(); }
-                default -> session.getBasicRemote().sendText("ERR Unknown command");
+                case JOIN, LEAVE -> {
+                    if (conn == null) { out.reply("ERR Login first"); return; }
+                    if (cmd.argCount() < 1) { out.reply("ERR Usage: " + cmd.verb() + " <room>"); return; }
+                    String room = cmd.arg1();
+                    if (cmd.verb() == Command.Verb.JOIN) {
+                        if (room.length() > ClientRegistry.MAX_NAME) { out.reply("ERR Name too long"); return; }
+                        out.reply(registry.joinRoom(room, conn) ? "OK Joined " + room : "ERR Already in " + room);
+                    } else {
+                        out.reply(registry.leaveRoom(room, conn) ? "OK Left " + room : "ERR Not in " + room);
+                    }
+                }
+                case ROOMMSG -> {
+                    if (conn == null) { out.reply("ERR Login first"); return; }
+                    if (cmd.argCount() < 2) { out.reply("ERR Usage: ROOMMSG <room> <text>"); return; }
+                    String room = cmd.arg1();
+                    int n = registry.postToRoom(room, conn, cmd.composeArg2("[#" + room + " from " + conn.username() + "] "));
+                    out.reply(n < 0 ? "ERR Not in " + room : "OK");
+                }
+                case USERS -> out.reply(registry.usersReply());
+                case HISTORY -> {
+                    if (conn == null) { out.reply("ERR Login first"); return; }
+                    int n = TcpSession.historyCount(cmd);
+                    if (n < 0) { out.reply("ERR Usage: HISTORY <n> [room]"); return; }
+                    String room = cmd.argCount() > 1 ? cmd.arg2().trim() : null;
+                    EncodedMessage[] logged = registry.history(conn, room, n);
+                    if (logged == null) { out.reply("ERR Not in " + room); return; }
+                    out.send(logged, logged.length);
+                    out.reply("OK " + logged.length);
+                }
+                case PING -> out.reply("PONG");
+                case PONG -> {} // the message itself was the activity
+                case QUIT -> { out.reply("BYE"); session.close(); }
+                default -> out.reply("ERR Unknown command");
+            }
+        } catch (Exception ignored) {
+        } finally {
+            Metrics.WS.command(cmd.verb(), start);
+            event.end();
+            if (event.shouldCommit()) {
+                ChatEvents.command(event, Metrics.WS, cmd.verb(), (ClientConnection) session.getUserProperties().get(CONN));
             }
-        } catch (Exception ignored) {}
+        }
+    }
+
+    @OnMessage
+    public void onPong(Session session, PongMessage pong) {
+        WsSessionBridge.of(session).touch();
     }
 
     @OnClose
     public void onClose(Session session, CloseReason reason) {
-        String user = sessionToUser.remove(session);
-        if (user != null) registry.removeWs(user);
+        WsSessionBridge out = WsSessionBridge.of(session);
+        if (out != null) out.closed();
+        registry.remove((ClientConnection) session.getUserProperties().remove(CONN));
     }
 
     @OnError
@@ -1,15 +1,213 @@
 // multithreaded/WsSessionBridge.java
 package multithreaded;
 
+import jakarta.websocket.Extension;
 import jakarta.websocket.Session;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.websocket.core.CoreSession;
+import org.eclipse.jetty.websocket.core.Frame;
+import org.eclipse.jetty.websocket.core.OpCode;
+import org.eclipse.jetty.websocket.jakarta.common.JakartaWebSocketSession;
 
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The sending side of one WebSocket session, created when it opens and kept in its user properties. Nothing here
+ * waits for the network: on Jetty, frames wrap the shared UTF-8 bytes (no per-session encode) and go to the core
+ * session's non-blocking {@code sendFrame}; any other container gets {@code getAsyncRemote()}. Bytes handed over
+ * and not yet written are counted, and above 256 KB the session stops being {@link #writable()} until completions
+ * bring it back under 64 KB, so a slow browser backs up in its own bounded mailbox instead of Jetty's frame queue.
+ *
+ * In batch mode ({@code ?batch=1} on the handshake, or {@code -Dchat.ws.batch=true} for every session) messages
+ * are collected and each flush sends them as one BINARY frame of newline-terminated UTF-8 lines. A drained mailbox
+ * lingers {@code -Dchat.ws.batchDelayUs} (default 1000) before flushing, and {@code -Dchat.ws.batchBytes}
+ * (default 16 KB) sends a frame early, so a broadcast storm costs one frame (and one deflate) per flush rather
+ * than one per message.
+ */
 public class WsSessionBridge {
+    static final boolean BATCH = Boolean.getBoolean("chat.ws.batch");
+    static final int BATCH_BYTES = Integer.getInteger("chat.ws.batchBytes", 16 * 1024);
+    static final long BATCH_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("chat.ws.batchDelayUs", 1000));
+    // a frame Jetty couldn't write for this long fails, which closes the session
+    static final long SEND_TIMEOUT_MS = Long.getLong("chat.ws.sendTimeoutMs", 30_000);
+    private static final long HIGH_WATER = 256 * 1024, LOW_WATER = 64 * 1024;
+    private static final String KEY = "chat.bridge";
+    private static final ByteBuffer NO_DATA = ByteBuffer.allocate(0);
+
     private final Session session;
-    public WsSessionBridge(Session session) { this.session = session; }
-    public void send(String msg) {
-        try { session.getBasicRemote().sendText(msg); } catch (Exception ignored) {}
+    private final CoreSession core; // null off Jetty
+    private final boolean batch;
+    private final Heartbeat heartbeat;
+    private final AtomicLong queued = new AtomicLong(); // handed to the container, not yet written
+    private volatile boolean paused;
+    private volatile Runnable writableListener;
+    private final ReentrantLock lock = new ReentrantLock();
+    private ByteBuffer pending; // batch mode: lines for the next frame; guarded by lock
+
+    private WsSessionBridge(Session session) {
+        this.session = session;
+        this.core = session instanceof JakartaWebSocketSession jetty ? jetty.getCoreSession() : null;
+        List<String> param = session.getRequestParameterMap().get("batch");
+        this.batch = param == null || param.isEmpty() ? BATCH : param.get(0).equals("1") || param.get(0).equals("true");
+        if (batch) Metrics.wsBatchSessions.increment();
+        for (Extension e : session.getNegotiatedExtensions()) {
+            if (e.getName().equals("permessage-deflate")) Metrics.wsDeflateSessions.increment();
+        }
+        if (core != null) core.setWriteTimeout(Duration.ofMillis(SEND_TIMEOUT_MS));
+        this.heartbeat = startHeartbeat();
+    }
+
+    /** Creates the bridge for a session that just opened and arms its heartbeat. */
+    static WsSessionBridge open(Session session) {
+        WsSessionBridge bridge = new WsSessionBridge(session);
+        session.getUserProperties().put(KEY, bridge);
+        return bridge;
+    }
+
+    /** The session's bridge, or null if it never finished opening. */
+    static WsSessionBridge of(Session session) {
+        return (WsSessionBridge) session.getUserProperties().get(KEY);
+    }
+
+    /** Queues pre-encoded messages in order; in batch mode they wait for {@link #flush()} or a full frame. */
+    void send(EncodedMessage[] messages, int count) {
+        if (count == 0) return;
+        long bytes = 0;
+        for (int i = 0; i < count; i++) bytes += messages[i].lineLength() - 1;
+        Metrics.WS.out(count, bytes);
+        if (batch) {
+            append(messages, count);
+            return;
+        }
+        queued.addAndGet(bytes);
+        Metrics.wsFrames.add(count);
+        long total = bytes;
+        if (core != null) {
+            // batch=true lets Jetty gather the frames into one write; the last one flushes
+            Callback done = Callback.from(() -> written(total), x -> written(total));
+            for (int i = 0; i < count; i++) {
+                boolean last = i == count - 1;
+                core.sendFrame(new Frame(OpCode.TEXT, messages[i].payload()), last ? done : Callback.NOOP, !last);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                boolean last = i == count - 1;
+                try { session.getAsyncRemote().sendText(messages[i].text(), r -> { if (last) written(total); }); }
+                catch (Exception e) { if (last) written(total); }
+            }
+        }
     }
+
+    /** The session's own replies (and HISTORY): in order after anything queued before, and sent right away. */
+    void reply(EncodedMessage[] messages, int count) {
+        send(messages, count);
+        flush();
+    }
+
+    void reply(String text) {
+        reply(new EncodedMessage[] {EncodedMessage.of(text)}, 1);
+    }
+
+    /** Batch mode: sends what has been collected as one frame. */
+    void flush() {
+        if (!batch) return;
+        lock.lock();
+        try { sendPending(); } finally { lock.unlock(); }
+    }
+
+    long flushDelayNanos() { return batch ? BATCH_DELAY_NANOS : 0; }
+
+    /** False while more than the high-water mark is waiting to be written. */
+    boolean writable() {
+        if (queued.get() < HIGH_WATER) return true;
+        paused = true;
+        return queued.get() < HIGH_WATER; // a completion may have come in between
+    }
+
+    /** Registers a callback (run on a completion thread) for when {@link #writable()} turns true again. */
+    void onWritable(Runnable listener) { this.writableListener = listener; }
+
+    private void append(EncodedMessage[] messages, int count) {
+        lock.lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                ByteBuffer line = messages[i].line();
+                if (pending == null) {
+                    pending = ByteBuffer.allocate(Math.max(line.remaining(), Math.min(BATCH_BYTES, 4096)));
+                } else if (pending.remaining() < line.remaining()) {
+                    ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + line.remaining()));
+                    pending = grown.put(pending.flip());
+                }
+                pending.put(line);
+                if (pending.position() >= BATCH_BYTES) sendPending();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the buffer goes to the container as is, so the next frame starts a new one; caller holds the lock
+    private void sendPending() {
+        if (pending == null || pending.position() == 0) return;
+        ByteBuffer frame = pending.flip();
+        pending = null;
+        long bytes = frame.remaining();
+        queued.addAndGet(bytes);
+        Metrics.wsFrames.increment();
+        if (core != null) {
+            core.sendFrame(new Frame(OpCode.BINARY, frame), Callback.from(() -> written(bytes), x -> written(bytes)), false);
+        } else {
+            try { session.getAsyncRemote().sendBinary(frame, r -> written(bytes)); } catch (Exception e) { written(bytes); }
+        }
+    }
+
+    // completion (or failure) of a send: a failed session closes, and its mailbox stops anyway
+    private void written(long bytes) {
+        if (queued.addAndGet(-bytes) < LOW_WATER && paused) {
+            paused = false;
+            Runnable listener = writableListener;
+            if (listener != null) listener.run();
+        }
+    }
+
     public void close() {
         try { session.close(); } catch (Exception ignored) {}
     }
+
+    /** Any message or pong from the peer. */
+    void touch() {
+        if (heartbeat != null) heartbeat.touch();
+    }
+
+    /** The session closed: stops its heartbeat. */
+    void closed() {
+        if (heartbeat != null) heartbeat.cancel();
+    }
+
+    /**
+     * PINGs are protocol ping frames, which browsers answer on their own; a peer that doesn't is aborted rather
+     * than sent a close frame it would never acknowledge. Jetty's own idle timeout is pushed past the heartbeat's
+     * so that it only acts as a backstop.
+     */
+    private Heartbeat startHeartbeat() {
+        Heartbeat h = Heartbeat.start(new Heartbeat.Peer() {
+            @Override public boolean ping() {
+                if (core != null) core.sendFrame(new Frame(OpCode.PING), Callback.NOOP, false);
+                else try { session.getAsyncRemote().sendPing(NO_DATA.duplicate()); } catch (Exception ignored) {}
+                return true;
+            }
+
+            @Override public void close() {
+                if (core != null) core.abort();
+                else try { session.close(); } catch (Exception ignored) {}
+            }
+        }, Metrics.WS);
+        if (h != null) session.setMaxIdleTimeout(Heartbeat.IDLE_MS + Heartbeat.TIMEOUT_MS + 5_000);
+        return h;
+    }
 }
@@ -0,0 +1,121 @@
+package multithreaded;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryProtocolTest {
+
+    /** Collects what a session writes: text lines, and each reply frame as one list. */
+    static final class Captured implements LineWriter {
+        final List<String> lines = new ArrayList<>();
+        final List<List<String>> replies = new ArrayList<>();
+        boolean binary;
+
+        @Override public void write(EncodedMessage message) { lines.add(message.text()); }
+
+        @Override
+        public void reply(EncodedMessage[] batch, int count) {
+            if (!binary) {
+                LineWriter.super.reply(batch, count);
+                return;
+            }
+            List<String> frame = new ArrayList<>();
+            for (int i = 0; i < count; i++) frame.add(batch[i].text());
+            replies.add(frame);
+        }
+
+        @Override public void enterBinary() { binary = true; }
+    }
+
+    /** A client frame: {@code records} alternate op (a Byte) and body (a String, arg left empty). */
+    static byte[] clientFrame(Object... records) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (int i = 0; i < records.length; i += 2) {
+            byte[] body = ((String) records[i + 1]).getBytes(StandardCharsets.UTF_8);
+            payload.writeBytes(ByteBuffer.allocate(BinaryProtocol.RECORD_HEADER)
+                    .put((Byte) records[i]).putShort((short) 0).putInt(body.length).array());
+            payload.writeBytes(body);
+        }
+        return ByteBuffer.allocate(BinaryProtocol.FRAME_HEADER + payload.size())
+                .putInt(payload.size()).put(payload.toByteArray()).array();
+    }
+
+    static TcpDecoder binaryDecoder(Captured out) {
+        TcpDecoder decoder = new TcpDecoder(new TcpSession(ClientRegistry.getInstance(), out, () -> {}), out);
+        byte[] proto = "PROTO BIN\n".getBytes(StandardCharsets.US_ASCII);
+        assertTrue(decoder.feed(proto, 0, proto.length));
+        assertEquals(List.of("OK PROTO BIN"), out.lines);
+        return decoder;
+    }
+
+    @Test
+    void frameLaysOutOneRecordPerMessage() {
+        EncodedMessage[] batch = {EncodedMessage.of("hello"), EncodedMessage.of("grüße\nzwei Zeilen")};
+        ByteBuffer[] bufs = new ByteBuffer[4];
+        long size = BinaryProtocol.frame(BinaryProtocol.EVENT, batch, 2, bufs, 0);
+
+        ByteBuffer frame = ByteBuffer.allocate((int) size);
+        for (ByteBuffer b : bufs) frame.put(b);
+        byte[] bytes = frame.array();
+        assertEquals(size - BinaryProtocol.FRAME_HEADER, BinaryProtocol.i32(bytes, 0));
+
+        int at = BinaryProtocol.FRAME_HEADER;
+        for (EncodedMessage m : batch) {
+            assertEquals(BinaryProtocol.EVENT, bytes[at]);
+            assertEquals(0, BinaryProtocol.u16(bytes, at + 1));
+            int bodyLen = BinaryProtocol.i32(bytes, at + 3);
+            assertEquals(m.text(), new String(bytes, at + BinaryProtocol.RECORD_HEADER, bodyLen, StandardCharsets.UTF_8));
+            at += BinaryProtocol.RECORD_HEADER + bodyLen;
+        }
+        assertEquals(size, at);
+    }
+
+    @Test
+    void framesSplitAtEveryByteAreReassembled() {
+        Captured out = new Captured();
+        TcpDecoder decoder = binaryDecoder(out);
+        byte[] frame = clientFrame(BinaryProtocol.PING, "", BinaryProtocol.MSG, "bob hi", BinaryProtocol.PING, "");
+        for (int i = 0; i < frame.length; i++) assertTrue(decoder.feed(frame, i, 1));
+        assertEquals(List.of(List.of("PONG", "ERR Login first", "PONG")), out.replies);
+    }
+
+    @Test
+    void severalFramesInOneReadGetOneReplyFrameEach() {
+        Captured out = new Captured();
+        TcpDecoder decoder = binaryDecoder(out);
+        byte[] first = clientFrame(BinaryProtocol.PING, "");
+        byte[] second = clientFrame(BinaryProtocol.PING, "", BinaryProtocol.PING, "");
+        byte[] both = ByteBuffer.allocate(first.length + second.length + 2).put(first).put(second).array();
+        // the read ends two bytes into a third frame's header
+        assertTrue(decoder.feed(both, 0, both.length));
+        assertEquals(List.of(List.of("PONG"), List.of("PONG", "PONG")), out.replies);
+    }
+
+    @Test
+    void oversizedFrameIsRefused() {
+        Captured out = new Captured();
+        TcpDecoder decoder = binaryDecoder(out);
+        byte[] header = ByteBuffer.allocate(BinaryProtocol.FRAME_HEADER).putInt(BinaryProtocol.MAX_FRAME + 1).array();
+        assertFalse(decoder.feed(header, 0, header.length));
+        assertEquals(List.of(List.of("ERR Frame too long")), out.replies);
+    }
+
+    @Test
+    void recordRunningPastItsFrameIsRefused() {
+        Captured out = new Captured();
+        TcpDecoder decoder = binaryDecoder(out);
+        byte[] frame = clientFrame(BinaryProtocol.PING, "", BinaryProtocol.MSG, "bob hi");
+        frame[frame.length - 7] = 0x7F; // the MSG body length byte: now far past the end
+        assertFalse(decoder.feed(frame, 0, frame.length));
+        assertEquals(List.of(List.of("PONG", "ERR Bad frame")), out.replies);
+    }
+}
@@ -0,0 +1,124 @@
+package multithreaded;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ByteRangeTest {
+    @TempDir
+    Path dir;
+
+    static void assertRange(long start, long end, ByteRange r) {
+        assertNotNull(r);
+        assertEquals(start, r.start, "start");
+        assertEquals(end, r.end, "end");
+    }
+
+    @Test
+    void explicitAndOpenEndedRanges() {
+        assertRange(0, 100, ByteRange.parse("bytes=0-99", 1000));
+        assertRange(500, 1000, ByteRange.parse("bytes=500-", 1000));
+        assertRange(999, 1000, ByteRange.parse("bytes=999-999", 1000));
+        assertRange(10, 21, ByteRange.parse("Bytes= 10 - 20 ", 1000));
+        assertEquals("bytes 0-99/1000", ByteRange.parse("bytes=0-99", 1000).contentRange(1000));
+        assertEquals(100, ByteRange.parse("bytes=0-99", 1000).length());
+    }
+
+    @Test
+    void suffixRanges() {
+        assertRange(900, 1000, ByteRange.parse("bytes=-100", 1000));
+        assertRange(0, 1000, ByteRange.parse("bytes=-5000", 1000)); // longer than the file: all of it
+        assertEquals("bytes 900-999/1000", ByteRange.parse("bytes=-100", 1000).contentRange(1000));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-0", 1000));
+    }
+
+    @Test
+    void endsAreClampedToTheFile() {
+        assertRange(900, 1000, ByteRange.parse("bytes=900-5000", 1000));
+        assertRange(0, 1, ByteRange.parse("bytes=0-0", 1));
+    }
+
+    @Test
+    void rangesPastTheEndAreUnsatisfiable() {
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=1000-", 1000));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=1000-2000", 1000));
+        // an empty file has no byte to send, suffix or not
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-1", 0));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=0-", 0));
+    }
+
+    @Test
+    void malformedOrMultipleRangesServeTheWholeFile() {
+        assertNull(ByteRange.parse(null, 1000));
+        assertNull(ByteRange.parse("items=0-99", 1000));
+        assertNull(ByteRange.parse("bytes=", 1000));
+        assertNull(ByteRange.parse("bytes=100", 1000));
+        assertNull(ByteRange.parse("bytes=abc-def", 1000));
+        assertNull(ByteRange.parse("bytes=-", 1000));
+        assertNull(ByteRange.parse("bytes=200-100", 1000));
+        assertNull(ByteRange.parse("bytes=0-99,200-299", 1000));
+    }
+
+    static byte[] text(int size) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < size; i++) sb.append("line ").append(i).append('\n');
+        return sb.substring(0, size).getBytes();
+    }
+
+    @Test
+    void compressibleFilesGetGzipAndDeflateVariants() throws IOException {
+        byte[] data = text(8192);
+        Files.write(dir.resolve("big.txt"), data);
+        FileCache.Entry e = new FileCache(dir, 1 << 20, 1 << 20).get(dir.resolve("big.txt"));
+
+        assertTrue(e.gzip.length < data.length);
+        assertArrayEquals(data, new GZIPInputStream(new ByteArrayInputStream(e.gzip)).readAllBytes());
+        assertArrayEquals(data, new InflaterInputStream(new ByteArrayInputStream(e.deflate)).readAllBytes());
+        assertNotEquals(e.etag, e.etag("gzip"));
+        assertNotEquals(e.etag("gzip"), e.etag("deflate"));
+        assertEquals(e.etag, e.etag("identity"));
+
+        assertEquals("gzip", StaticFiles.coding("gzip, deflate", e));
+        assertEquals("gzip", StaticFiles.coding("deflate, GZIP;q=0.5", e));
+        assertEquals("deflate", StaticFiles.coding("deflate", e));
+        assertEquals("deflate", StaticFiles.coding("gzip;q=0, deflate", e));
+        assertEquals("identity", StaticFiles.coding("gzip;q=0.000", e));
+        assertEquals("identity", StaticFiles.coding("br", e));
+        assertEquals("identity", StaticFiles.coding(null, e));
+    }
+
+    @Test
+    void smallIncompressibleAndUncachedFilesAreSentAsIs() throws IOException {
+        Files.write(dir.resolve("small.txt"), text(100));
+        byte[] noise = new byte[8192];
+        new Random(1).nextBytes(noise);
+        Files.write(dir.resolve("noise.bin"), noise);
+        Files.write(dir.resolve("large.txt"), text(8192));
+        FileCache cache = new FileCache(dir, 1 << 20, 4096);
+
+        for (String name : new String[] {"small.txt", "noise.bin", "large.txt"}) {
+            FileCache.Entry e = cache.get(dir.resolve(name));
+            assertNull(e.gzip, name);
+            assertNull(e.deflate, name);
+            assertEquals("identity", StaticFiles.coding("gzip, deflate", e), name);
+        }
+        FileCache.Entry large = cache.get(dir.resolve("large.txt"));
+        assertNull(large.bytes); // over the per-entry limit: streamed from disk
+        assertEquals(8192, large.size);
+    }
+}
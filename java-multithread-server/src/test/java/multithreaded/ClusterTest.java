@@ -0,0 +1,130 @@
+package multithreaded;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClusterTest {
+    static final byte[] SECRET = "s3cret".getBytes(StandardCharsets.UTF_8);
+
+    static Cluster node(String id, byte[] secret, Cluster... peers) throws IOException {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (Cluster p : peers) addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), p.port));
+        return new Cluster(id, InetAddress.getLoopbackAddress(), 0, addresses, secret, ClientRegistry.getInstance());
+    }
+
+    static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    static Cluster.Handshake read(byte op, byte[] frame) throws IOException {
+        int[] len = new int[1];
+        byte[] buf = Cluster.readFrame(new DataInputStream(new ByteArrayInputStream(frame)), new byte[4], len, 1 << 20);
+        assertEquals(frame.length - BinaryProtocol.FRAME_HEADER, len[0]);
+        return Cluster.handshake(op, buf, len[0]);
+    }
+
+    @Test
+    void frameRoundTripsOpArgAndBody() throws IOException {
+        byte[] body = "grüße".getBytes(StandardCharsets.UTF_8);
+        Cluster.Handshake h = read(Cluster.PM, Cluster.frame(Cluster.PM, "bob alice", body));
+        assertEquals("bob alice", h.arg());
+        assertArrayEquals(body, h.body());
+
+        Cluster.Handshake empty = read(Cluster.AUTH, Cluster.frame(Cluster.AUTH, "", new byte[0]));
+        assertEquals("", empty.arg());
+        assertEquals(0, empty.body().length);
+
+        assertNull(read(Cluster.HELLO, Cluster.frame(Cluster.PM, "bob", body))); // another op
+    }
+
+    @Test
+    void argLengthIsAnUnsignedShortAndNeverWraps() throws IOException {
+        String longest = "r".repeat(0xFFFF);
+        Cluster.Handshake h = read(Cluster.ROOM, Cluster.frame(Cluster.ROOM, longest, new byte[] {1}));
+        assertEquals(longest, h.arg());
+        assertArrayEquals(new byte[] {1}, h.body());
+
+        assertThrows(IllegalArgumentException.class, () -> Cluster.header(Cluster.ROOM, longest + "x", 0));
+        // ROOM's "room who" at that size: a (short) cast would wrap it and desync the stream
+        assertThrows(IllegalArgumentException.class, () -> Cluster.header(Cluster.ROOM, longest + " " + longest, 0));
+    }
+
+    @Test
+    void bodyLengthMustMatchTheFrame() {
+        byte[] frame = Cluster.frame(Cluster.HELLO, "n1", new byte[8]);
+        byte[] record = Arrays.copyOfRange(frame, BinaryProtocol.FRAME_HEADER, frame.length);
+        assertNotNull(Cluster.handshake(Cluster.HELLO, record, record.length));
+        assertNull(Cluster.handshake(Cluster.HELLO, record, record.length - 1)); // body cut short
+        record[1] = (byte) 0xFF; // arg length far past the end
+        assertNull(Cluster.handshake(Cluster.HELLO, record, record.length));
+    }
+
+    @Test
+    void answersDependOnSecretLabelAndChallenge() {
+        byte[] challenge = Cluster.nonce();
+        byte[] dial = Cluster.mac(SECRET, "dial", challenge);
+        assertArrayEquals(dial, Cluster.mac(SECRET, "dial", challenge));
+        assertFalse(Arrays.equals(dial, Cluster.mac(SECRET, "accept", challenge)));
+        assertFalse(Arrays.equals(dial, Cluster.mac("other".getBytes(StandardCharsets.UTF_8), "dial", challenge)));
+        assertFalse(Arrays.equals(dial, Cluster.mac(SECRET, "dial", Cluster.nonce())));
+    }
+
+    @Test
+    void peersConnectOnlyWithTheSharedSecret() throws Exception {
+        Cluster a = node("test-a", SECRET);
+        a.start();
+        Cluster b = node("test-b", SECRET, a);
+        b.start();
+        waitFor(() -> b.peerStates().get(0).connected);
+        assertEquals("test-a", b.peerStates().get(0).node);
+
+        Cluster intruder = node("test-x", "guess".getBytes(StandardCharsets.UTF_8), a);
+        intruder.start();
+        Thread.sleep(300);
+        assertFalse(intruder.peerStates().get(0).connected);
+    }
+
+    @Test
+    void unauthenticatedRecordsAreIgnored() throws Exception {
+        Cluster a = node("test-c", SECRET);
+        a.start();
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), a.port)) {
+            OutputStream out = s.getOutputStream();
+            out.write(Cluster.frame(Cluster.HELLO, "mallory-node", Cluster.nonce()));
+            // skips AUTH and claims a user straight away
+            out.write(Cluster.frame(Cluster.ONLINE, "victim", new byte[0]));
+            out.flush();
+            // the node answers the HELLO, then hangs up on the ONLINE
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            int[] len = new int[1];
+            byte[] reply = Cluster.readFrame(in, new byte[256], len, 4096);
+            assertEquals("test-c", Cluster.handshake(Cluster.HELLO, reply, len[0]).arg());
+            assertEquals(-1, in.read());
+        }
+        assertNull(a.owner("victim"));
+    }
+}
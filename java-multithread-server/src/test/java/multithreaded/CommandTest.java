@@ -0,0 +1,114 @@
+package multithreaded;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommandTest {
+
+    static final List<String> LINES = List.of(
+            "LOGIN alice", "login alice", "LoGiN alice", "  LOGIN   alice  ", "\tLOGIN\talice\r",
+            "LOGIN", "LOGIN ", "   ", "", "\t \r\n",
+            "MSG bob hi there", "MSG bob   hi   there  ", "MSG bob", "MSG  bob \t spaced\ttext ",
+            "msg bob grüße, wie geht's?", "BROADCAST", "BROADCAST   hello   world ", "broadcast x",
+            "JOIN lobby", "JOIN lobby extra words", "LEAVE lobby", "ROOMMSG lobby hi all", "ROOMMSG lobby",
+            "USERS", "users please", "HISTORY 10 lobby", "HISTORY", "GETFILE docs/a.txt 120",
+            "PROTO BIN", "PING", "pong", "QUIT", "QUITX", "QUI", "LOGINalice", "DANCE now", "ü alice",
+            "MSG\u000Bbob\fhi");
+
+    /** What the old {@code trim().split("\\s+", 3)} dispatch saw: verb, then up to two arguments. */
+    static String oracle(String line) {
+        String[] parts = line.trim().split("\\s+", 3);
+        String verb = parts[0].toUpperCase(Locale.ROOT);
+        Command.Verb v = Command.Verb.UNKNOWN;
+        for (Command.Verb known : Command.Verb.values()) if (known != Command.Verb.UNKNOWN && known.name().equals(verb)) v = known;
+        int args = parts[0].isEmpty() ? 0 : parts.length - 1;
+        return v + "|" + args + "|" + (args > 0 ? parts[1] : "") + "|" + (args > 1 ? parts[2] : "");
+    }
+
+    static String seen(Command c) {
+        return c.verb() + "|" + c.argCount() + "|" + (c.argCount() > 0 ? c.arg1() : "") + "|" + (c.argCount() > 1 ? c.arg2() : "");
+    }
+
+    @Test
+    void matchesTheRegexSplitOnEveryLine() {
+        Command c = new Command(); // reused, as on a connection
+        for (String line : LINES) {
+            assertEquals(oracle(line), seen(c.parse(line)), "chars: [" + line + "]");
+            // the NIO path: UTF-8 bytes somewhere inside a bigger read buffer
+            byte[] utf8 = line.getBytes(StandardCharsets.UTF_8);
+            byte[] buf = new byte[utf8.length + 8];
+            buf[0] = buf[1] = buf[2] = 'X';
+            System.arraycopy(utf8, 0, buf, 3, utf8.length);
+            buf[3 + utf8.length] = 'Y';
+            assertEquals(oracle(line), seen(c.parse(buf, 3, utf8.length)), "bytes: [" + line + "]");
+        }
+    }
+
+    @Test
+    void verbIsCaseInsensitiveAndExact() {
+        Command c = new Command();
+        assertEquals(Command.Verb.ROOMMSG, c.parse("RoomMsg lobby hi").verb());
+        assertEquals(Command.Verb.UNKNOWN, c.parse("ROOM lobby hi").verb());
+        assertEquals(Command.Verb.UNKNOWN, c.parse("ROOMMSGS lobby hi").verb());
+        assertEquals(Command.Verb.UNKNOWN, c.parse("DANCE").verb());
+        assertEquals(Command.Verb.UNKNOWN, c.parse("").verb());
+    }
+
+    @Test
+    void restOfLineKeepsInnerWhitespace() {
+        Command c = new Command().parse("  MSG bob  a  b\tc  ");
+        assertEquals(2, c.argCount());
+        assertEquals("bob", c.arg1());
+        assertEquals("a  b\tc", c.arg2());
+        assertEquals("bob  a  b\tc", c.rest());
+        assertEquals("[PM] a  b\tc", c.composeArg2("[PM] ").text());
+        assertEquals("[ALL] bob  a  b\tc", c.composeRest("[ALL] ").text());
+
+        byte[] utf8 = "BROADCAST  grüße   aus Köln ".getBytes(StandardCharsets.UTF_8);
+        c.parse(utf8, 0, utf8.length);
+        assertEquals("[ALL] grüße   aus Köln", c.composeRest("[ALL] ").text());
+        assertEquals("aus Köln", c.composeArg2("").text());
+    }
+
+    @Test
+    void missingArgumentsAreCounted() {
+        Command c = new Command();
+        assertEquals(0, c.parse("BROADCAST").argCount());
+        assertEquals("", c.composeRest("[ALL] ").text().substring("[ALL] ".length()));
+        assertEquals(1, c.parse("MSG bob").argCount());
+        assertEquals(0, c.parse("MSG   ").argCount());
+        // a reused parser forgets the previous line's arguments
+        c.parse("MSG bob hi");
+        assertEquals(0, c.parse("USERS").argCount());
+    }
+
+    @Test
+    void arg1IsATokenForTextButNotNecessarilyForRecords() {
+        Command c = new Command();
+        assertTrue(c.parse("LOGIN alice").arg1IsToken());
+        assertFalse(c.parse("LOGIN").arg1IsToken());
+
+        byte[] record = "al ice".getBytes(StandardCharsets.UTF_8);
+        c.parse(Command.Verb.LOGIN, record, 0, record.length, record.length, 0);
+        assertEquals(1, c.argCount());
+        assertFalse(c.arg1IsToken());
+        c.parse(Command.Verb.LOGIN, record, 0, 0, 0, 0);
+        assertEquals(0, c.argCount());
+        assertFalse(c.arg1IsToken());
+
+        // MSG: the arg is the recipient, the body any text at all, newlines included
+        byte[] msg = "bob  two\nlines ".getBytes(StandardCharsets.UTF_8);
+        c.parse(Command.Verb.MSG, msg, 0, 3, 3, msg.length - 3);
+        assertEquals(2, c.argCount());
+        assertTrue(c.arg1IsToken());
+        assertEquals("bob", c.arg1());
+        assertEquals("  two\nlines ", c.arg2());
+    }
+}
@@ -0,0 +1,138 @@
+package multithreaded;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// steps a thread-less wheel by hand; heartbeats use the default 30 s idle and 15 s timeout
+class HeartbeatTest {
+
+    /** Records the tick of every expiry; re-arms itself {@code again} ticks later while that is positive. */
+    static final class Recorder extends TimerWheel.Task {
+        final TimerWheel wheel;
+        final List<Long> fired = new ArrayList<>();
+        long again;
+
+        Recorder(TimerWheel wheel) { this.wheel = wheel; }
+
+        @Override
+        void expire() {
+            fired.add(wheel.now());
+            if (again > 0) wheel.schedule(this, again);
+        }
+    }
+
+    /** What the heartbeat did to its connection, and at which tick. */
+    static final class Conn implements Heartbeat.Peer {
+        final TimerWheel wheel;
+        final boolean pingable;
+        final List<String> events = new ArrayList<>();
+
+        Conn(TimerWheel wheel, boolean pingable) {
+            this.wheel = wheel;
+            this.pingable = pingable;
+        }
+
+        @Override
+        public boolean ping() {
+            if (pingable) events.add("ping@" + wheel.now());
+            return pingable;
+        }
+
+        @Override public void close() { events.add("close@" + wheel.now()); }
+    }
+
+    static void advanceTo(TimerWheel wheel, long tick) {
+        while (wheel.now() < tick) wheel.advance();
+    }
+
+    @Test
+    void durationsRoundUpToWholeTicks() {
+        TimerWheel wheel = new TimerWheel(250, 8);
+        assertEquals(1, wheel.ticks(0));
+        assertEquals(1, wheel.ticks(1));
+        assertEquals(1, wheel.ticks(250));
+        assertEquals(2, wheel.ticks(251));
+        assertEquals(120, wheel.ticks(30_000));
+    }
+
+    @Test
+    void taskRunsOneTickAfterItsDelayEvenPastAFullTurn() {
+        TimerWheel wheel = new TimerWheel(1000, 8);
+        Recorder soon = new Recorder(wheel), late = new Recorder(wheel);
+        wheel.schedule(soon, 3);
+        wheel.schedule(late, 20); // passes its bucket twice before it is due
+        advanceTo(wheel, 30);
+        // +1: scheduling between a tick read and the advance must not land in the bucket being expired
+        assertEquals(List.of(4L), soon.fired);
+        assertEquals(List.of(21L), late.fired);
+    }
+
+    @Test
+    void cancelledTaskNeverRuns() {
+        TimerWheel wheel = new TimerWheel(1000, 8);
+        Recorder task = new Recorder(wheel);
+        wheel.schedule(task, 2);
+        task.cancel();
+        advanceTo(wheel, 20);
+        assertTrue(task.fired.isEmpty());
+    }
+
+    @Test
+    void taskCanReArmFromExpire() {
+        TimerWheel wheel = new TimerWheel(1000, 8);
+        Recorder task = new Recorder(wheel);
+        task.again = 5;
+        wheel.schedule(task, 1);
+        advanceTo(wheel, 20);
+        assertEquals(List.of(2L, 8L, 14L, 20L), task.fired);
+    }
+
+    @Test
+    void silentConnectionIsPingedThenClosed() {
+        TimerWheel wheel = new TimerWheel(1000, 16);
+        Conn conn = new Conn(wheel, true);
+        Heartbeat.start(conn, Metrics.TCP, wheel);
+        advanceTo(wheel, 60);
+        // pinged once 30 idle ticks have passed (due at 31), closed 15 ticks after that
+        assertEquals(List.of("ping@31", "close@47"), conn.events);
+    }
+
+    @Test
+    void trafficReArmsForTheRestOfTheInterval() {
+        TimerWheel wheel = new TimerWheel(1000, 16);
+        Conn conn = new Conn(wheel, true);
+        Heartbeat h = Heartbeat.start(conn, Metrics.TCP, wheel);
+        advanceTo(wheel, 20);
+        h.touch();
+        advanceTo(wheel, 55);
+        h.touch(); // answers the PING sent at 51
+        advanceTo(wheel, 100);
+        // 20 + 30 idle, rounded to the next expiry at 51; the answer at 55 re-arms until 55 + 30
+        assertEquals(List.of("ping@51", "ping@86"), conn.events);
+    }
+
+    @Test
+    void connectionThatCannotBePingedIsClosedWhenIdle() {
+        TimerWheel wheel = new TimerWheel(1000, 16);
+        Conn conn = new Conn(wheel, false);
+        long pings = Metrics.TCP.pings.sum();
+        Heartbeat.start(conn, Metrics.TCP, wheel);
+        advanceTo(wheel, 60);
+        assertEquals(List.of("close@31"), conn.events);
+        assertEquals(pings, Metrics.TCP.pings.sum());
+    }
+
+    @Test
+    void cancelledHeartbeatStaysQuiet() {
+        TimerWheel wheel = new TimerWheel(1000, 16);
+        Conn conn = new Conn(wheel, true);
+        Heartbeat.start(conn, Metrics.TCP, wheel).cancel();
+        advanceTo(wheel, 100);
+        assertTrue(conn.events.isEmpty());
+    }
+}
@@ -0,0 +1,80 @@
+package multithreaded;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JsonWriterTest {
+
+    interface Body {
+        void write(JsonWriter json) throws IOException;
+    }
+
+    static String json(Body body) throws IOException {
+        StringWriter out = new StringWriter();
+        body.write(new JsonWriter(out));
+        return out.toString();
+    }
+
+    @Test
+    void commasGoBetweenMembersAndElementsOnly() throws IOException {
+        assertEquals("{}", json(j -> j.beginObject().endObject()));
+        assertEquals("[]", json(j -> j.beginArray().endArray()));
+        assertEquals("{\"a\":1,\"b\":\"x\",\"c\":true,\"d\":null}",
+                json(j -> j.beginObject().field("a", 1).field("b", "x").field("c", true).name("d").nullValue().endObject()));
+        assertEquals("[1,-2,\"three\",false,null]",
+                json(j -> j.beginArray().value(1).value(-2).value("three").value(false).value((String) null).endArray()));
+    }
+
+    @Test
+    void nestedContainersKeepTheirOwnCommaState() throws IOException {
+        assertEquals("{\"users\":[{\"name\":\"a\",\"rooms\":[]},{\"name\":\"b\",\"rooms\":[\"x\",\"y\"]}],"
+                        + "\"empty\":{},\"n\":[[1,2],[],[3]],\"last\":0}",
+                json(j -> {
+                    j.beginObject().name("users").beginArray();
+                    j.beginObject().field("name", "a").name("rooms").beginArray().endArray().endObject();
+                    j.beginObject().field("name", "b").name("rooms").beginArray().value("x").value("y").endArray().endObject();
+                    j.endArray();
+                    j.name("empty").beginObject().endObject();
+                    j.name("n").beginArray();
+                    j.beginArray().value(1).value(2).endArray().beginArray().endArray().beginArray().value(3).endArray();
+                    j.endArray();
+                    j.field("last", 0).endObject();
+                }));
+    }
+
+    @Test
+    void nestingPastTheInitialDepthGrowsTheStack() throws IOException {
+        int depth = 40; // the comma stack starts at 16 and doubles
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < depth; i++) expected.append("[").append(i).append(",");
+        expected.append("\"core\"");
+        for (int i = depth - 1; i >= 0; i--) expected.append(",").append(i).append("]");
+
+        assertEquals(expected.toString(), json(j -> {
+            for (int i = 0; i < depth; i++) j.beginArray().value(i);
+            j.value("core");
+            for (int i = depth - 1; i >= 0; i--) j.value(i).endArray();
+        }));
+    }
+
+    @Test
+    void stringsAreEscaped() throws IOException {
+        assertEquals("[\"quote \\\" backslash \\\\ slash /\"]",
+                json(j -> j.beginArray().value("quote \" backslash \\ slash /").endArray()));
+        assertEquals("[\"a\\nb\\rc\\td\"]", json(j -> j.beginArray().value("a\nb\rc\td").endArray()));
+        assertEquals("[\"\\u0000\\u0001\\u001f\\u0008\"]",
+                json(j -> j.beginArray().value("\u0000\u0001\u001f\b").endArray()));
+        // legal JSON but a line break to JavaScript, where /metrics is read
+        assertEquals("[\"x\\u2028y\\u2029z\"]", json(j -> j.beginArray().value("x\u2028y\u2029z").endArray()));
+        assertEquals("[\"grüße 😀 \u007f\"]", json(j -> j.beginArray().value("grüße 😀 \u007f").endArray()));
+    }
+
+    @Test
+    void namesAreEscapedToo() throws IOException {
+        assertEquals("{\"a\\\"b\\n\":1}", json(j -> j.beginObject().field("a\"b\n", 1).endObject()));
+    }
+}
@@ -0,0 +1,186 @@
+package multithreaded;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// runs with the small segments, index depth and maintenance interval set for Surefire in the pom
+class MessageLogTest {
+    @TempDir
+    Path dir;
+
+    static List<String> texts(EncodedMessage[] messages) {
+        List<String> out = new ArrayList<>();
+        for (EncodedMessage m : messages) out.add(m.text());
+        return out;
+    }
+
+    static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    static void appendAll(MessageLog log, byte kind, String from, String key, List<String> texts) throws InterruptedException {
+        long before = log.appended.sum();
+        for (String t : texts) log.append(kind, from, key, EncodedMessage.of(t));
+        waitFor(() -> log.appended.sum() == before + texts.size());
+    }
+
+    static List<String> numbered(String prefix, int n) {
+        List<String> out = new ArrayList<>();
+        for (int i = 0; i < n; i++) out.add(prefix + i);
+        return out;
+    }
+
+    @Test
+    void appendedMessagesAreServedByHistory() throws Exception {
+        MessageLog log = MessageLog.open(dir);
+        try {
+            appendAll(log, MessageLog.BROADCAST, "alice", null, List.of("b0", "b1"));
+            appendAll(log, MessageLog.PRIVATE, "alice", "bob", List.of("pm to bob"));
+            appendAll(log, MessageLog.ROOM, "alice", "lobby", List.of("r0"));
+            appendAll(log, MessageLog.BROADCAST, "carol", null, List.of("b2"));
+
+            assertEquals(List.of("b0", "b1", "pm to bob", "b2"), texts(log.history("bob", null, 10)));
+            assertEquals(List.of("b0", "b1", "pm to bob", "b2"), texts(log.history("alice", null, 10)));
+            assertEquals(List.of("b0", "b1", "b2"), texts(log.history("carol", null, 10)));
+            assertEquals(List.of("r0"), texts(log.history("alice", "lobby", 10)));
+            assertEquals(List.of("b1", "pm to bob", "b2"), texts(log.history("bob", null, 3)));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void recoveryCutsATornTailAndAppendsOverIt() throws Exception {
+        MessageLog log = MessageLog.open(dir);
+        appendAll(log, MessageLog.BROADCAST, "alice", null, List.of("b0", "b1", "b2"));
+        long end = log.bytes();
+        log.close();
+
+        // a crash mid-record: a plausible length, then bytes whose CRC doesn't match
+        Path segment = segments(dir).get(0);
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ByteBuffer torn = ByteBuffer.allocate(40).putInt(40).putInt(0xBAD).putLong(1L);
+            while (torn.hasRemaining()) torn.put((byte) 'x');
+            ch.write(torn.flip(), end);
+        }
+
+        log = MessageLog.open(dir);
+        try {
+            assertEquals(end, log.bytes());
+            assertEquals(List.of("b0", "b1", "b2"), texts(log.history("alice", null, 10)));
+            appendAll(log, MessageLog.BROADCAST, "alice", null, List.of("b3"));
+        } finally {
+            log.close();
+        }
+
+        log = MessageLog.open(dir);
+        try {
+            assertEquals(List.of("b0", "b1", "b2", "b3"), texts(log.history("alice", null, 10)));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void compactionKeepsOnlyIndexedRecords() throws Exception {
+        String filler = "x".repeat(300);
+        MessageLog log = MessageLog.open(dir);
+        try {
+            appendAll(log, MessageLog.ROOM, "alice", "keep", List.of("kept"));
+            // far more broadcasts than the index keeps (10), across several 64 KB segments
+            List<String> broadcasts = numbered("b" + filler, 600);
+            appendAll(log, MessageLog.BROADCAST, "alice", null, broadcasts);
+            assertTrue(log.segmentCount() > 2);
+            long before = log.bytes();
+
+            waitFor(() -> log.compactions.sum() > 0);
+            waitFor(() -> log.bytes() < before / 2);
+            assertEquals(List.of("kept"), texts(log.history("alice", "keep", 10)));
+            assertEquals(broadcasts.subList(590, 600), texts(log.history("alice", null, 10)));
+        } finally {
+            log.close();
+        }
+
+        MessageLog reopened = MessageLog.open(dir);
+        try {
+            assertEquals(List.of("kept"), texts(reopened.history("alice", "keep", 10)));
+            assertEquals(numbered("b" + filler, 600).subList(590, 600), texts(reopened.history("alice", null, 10)));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void inboxRoundTripSurvivesRestartsAndIsDeliveredOnce() throws Exception {
+        MessageLog log = MessageLog.open(dir);
+        try {
+            for (String t : List.of("pm0", "pm1", "pm2")) assertTrue(log.store("alice", "bob", EncodedMessage.of(t)));
+            // taken at once: whatever the writer hasn't reached yet comes from the inbox itself
+            assertEquals(List.of("pm0", "pm1", "pm2"), texts(log.takeInbox("bob")));
+            assertEquals(0, log.takeInbox("bob").length);
+
+            for (String t : List.of("pm3", "pm4")) assertTrue(log.store("alice", "bob", EncodedMessage.of(t)));
+            assertTrue(log.store("alice", "carol", EncodedMessage.of("pm to carol")));
+            assertArrayEquals(new long[] {3, 2 * EncodedMessage.of("pmN").lineLength() + "pm to carol\n".length(), 2},
+                    log.inboxTotals());
+        } finally {
+            log.close();
+        }
+
+        log = MessageLog.open(dir);
+        try {
+            assertEquals(List.of("pm3", "pm4"), texts(log.takeInbox("bob")));
+            // delivered PMs stay in the sender's and recipient's history
+            assertEquals(List.of("pm0", "pm1", "pm2", "pm3", "pm4"), texts(log.history("bob", null, 10)));
+        } finally {
+            log.close();
+        }
+
+        log = MessageLog.open(dir);
+        try {
+            assertEquals(0, log.takeInbox("bob").length);
+            assertEquals(List.of("pm to carol"), texts(log.takeInbox("carol")));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    void fullInboxRefusesMore() throws Exception {
+        MessageLog log = MessageLog.open(dir);
+        try {
+            for (int i = 0; i < MessageLog.INBOX_MESSAGES; i++) assertTrue(log.store("alice", "bob", EncodedMessage.of("pm" + i)));
+            assertFalse(log.store("alice", "bob", EncodedMessage.of("one too many")));
+            assertEquals(MessageLog.INBOX_MESSAGES, log.takeInbox("bob").length);
+            assertTrue(log.store("alice", "bob", EncodedMessage.of("room again")));
+        } finally {
+            log.close();
+        }
+    }
+
+    static List<Path> segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package multithreaded;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboxTest {
+
+    /** Holds the first delivery until {@link #release()}, so later offers pile up in the mailbox. */
+    static final class GatedSink implements Outbox.Sink {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final List<String> delivered = new ArrayList<>();
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        private final int expected;
+        final CountDownLatch done;
+
+        GatedSink(int expected) {
+            this.expected = expected;
+            this.done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void deliver(EncodedMessage[] batch, int count) {
+            entered.countDown();
+            await(gate);
+            synchronized (delivered) {
+                for (int i = 0; i < count; i++) {
+                    delivered.add(batch[i].text());
+                    done.countDown();
+                }
+            }
+        }
+
+        @Override public void disconnect() { disconnected.countDown(); }
+
+        @Override public boolean blocking() { return true; }
+
+        void release() { gate.countDown(); }
+
+        List<String> awaitDelivered() {
+            await(done);
+            synchronized (delivered) {
+                assertEquals(expected, delivered.size(), "delivered " + delivered);
+                return new ArrayList<>(delivered);
+            }
+        }
+    }
+
+    static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, TimeUnit.SECONDS), "timed out");
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** Offers m0 and waits until the writer is stuck delivering it. */
+    private static Outbox stuck(GatedSink sink, Outbox.Overflow overflow, int capacity) {
+        Outbox outbox = new Outbox("bob", "test", sink, overflow, capacity);
+        assertTrue(outbox.offer(EncodedMessage.of("m0")));
+        await(sink.entered);
+        return outbox;
+    }
+
+    @Test
+    void dropOldestKeepsTheNewestMessages() {
+        GatedSink sink = new GatedSink(5);
+        Outbox outbox = stuck(sink, Outbox.Overflow.DROP_OLDEST, 4);
+        for (int i = 1; i <= 6; i++) assertTrue(outbox.offer(EncodedMessage.of("m" + i)));
+        assertEquals(4, outbox.depth());
+        assertEquals(2, outbox.dropped());
+
+        sink.release();
+        assertEquals(List.of("m0", "m3", "m4", "m5", "m6"), sink.awaitDelivered());
+    }
+
+    @Test
+    void disconnectClosesTheMailboxWhenFull() {
+        GatedSink sink = new GatedSink(1);
+        Outbox outbox = stuck(sink, Outbox.Overflow.DISCONNECT, 2);
+        assertTrue(outbox.offer(EncodedMessage.of("m1")));
+        assertTrue(outbox.offer(EncodedMessage.of("m2")));
+        assertFalse(outbox.offer(EncodedMessage.of("m3")));
+        await(sink.disconnected);
+        assertTrue(outbox.closed());
+        assertEquals(0, outbox.depth());
+        assertEquals(1, outbox.dropped());
+        assertFalse(outbox.offer(EncodedMessage.of("m4")));
+
+        sink.release();
+        assertEquals(List.of("m0"), sink.awaitDelivered());
+    }
+
+    @Test
+    void coalesceMergesTheBacklogIntoOneMessage() {
+        GatedSink sink = new GatedSink(3);
+        Outbox outbox = stuck(sink, Outbox.Overflow.COALESCE, 2);
+        for (int i = 1; i <= 3; i++) assertTrue(outbox.offer(EncodedMessage.of("m" + i)));
+        assertEquals(2, outbox.depth());
+        assertEquals(1, outbox.coalesced());
+        assertEquals(0, outbox.dropped());
+
+        sink.release();
+        assertEquals(List.of("m0", "m1\nm2", "m3"), sink.awaitDelivered());
+    }
+
+    @Test
+    void starvedBlockingPoolDropsTheLongestStalledClient() throws InterruptedException {
+        // the pom caps the blocking pool at 2 threads and counts 200 ms in one write as stalled
+        GatedSink first = new GatedSink(1);
+        GatedSink second = new GatedSink(1);
+        stuck(first, Outbox.Overflow.DROP_OLDEST, 4);
+        Thread.sleep(100);
+        stuck(second, Outbox.Overflow.DROP_OLDEST, 4);
+        Thread.sleep(250);
+        long before = Outbox.slowConsumerDisconnects.sum();
+
+        GatedSink third = new GatedSink(1);
+        third.release();
+        assertTrue(new Outbox("carol", "test", third, Outbox.Overflow.DROP_OLDEST, 4).offer(EncodedMessage.of("hi")));
+        await(first.disconnected);
+        assertEquals(before + 1, Outbox.slowConsumerDisconnects.sum());
+        assertEquals(1, second.disconnected.getCount());
+
+        first.release(); // what closing the socket does to the stuck write
+        assertEquals(List.of("hi"), third.awaitDelivered());
+        second.release();
+        second.awaitDelivered();
+    }
+
+    @Test
+    void closedMailboxRefusesOffers() {
+        GatedSink sink = new GatedSink(0);
+        Outbox outbox = new Outbox("bob", "test", sink, Outbox.Overflow.DROP_OLDEST, 4);
+        outbox.close();
+        assertFalse(outbox.offer(EncodedMessage.of("m0")));
+        assertEquals(0, outbox.depth());
+    }
+}